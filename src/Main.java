@@ -1,20 +1,203 @@
 import crypto.CryptoService;
-import persistence.PersistenceService;
+import crypto.EncryptionFormat;
+import crypto.KdfCalibrator;
+import persistence.AsyncPersistenceService;
+import persistence.GroupCommitPersistenceService;
+import persistence.JournaledPersistenceService;
+import persistence.ShardedPersistenceService;
+import repository.BTreePasswordRepository;
+import repository.CompactPasswordRepository;
+import repository.ConcurrentPasswordRepository;
+import repository.MappedPasswordRepository;
+import repository.OffHeapPasswordRepository;
 import repository.PasswordRepository;
+import repository.VersionedPasswordRepository;
 import manager.PasswordManager;
 import interfaces.*;
+import model.KdfParameters;
 
 public class Main {
     private static final String FILE_NAME = "passwords.dat";
+    private static final String USAGE = "Usage: Main [--calibrate [ms]] [--kdf pbkdf2|scrypt]"
+            + " [--mapped | --btree | --compact | --off-heap | --concurrent | --versioned]"
+            + " [--group-commit ms] [--async ms] [--shards n]";
 
     public static void main(String[] args) {
-        ICryptoService cryptoService = new CryptoService();
-        IPersistenceService persistenceService = new PersistenceService(FILE_NAME);
-        IPasswordRepository repository = new PasswordRepository(persistenceService);
+        String kdfAlgorithm = KdfParameters.PBKDF2_SHA256;
+        boolean mapped = false;
+        boolean btree = false;
+        boolean compact = false;
+        boolean offHeap = false;
+        boolean concurrent = false;
+        boolean versioned = false;
+        long groupCommitMillis = -1;
+        long asyncFlushMillis = -1;
+        int shardCount = 0;
+        String engine = null; // the repository option given, if any
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--calibrate": {
+                        long targetMillis = i + 1 < args.length ? number(args, i + 1, Integer.MAX_VALUE) : 250;
+                        KdfCalibrator calibrator = new KdfCalibrator(new CryptoService());
+                        System.out.print(calibrator.calibrate(KdfParameters.PBKDF2_SHA256, targetMillis).toReport());
+                        System.out.println();
+                        System.out.print(calibrator.calibrate(KdfParameters.SCRYPT, targetMillis).toReport());
+                        return;
+                    }
+                    // new master passwords use scrypt; existing vaults keep their stored KDF
+                    case "--kdf":
+                        kdfAlgorithm = kdf(value(args, ++i));
+                        break;
+                    case "--mapped":
+                        engine = only(engine, args[i]);
+                        mapped = true;
+                        break;
+                    case "--btree":
+                        engine = only(engine, args[i]);
+                        btree = true;
+                        break;
+                    // entries packed into byte arrays, for vaults too large for the heap as objects
+                    case "--compact":
+                        engine = only(engine, args[i]);
+                        compact = true;
+                        break;
+                    // entries in direct memory, outside the reach of the garbage collector
+                    case "--off-heap":
+                        engine = only(engine, args[i]);
+                        offHeap = true;
+                        break;
+                    // a repository that is safe to share between threads
+                    case "--concurrent":
+                        engine = only(engine, args[i]);
+                        concurrent = true;
+                        break;
+                    // readers see immutable snapshots; bulk changes are published at once
+                    case "--versioned":
+                        engine = only(engine, args[i]);
+                        versioned = true;
+                        break;
+                    // merge saves arriving within this many milliseconds into one durable write
+                    case "--group-commit":
+                        groupCommitMillis = number(args, ++i, Long.MAX_VALUE);
+                        break;
+                    // save in the background, writing at most once per this many milliseconds
+                    case "--async":
+                        asyncFlushMillis = number(args, ++i, Long.MAX_VALUE);
+                        break;
+                    // split the vault into this many files and rewrite only the changed ones
+                    case "--shards":
+                        shardCount = (int) number(args, ++i, Integer.MAX_VALUE);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            // these repositories write their own files and take no persistence service
+            if ((mapped || btree || compact || offHeap) && (shardCount > 0 || groupCommitMillis >= 0 || asyncFlushMillis >= 0)) {
+                throw new IllegalArgumentException("--shards, --group-commit and --async cannot be combined with " + engine);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+
+        // checked for every mode, as each would otherwise open a second, empty vault next to the real one
+        if (shardCount == 0 && ShardedPersistenceService.isSharded(FILE_NAME)) {
+            System.out.println("The vault is sharded; run with --shards.");
+            return;
+        }
+        if (!btree && BTreePasswordRepository.exists(FILE_NAME)) {
+            System.out.println("The vault is stored as a B-tree; run with --btree.");
+            return;
+        }
+
+        ICryptoService cryptoService = new CryptoService(EncryptionFormat.GCM_V1, kdfAlgorithm);
+        JournaledPersistenceService journal = new JournaledPersistenceService(FILE_NAME);
+        if (mapped || btree || compact || offHeap || shardCount > 0) {
+            // every mode but the journal itself reads the snapshot file only (a new tree or sharded
+            // vault starts from it), so fold any pending log into it first
+            journal.checkpoint();
+        }
+
+        IPasswordRepository repository;
+        if (mapped) {
+            repository = new MappedPasswordRepository(FILE_NAME);
+        } else if (btree) {
+            repository = new BTreePasswordRepository(FILE_NAME);
+        } else if (compact) {
+            repository = new CompactPasswordRepository(FILE_NAME);
+        } else if (offHeap) {
+            OffHeapPasswordRepository offHeapRepository = new OffHeapPasswordRepository(FILE_NAME);
+            // zero the entry memory on exit rather than leave it to the collector
+            Runtime.getRuntime().addShutdownHook(new Thread(offHeapRepository::close));
+            repository = offHeapRepository;
+        } else {
+            IPersistenceService persistence = journal;
+            if (shardCount > 0) {
+                persistence = new ShardedPersistenceService(FILE_NAME, shardCount);
+            }
+            if (groupCommitMillis >= 0) {
+                persistence = new GroupCommitPersistenceService(persistence, groupCommitMillis);
+            }
+            if (asyncFlushMillis >= 0) {
+                AsyncPersistenceService async = new AsyncPersistenceService(persistence, asyncFlushMillis);
+                // also covers Ctrl+C; a normal exit has flushed already
+                Runtime.getRuntime().addShutdownHook(new Thread(async::close));
+                persistence = async;
+            }
+            if (versioned) {
+                repository = new VersionedPasswordRepository(persistence);
+            } else if (concurrent) {
+                repository = new ConcurrentPasswordRepository(persistence);
+            } else {
+                repository = new PasswordRepository(persistence);
+            }
+        }
         IPasswordManager passwordManager = new PasswordManager(cryptoService, repository);
 
         passwordManager.start();
     }
-}
 
+    // the repository options exclude each other
+    private static String only(String engine, String option) {
+        if (engine != null && !engine.equals(option)) {
+            throw new IllegalArgumentException(option + " cannot be combined with " + engine);
+        }
+        return option;
+    }
+
+    private static String kdf(String name) {
+        switch (name) {
+            case "pbkdf2":
+                return KdfParameters.PBKDF2_SHA256;
+            case "scrypt":
+                return KdfParameters.SCRYPT;
+            default:
+                throw new IllegalArgumentException("Unknown KDF: " + name);
+        }
+    }
+
+    // the value given to the option at i - 1
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
 
+    private static long number(String[] args, int i, long max) {
+        String value = value(args, i);
+        try {
+            long number = Long.parseLong(value);
+            if (number >= 0 && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(args[i - 1] + " needs a number from 0 to " + max + ", not " + value);
+    }
+}
@@ -0,0 +1,89 @@
+package crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Per-thread cache of {@link Cipher} instances, keyed by secret key and mode.
+ *
+ * Cipher.getInstance() walks the provider list and init() expands the key schedule,
+ * which costs more than encrypting a single short password. A cipher returns to its
+ * initialized state after doFinal(), so the same instance can be reused for the next call
+ * with the same key and mode. Modes that need fresh parameters per call (a GCM nonce)
+ * are re-initialized with them, which still skips the provider lookup.
+ * Ciphers are not thread-safe, hence one pool per thread.
+ */
+final class CipherPool {
+    private static final int MAX_CIPHERS_PER_THREAD = 8;
+
+    private final String transformation;
+    private final ThreadLocal<Map<PoolKey, Cipher>> ciphers;
+
+    CipherPool(String transformation) {
+        this.transformation = transformation;
+        this.ciphers = ThreadLocal.withInitial(() -> new LinkedHashMap<PoolKey, Cipher>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PoolKey, Cipher> eldest) {
+                return size() > MAX_CIPHERS_PER_THREAD;
+            }
+        });
+    }
+
+    interface CipherOperation<T> {
+        T apply(Cipher cipher) throws GeneralSecurityException;
+    }
+
+    <T> T withCipher(int mode, SecretKey key, AlgorithmParameterSpec params, CipherOperation<T> operation)
+            throws GeneralSecurityException {
+        Map<PoolKey, Cipher> pool = ciphers.get();
+        PoolKey poolKey = new PoolKey(key, mode);
+
+        Cipher cipher = pool.get(poolKey);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            if (params == null) {
+                cipher.init(mode, key);
+            }
+            pool.put(poolKey, cipher);
+        }
+
+        try {
+            if (params != null) {
+                cipher.init(mode, key, params);
+            }
+            return operation.apply(cipher);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // never hand out a cipher that may have been left in an undefined state
+            pool.remove(poolKey);
+            throw e;
+        }
+    }
+
+    private static final class PoolKey {
+        private final SecretKey key;
+        private final int mode;
+
+        PoolKey(SecretKey key, int mode) {
+            this.key = Objects.requireNonNull(key, "secretKey");
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PoolKey)) return false;
+            PoolKey other = (PoolKey) o;
+            return mode == other.mode && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + mode;
+        }
+    }
+}
@@ -1,26 +1,84 @@
 package crypto;
 
 import interfaces.ICryptoService;
+import model.KdfParameters;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class CryptoService implements ICryptoService {
     private static final int SALT_LENGTH = 16;
     private static final int ITERATIONS = 65536;
+    private static final KdfParameters DEFAULT_KDF = KdfParameters.pbkdf2(ITERATIONS);
     private static final int KEY_LENGTH = 128;
 
-    public CryptoService() {}
+    private static final byte GCM_V1_HEADER = 1;
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 16;
+    private static final int GCM_PREFIX_LENGTH = 1 + GCM_NONCE_LENGTH;
+    private static final int ECB_BLOCK_SIZE = 16;
+    private static final byte[] KEY_CHECK_CONSTANT = "PasswordManager key check v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final CipherPool gcmCiphers = new CipherPool("AES/GCM/NoPadding");
+    private final CipherPool legacyCiphers = new CipherPool("AES");
+    private final SecureRandom random = new SecureRandom();
+    private final Scrypt scrypt = new Scrypt();
+    private final EncryptionFormat format;
+    private final String kdfAlgorithm;
+    private final CryptoService legacy;
+
+    public CryptoService() {
+        this(EncryptionFormat.GCM_V1);
+    }
+
+    public CryptoService(EncryptionFormat format) {
+        this(format, KdfParameters.PBKDF2_SHA256);
+    }
+
+    /** @param kdfAlgorithm key derivation that new vaults are calibrated for; existing vaults keep theirs */
+    public CryptoService(EncryptionFormat format, String kdfAlgorithm) {
+        this.format = format;
+        this.kdfAlgorithm = kdfAlgorithm;
+        this.legacy = format == EncryptionFormat.LEGACY_ECB ? this : new CryptoService(EncryptionFormat.LEGACY_ECB, kdfAlgorithm);
+    }
 
     public SecretKey deriveKey(String password, byte[] salt) {
+        return deriveKey(password, salt, DEFAULT_KDF);
+    }
+
+    /** Vaults without stored parameters were created with the fixed default. */
+    public SecretKey deriveKey(String password, byte[] salt, KdfParameters params) {
+        if (params == null) {
+            params = DEFAULT_KDF;
+        }
+        if (KdfParameters.SCRYPT.equals(params.getAlgorithm())) {
+            byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+            try {
+                byte[] keyBytes = scrypt.derive(passwordBytes, salt, params.getCost(), params.getBlockSize(),
+                        params.getParallelism(), KEY_LENGTH / 8);
+                return new SecretKeySpec(keyBytes, "AES");
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+        }
+        if (!KdfParameters.PBKDF2_SHA256.equals(params.getAlgorithm())) {
+            throw new IllegalArgumentException("Unsupported key derivation: " + params.getAlgorithm());
+        }
         try {
-            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, params.getIterations(), KEY_LENGTH);
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KdfParameters.PBKDF2_SHA256);
             byte[] keyBytes = factory.generateSecret(spec).getEncoded();
             return new SecretKeySpec(keyBytes, "AES");
         } catch (Exception e) {
@@ -28,31 +86,158 @@ public class CryptoService implements ICryptoService {
         }
     }
 
+    public KdfParameters calibrateKdf(long targetMillis) {
+        return new KdfCalibrator(this).calibrate(kdfAlgorithm, targetMillis).getParameters();
+    }
+
     public byte[] generateSalt() {
         byte[] s = new byte[SALT_LENGTH];
         new SecureRandom().nextBytes(s);
         return s;
     }
 
+    public SecretKey generateDataKey() {
+        byte[] keyBytes = new byte[KEY_LENGTH / 8];
+        random.nextBytes(keyBytes);
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    public byte[] wrapKey(SecretKey dataKey, SecretKey wrappingKey) {
+        return encrypt(dataKey.getEncoded(), wrappingKey);
+    }
+
+    public SecretKey unwrapKey(byte[] wrappedKey, SecretKey wrappingKey) {
+        return new SecretKeySpec(decrypt(wrappedKey, wrappingKey), "AES");
+    }
+
+    public byte[] computeKeyCheck(SecretKey key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(KEY_CHECK_CONSTANT);
+        } catch (Exception e) {
+            throw new RuntimeException("Key check failed", e);
+        }
+    }
+
+    public boolean verifyKeyCheck(SecretKey key, byte[] keyCheck) {
+        return MessageDigest.isEqual(computeKeyCheck(key), keyCheck);
+    }
+
     public String encrypt(String plain, SecretKey secretKey) {
+        byte[] encrypted = encrypt(plain.getBytes(StandardCharsets.UTF_8), secretKey);
+        return Base64.getEncoder().encodeToString(encrypted);
+    }
+
+    /**
+     * The same service for values in the legacy ECB format, which is what every value of a vault
+     * from before AES-GCM is. Only such vaults should use it, as an ECB value carries nothing
+     * that would show it was tampered with.
+     */
+    public ICryptoService legacyEcb() {
+        return legacy;
+    }
+
+    public String decrypt(String encoded, SecretKey secretKey) {
+        byte[] decoded = Base64.getDecoder().decode(encoded);
+        return new String(decrypt(decoded, secretKey), StandardCharsets.UTF_8);
+    }
+
+    public byte[] encrypt(byte[] plain, SecretKey secretKey) {
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey);
-            byte[] encrypted = cipher.doFinal(plain.getBytes());
-            return Base64.getEncoder().encodeToString(encrypted);
+            if (format == EncryptionFormat.LEGACY_ECB) {
+                return legacyCiphers.withCipher(Cipher.ENCRYPT_MODE, secretKey, null, cipher -> cipher.doFinal(plain));
+            }
+
+            byte[] encrypted = new byte[getEncryptedSize(plain.length, secretKey)];
+            GCMParameterSpec params = newNonce();
+            encrypted[0] = GCM_V1_HEADER;
+            System.arraycopy(params.getIV(), 0, encrypted, 1, GCM_NONCE_LENGTH);
+            gcmCiphers.withCipher(Cipher.ENCRYPT_MODE, secretKey, params,
+                    cipher -> cipher.doFinal(plain, 0, plain.length, encrypted, GCM_PREFIX_LENGTH));
+            return encrypted;
         } catch (Exception e) {
             throw new RuntimeException("Encryption error", e);
         }
     }
 
-    public String decrypt(String encoded, SecretKey secretKey) {
+    // The format of the service picks the mode, never the bytes of the value: an ECB value may
+    // start like an AES-GCM one, and a value that fails its tag must not pass as ECB.
+    public byte[] decrypt(byte[] encrypted, SecretKey secretKey) {
+        try {
+            if (format == EncryptionFormat.LEGACY_ECB) {
+                checkLegacyEcb(encrypted.length);
+                return legacyCiphers.withCipher(Cipher.DECRYPT_MODE, secretKey, null, cipher -> cipher.doFinal(encrypted));
+            }
+            checkGcmV1(encrypted.length, encrypted.length > 0 ? encrypted[0] : 0);
+            GCMParameterSpec params = new GCMParameterSpec(GCM_TAG_LENGTH * 8, encrypted, 1, GCM_NONCE_LENGTH);
+            return gcmCiphers.withCipher(Cipher.DECRYPT_MODE, secretKey, params,
+                    cipher -> cipher.doFinal(encrypted, GCM_PREFIX_LENGTH, encrypted.length - GCM_PREFIX_LENGTH));
+        } catch (Exception e) {
+            throw new RuntimeException("Decryption error", e);
+        }
+    }
+
+    public int encrypt(ByteBuffer plain, ByteBuffer out, SecretKey secretKey) {
+        try {
+            if (format == EncryptionFormat.LEGACY_ECB) {
+                return legacyCiphers.withCipher(Cipher.ENCRYPT_MODE, secretKey, null, cipher -> cipher.doFinal(plain, out));
+            }
+
+            int size = getEncryptedSize(plain.remaining(), secretKey);
+            if (out.remaining() < size) {
+                throw new ShortBufferException("Output buffer needs " + size + " bytes");
+            }
+            GCMParameterSpec params = newNonce();
+            out.put(GCM_V1_HEADER).put(params.getIV());
+            return GCM_PREFIX_LENGTH + gcmCiphers.withCipher(Cipher.ENCRYPT_MODE, secretKey, params,
+                    cipher -> cipher.doFinal(plain, out));
+        } catch (Exception e) {
+            throw new RuntimeException("Encryption error", e);
+        }
+    }
+
+    public int decrypt(ByteBuffer encrypted, ByteBuffer out, SecretKey secretKey) {
         try {
-            Cipher cipher = Cipher.getInstance("AES");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey);
-            byte[] decoded = Base64.getDecoder().decode(encoded);
-            return new String(cipher.doFinal(decoded));
+            int start = encrypted.position();
+            int length = encrypted.remaining();
+            if (format == EncryptionFormat.LEGACY_ECB) {
+                checkLegacyEcb(length);
+                return legacyCiphers.withCipher(Cipher.DECRYPT_MODE, secretKey, null, cipher -> cipher.doFinal(encrypted, out));
+            }
+            checkGcmV1(length, length > 0 ? encrypted.get(start) : 0);
+            byte[] nonce = new byte[GCM_NONCE_LENGTH];
+            encrypted.position(start + 1);
+            encrypted.get(nonce);
+            return gcmCiphers.withCipher(Cipher.DECRYPT_MODE, secretKey,
+                    new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce), cipher -> cipher.doFinal(encrypted, out));
         } catch (Exception e) {
             throw new RuntimeException("Decryption error", e);
         }
     }
+
+    public int getEncryptedSize(int plainLength, SecretKey secretKey) {
+        if (format == EncryptionFormat.LEGACY_ECB) {
+            return (plainLength / ECB_BLOCK_SIZE + 1) * ECB_BLOCK_SIZE;
+        }
+        return GCM_PREFIX_LENGTH + plainLength + GCM_TAG_LENGTH;
+    }
+
+    private GCMParameterSpec newNonce() {
+        byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return new GCMParameterSpec(GCM_TAG_LENGTH * 8, nonce);
+    }
+
+    private static void checkGcmV1(int length, byte header) {
+        if (header != GCM_V1_HEADER || length < GCM_PREFIX_LENGTH + GCM_TAG_LENGTH) {
+            throw new IllegalArgumentException("Not an AES-GCM value");
+        }
+    }
+
+    private static void checkLegacyEcb(int length) {
+        if (length == 0 || length % ECB_BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Not a legacy ECB value");
+        }
+    }
 }
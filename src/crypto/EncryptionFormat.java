@@ -0,0 +1,12 @@
+package crypto;
+
+/**
+ * Ciphertext layout written and read by {@link CryptoService}. A service reads its own format
+ * only; {@link CryptoService#legacyEcb} gives the one for vaults from before AES-GCM.
+ */
+public enum EncryptionFormat {
+    /** Bare "AES" transformation (ECB, PKCS5 padding), no header. Deterministic and unauthenticated. */
+    LEGACY_ECB,
+    /** Version byte, 12-byte random nonce, then AES-GCM ciphertext with a 128-bit tag. */
+    GCM_V1
+}
@@ -0,0 +1,145 @@
+package crypto;
+
+import interfaces.ICryptoService;
+import model.KdfParameters;
+
+import java.net.InetAddress;
+import java.util.Locale;
+
+/**
+ * Measures key derivation on the current machine and picks the cost that makes
+ * one unlock take about the requested time.
+ *
+ * PBKDF2 is tuned by its iteration count. scrypt keeps r = 8, uses one lane per core
+ * (up to four) and is tuned by the power-of-two cost N, which also sets its memory use.
+ */
+public class KdfCalibrator {
+    // a fast host must not end up weaker than the fixed count used before calibration
+    static final int MIN_ITERATIONS = 65_536;
+    static final int MAX_ITERATIONS = 10_000_000;
+    static final int MIN_SCRYPT_COST = 1 << 14;
+    static final int MAX_SCRYPT_COST = 1 << 20;
+
+    private static final int PROBE_ITERATIONS = 20_000;
+    private static final int PROBE_RUNS = 5;
+    private static final int ROUNDING = 1_000;
+    private static final int SCRYPT_BLOCK_SIZE = 8;
+    private static final int MAX_SCRYPT_LANES = 4;
+
+    private final ICryptoService crypto;
+
+    public KdfCalibrator(ICryptoService crypto) {
+        this.crypto = crypto;
+    }
+
+    public Result calibrate(long targetMillis) {
+        return calibrate(KdfParameters.PBKDF2_SHA256, targetMillis);
+    }
+
+    public Result calibrate(String algorithm, long targetMillis) {
+        if (targetMillis <= 0) {
+            throw new IllegalArgumentException("Target must be positive");
+        }
+        if (KdfParameters.SCRYPT.equals(algorithm)) {
+            return calibrateScrypt(targetMillis);
+        }
+        if (!KdfParameters.PBKDF2_SHA256.equals(algorithm)) {
+            throw new IllegalArgumentException("Unsupported key derivation: " + algorithm);
+        }
+
+        double nanosPerIteration = measure(KdfParameters.pbkdf2(PROBE_ITERATIONS)) / PROBE_ITERATIONS;
+        long iterations = Math.round(targetMillis * 1_000_000.0 / nanosPerIteration / ROUNDING) * ROUNDING;
+        iterations = Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, iterations));
+
+        return new Result(hostName(), targetMillis, nanosPerIteration, KdfParameters.pbkdf2((int) iterations));
+    }
+
+    private Result calibrateScrypt(long targetMillis) {
+        int lanes = Math.max(1, Math.min(MAX_SCRYPT_LANES, Runtime.getRuntime().availableProcessors()));
+        double nanosPerCost = measure(KdfParameters.scrypt(MIN_SCRYPT_COST, SCRYPT_BLOCK_SIZE, lanes)) / MIN_SCRYPT_COST;
+
+        // never ask for more than a quarter of the heap, whatever the timing allows
+        long memoryLimit = Runtime.getRuntime().maxMemory() / 4;
+        int cost = MIN_SCRYPT_COST;
+        while (cost < MAX_SCRYPT_COST
+                && cost * 2 * nanosPerCost <= targetMillis * 1_000_000.0
+                && KdfParameters.scrypt(cost * 2, SCRYPT_BLOCK_SIZE, lanes).getMemoryBytes() <= memoryLimit) {
+            cost *= 2;
+        }
+
+        return new Result(hostName(), targetMillis, nanosPerCost, KdfParameters.scrypt(cost, SCRYPT_BLOCK_SIZE, lanes));
+    }
+
+    // best of several runs: the first ones include JIT warm-up and scheduling noise
+    private double measure(KdfParameters probe) {
+        byte[] salt = crypto.generateSalt();
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_RUNS; i++) {
+            long start = System.nanoTime();
+            crypto.deriveKey("calibration", salt, probe);
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        return bestNanos;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    public static final class Result {
+        private final String host;
+        private final long targetMillis;
+        private final double nanosPerUnit;
+        private final KdfParameters parameters;
+
+        /** @param nanosPerUnit time per PBKDF2 iteration, or per unit of scrypt cost N */
+        Result(String host, long targetMillis, double nanosPerUnit, KdfParameters parameters) {
+            this.host = host;
+            this.targetMillis = targetMillis;
+            this.nanosPerUnit = nanosPerUnit;
+            this.parameters = parameters;
+        }
+
+        public KdfParameters getParameters() {
+            return parameters;
+        }
+
+        public double getExpectedMillis() {
+            return units() * nanosPerUnit / 1_000_000.0;
+        }
+
+        public String toReport() {
+            if (isScrypt()) {
+                return String.format(Locale.ROOT,
+                        "Host:             %s%n" +
+                        "KDF:              %s%n" +
+                        "Measured cost:    %.1f ns/N%n" +
+                        "Target unlock:    %d ms%n" +
+                        "Chosen:           N=%d r=%d p=%d, %d MiB (~%.0f ms)%n",
+                        host, parameters.getAlgorithm(), nanosPerUnit, targetMillis,
+                        parameters.getCost(), parameters.getBlockSize(), parameters.getParallelism(),
+                        parameters.getMemoryBytes() >> 20, getExpectedMillis());
+            }
+            return String.format(Locale.ROOT,
+                    "Host:             %s%n" +
+                    "KDF:              %s%n" +
+                    "Measured cost:    %.1f ns/iteration%n" +
+                    "Target unlock:    %d ms%n" +
+                    "Chosen:           %d iterations (~%.0f ms)%n",
+                    host, parameters.getAlgorithm(), nanosPerUnit, targetMillis,
+                    parameters.getIterations(), getExpectedMillis());
+        }
+
+        private boolean isScrypt() {
+            return KdfParameters.SCRYPT.equals(parameters.getAlgorithm());
+        }
+
+        private long units() {
+            return isScrypt() ? parameters.getCost() : parameters.getIterations();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Pure-Java scrypt (RFC 7914).
+ *
+ * Each of the p lanes runs ROMix over its own 128 * r * N byte table, so lanes are spread
+ * across cores with a parallel stream. Those tables dominate the cost of a derivation;
+ * they are kept in a small pool and reused by later calls with the same N and r instead of
+ * being reallocated, and wiped after every use since they hold password-derived state.
+ */
+final class Scrypt {
+    private final ConcurrentLinkedQueue<int[]> tables = new ConcurrentLinkedQueue<>();
+
+    byte[] derive(byte[] password, byte[] salt, int n, int r, int p, int keyLength) {
+        validate(n, r, p);
+        int laneBytes = 128 * r;
+
+        try {
+            byte[] b = pbkdf2Sha256(password, salt, p * laneBytes);
+            int tableInts = 32 * r * n;
+
+            IntStream lanes = IntStream.range(0, p);
+            if (p > 1) lanes = lanes.parallel();
+            lanes.forEach(lane -> {
+                int[] table = acquireTable(tableInts);
+                try {
+                    smix(b, lane * laneBytes, r, n, table);
+                } finally {
+                    releaseTable(table, p);
+                }
+            });
+
+            byte[] key = pbkdf2Sha256(password, b, keyLength);
+            Arrays.fill(b, (byte) 0);
+            return key;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Key derivation failed", e);
+        }
+    }
+
+    private static void validate(int n, int r, int p) {
+        if (n < 2 || (n & (n - 1)) != 0) {
+            throw new IllegalArgumentException("N must be a power of two greater than 1");
+        }
+        if (r < 1 || p < 1) {
+            throw new IllegalArgumentException("r and p must be positive");
+        }
+        if ((long) 32 * r * n > Integer.MAX_VALUE - 8 || (long) 128 * r * p > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("scrypt parameters too large");
+        }
+    }
+
+    private int[] acquireTable(int size) {
+        int[] table = tables.poll();
+        while (table != null && table.length != size) {
+            table = tables.poll();
+        }
+        return table != null ? table : new int[size];
+    }
+
+    private void releaseTable(int[] table, int maxPooled) {
+        Arrays.fill(table, 0);
+        if (tables.size() < maxPooled) {
+            tables.offer(table);
+        }
+    }
+
+    private static void smix(byte[] b, int offset, int r, int n, int[] v) {
+        int blockInts = 32 * r;
+        int[] x = new int[blockInts];
+        int[] y = new int[blockInts];
+        int[] t = new int[16];
+
+        for (int i = 0; i < blockInts; i++) {
+            int j = offset + i * 4;
+            x[i] = (b[j] & 0xff) | (b[j + 1] & 0xff) << 8 | (b[j + 2] & 0xff) << 16 | (b[j + 3] & 0xff) << 24;
+        }
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * blockInts, blockInts);
+            blockMix(x, y, t, r);
+        }
+        for (int i = 0; i < n; i++) {
+            int j = x[(2 * r - 1) * 16] & (n - 1);
+            int base = j * blockInts;
+            for (int k = 0; k < blockInts; k++) {
+                x[k] ^= v[base + k];
+            }
+            blockMix(x, y, t, r);
+        }
+
+        for (int i = 0; i < blockInts; i++) {
+            int j = offset + i * 4;
+            b[j] = (byte) x[i];
+            b[j + 1] = (byte) (x[i] >>> 8);
+            b[j + 2] = (byte) (x[i] >>> 16);
+            b[j + 3] = (byte) (x[i] >>> 24);
+        }
+        Arrays.fill(x, 0);
+        Arrays.fill(y, 0);
+        Arrays.fill(t, 0);
+    }
+
+    // BlockMix_salsa20/8: b is replaced by the mixed block, y and t are scratch
+    private static void blockMix(int[] b, int[] y, int[] t, int r) {
+        System.arraycopy(b, (2 * r - 1) * 16, t, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) {
+                t[k] ^= b[i * 16 + k];
+            }
+            salsa20_8(t);
+            // even sub-blocks go to the first half, odd ones to the second
+            int target = (i & 1) == 0 ? (i >> 1) * 16 : (r + (i >> 1)) * 16;
+            System.arraycopy(t, 0, y, target, 16);
+        }
+        System.arraycopy(y, 0, b, 0, 32 * r);
+    }
+
+    private static void salsa20_8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    // PBKDF2-HMAC-SHA256 with a single iteration, as scrypt uses it on both ends
+    private static byte[] pbkdf2Sha256(byte[] password, byte[] salt, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        // SecretKeySpec rejects an empty key; HMAC pads short keys with zeros to the 64-byte
+        // block, so a zero block is the same key and keeps the empty password of RFC 7914 valid
+        mac.init(new SecretKeySpec(password.length == 0 ? new byte[64] : password, "HmacSHA256"));
+
+        byte[] out = new byte[length];
+        byte[] counter = new byte[4];
+        for (int block = 1, offset = 0; offset < length; block++, offset += 32) {
+            counter[0] = (byte) (block >>> 24);
+            counter[1] = (byte) (block >>> 16);
+            counter[2] = (byte) (block >>> 8);
+            counter[3] = (byte) block;
+            mac.update(salt);
+            byte[] u = mac.doFinal(counter);
+            System.arraycopy(u, 0, out, offset, Math.min(32, length - offset));
+        }
+        return out;
+    }
+}
@@ -1,10 +1,26 @@
 package interfaces;
 
+import model.KdfParameters;
+
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
 
 public interface ICryptoService {
     SecretKey deriveKey(String password, byte[] salt);
+    SecretKey deriveKey(String password, byte[] salt, KdfParameters params);
+    KdfParameters calibrateKdf(long targetMillis);
     byte[] generateSalt();
     String encrypt(String plain, SecretKey secretKey);
     String decrypt(String encoded, SecretKey secretKey);
+    byte[] encrypt(byte[] plain, SecretKey secretKey);
+    byte[] decrypt(byte[] encrypted, SecretKey secretKey);
+    int encrypt(ByteBuffer plain, ByteBuffer out, SecretKey secretKey);
+    int decrypt(ByteBuffer encrypted, ByteBuffer out, SecretKey secretKey);
+    int getEncryptedSize(int plainLength, SecretKey secretKey);
+    ICryptoService legacyEcb();
+    SecretKey generateDataKey();
+    byte[] wrapKey(SecretKey dataKey, SecretKey wrappingKey);
+    SecretKey unwrapKey(byte[] wrappedKey, SecretKey wrappingKey);
+    byte[] computeKeyCheck(SecretKey key);
+    boolean verifyKeyCheck(SecretKey key, byte[] keyCheck);
 }
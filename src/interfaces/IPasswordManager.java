@@ -1,7 +1,5 @@
 package interfaces;
 
-import model.PasswordEntry;
-
 import java.util.Scanner;
 
 public interface IPasswordManager {
@@ -14,7 +12,8 @@ public interface IPasswordManager {
     void addPassword(Scanner scanner);
     void viewPasswords();
     void searchPassword(Scanner scanner);
+    void findByUsername(Scanner scanner);
     void updateEntry(Scanner scanner);
-    void importEntry(PasswordEntry entry, String newMasterPassword);
     void updateMasterPassword();
+    void rotateDataKey();
 }
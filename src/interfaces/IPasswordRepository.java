@@ -1,18 +1,157 @@
 package interfaces;
 
+import model.EditDistance;
+import model.EntryBatch;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.KdfParameters;
 import model.PasswordEntry;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
-public interface IPasswordRepository {
+public interface IPasswordRepository extends EntryBatch.Target {
+    // Repositories that limit the size of an entry throw IllegalArgumentException for larger ones.
     boolean add(PasswordEntry passwordEntry);
     boolean remove(String accountName);
-    boolean update(String accountName, String username, String encryptedPassword);
+    boolean update(String accountName, String username, byte[] encryptedPassword);
     List<PasswordEntry> find(String accountName);
+
+    /** The entry of exactly this account, or null. */
+    default PasswordEntry get(String accountName) {
+        return getEntries().get(accountName);
+    }
+
+    // Bulk forms of the above; like them they do not save. @return how many took effect
+    default int addAll(Collection<PasswordEntry> entries) {
+        EntryBatch batch = new EntryBatch();
+        entries.forEach(batch::add);
+        return batch.applyTo(this);
+    }
+
+    default int removeAll(Collection<String> accountNames) {
+        EntryBatch batch = new EntryBatch();
+        accountNames.forEach(batch::remove);
+        return batch.applyTo(this);
+    }
+
+    /** Updates the accounts of the given entries that exist. */
+    default int updateAll(Collection<PasswordEntry> entries) {
+        EntryBatch batch = new EntryBatch();
+        entries.forEach(entry -> batch.update(entry.getAccountName(), entry.getUsername(), entry.getEncryptedPassword()));
+        return batch.applyTo(this);
+    }
+
+    /**
+     * Collects changes in a batch, applies them together and saves once.
+     * If collecting throws, nothing is applied; if applying throws, the changes made so far are
+     * undone and nothing is saved. Readers on other threads may still see part of the batch until
+     * then. Repositories that can publish all changes as one step override this, so that none do.
+     *
+     * @return how many of the changes took effect
+     */
+    default int batch(Consumer<EntryBatch> changes) {
+        EntryBatch batch = new EntryBatch();
+        changes.accept(batch);
+        int applied = batch.applyTo(this);
+        save();
+        return applied;
+    }
+
+    /**
+     * Entries whose account name is within maxDistance edits of the given one, closest first.
+     * The default compares every account; repositories with a metric index override it.
+     */
+    default List<PasswordEntry> fuzzyFind(String accountName, int maxDistance) {
+        Map<PasswordEntry, Integer> distances = new HashMap<>();
+        for (PasswordEntry entry : getEntries().values()) {
+            int distance = EditDistance.between(accountName, entry.getAccountName());
+            if (distance <= maxDistance) {
+                distances.put(entry, distance);
+            }
+        }
+        List<PasswordEntry> found = new ArrayList<>(distances.keySet());
+        found.sort(Comparator.comparing((PasswordEntry entry) -> distances.get(entry)).thenComparing(PasswordEntry::getAccountName));
+        return found;
+    }
+
+    /** Entries whose username is exactly the given one, by account name. The default scans every entry. */
+    default List<PasswordEntry> findByUsername(String username) {
+        List<PasswordEntry> found = new ArrayList<>();
+        for (PasswordEntry entry : getEntries().values()) {
+            if (username != null && username.equals(entry.getUsername())) {
+                found.add(entry);
+            }
+        }
+        found.sort(Comparator.comparing(PasswordEntry::getAccountName));
+        return found;
+    }
+
+    /** Entries whose account name starts with the prefix, by account name. The default scans every entry. */
+    default List<PasswordEntry> findByPrefix(String prefix) {
+        List<PasswordEntry> found = new ArrayList<>();
+        for (PasswordEntry entry : getEntries().values()) {
+            if (entry.getAccountName().startsWith(prefix)) {
+                found.add(entry);
+            }
+        }
+        found.sort(Comparator.comparing(PasswordEntry::getAccountName));
+        return found;
+    }
+
+    /**
+     * Entries with account names from {@code from} (inclusive) up to {@code to} (exclusive), by
+     * account name; a null bound leaves that side open. The default scans every entry.
+     */
+    default List<PasswordEntry> findRange(String from, String to) {
+        List<PasswordEntry> found = new ArrayList<>();
+        for (PasswordEntry entry : getEntries().values()) {
+            String accountName = entry.getAccountName();
+            if ((from == null || accountName.compareTo(from) >= 0) && (to == null || accountName.compareTo(to) < 0)) {
+                found.add(entry);
+            }
+        }
+        found.sort(Comparator.comparing(PasswordEntry::getAccountName));
+        return found;
+    }
+
+    /**
+     * Entries matching the query, a page at a time, so callers need not hold the whole vault.
+     * The default reads {@link #getEntries()}; for ordered queries it first sorts the account
+     * names. Repositories that keep entries sorted override this to seek straight to each page.
+     */
+    default EntryCursor cursor(EntryQuery query) {
+        return EntryCursor.scanning(getEntries(), query);
+    }
+
+    /**
+     * Whether entries are kept in account-name order, so an ordered cursor costs no more than an
+     * unordered one. Otherwise every page of an ordered cursor scans the whole vault.
+     */
+    default boolean isAccountOrdered() {
+        return false;
+    }
+
     void save();
+
+    /** Blocks until every save so far is on disk, for repositories that write in the background. */
+    default void flush() {
+    }
     byte[] getSalt();
     void setSalt(byte[] salt);
+    byte[] getWrappedKey();
+    void setWrappedKey(byte[] wrappedKey);
+    byte[] getKeyCheck();
+    void setKeyCheck(byte[] keyCheck);
+    KdfParameters getKdfParameters();
+    void setKdfParameters(KdfParameters kdfParameters);
+    boolean isEntriesAuthenticated();
+    void setEntriesAuthenticated(boolean entriesAuthenticated);
     String getEncryptedMasterPassword();
     void setEncryptedMasterPassword(String encryptedMasterPassword);
     Map<String, PasswordEntry> getEntries();
@@ -1,22 +1,38 @@
 package interfaces;
 
 import model.PasswordEntry;
+import model.VaultHeader;
 import persistence.PersistenceService;
 
 import java.util.HashMap;
+import java.util.Map;
 
 public interface IPersistenceService {
-    void save(byte[] salt, String encryptedMasterPassword, HashMap<String, PasswordEntry> entries);
+    // The entries are read before save() returns and the map is not kept, so the caller may change it afterwards.
+    void save(VaultHeader header, Map<String, PasswordEntry> entries);
     PersistenceService.LoadedData load();
 
+    // Change notifications from the repository, made before the save() that makes them durable.
+    // Services that rewrite the whole vault on save can ignore them.
+    default void recordPut(PasswordEntry entry) {
+    }
+
+    default void recordRemove(String accountName) {
+    }
+
+    default void recordClear() {
+    }
+
+    /** Blocks until every save so far is durable; services that write inside save() have nothing to do. */
+    default void flush() {
+    }
+
     class LoadedData {
-        public final byte[] salt;
-        public final String encryptedMasterPassword;
+        public final VaultHeader header;
         public final HashMap<String, PasswordEntry> entries;
 
-        public LoadedData(byte[] salt, String encryptedMasterPassword, HashMap<String,PasswordEntry> entries) {
-            this.salt = salt;
-            this.encryptedMasterPassword = encryptedMasterPassword;
+        public LoadedData(VaultHeader header, HashMap<String,PasswordEntry> entries) {
+            this.header = header;
             this.entries = entries;
         }
     }
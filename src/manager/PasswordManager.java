@@ -3,21 +3,28 @@ package manager;
 import interfaces.ICryptoService;
 import interfaces.IPasswordManager;
 import interfaces.IPasswordRepository;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.KdfParameters;
 import model.PasswordEntry;
 
 import javax.crypto.SecretKey;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
+import java.util.stream.Collectors;
 
 public class PasswordManager implements IPasswordManager {
     private static final String INIT_MESSAGE = "No master password found. Setting up a new master password.";
+    private static final long TARGET_UNLOCK_MILLIS = 250;
+    private static final int MAX_SUGGESTIONS = 5;
 
     private final ICryptoService crypto;
     private final IPasswordRepository repository;
 
     public SecretKey secretKey;
+    private SecretKey masterKey;
 
     public PasswordManager(ICryptoService crypto, IPasswordRepository repository) {
         this.crypto = crypto;
@@ -31,7 +38,7 @@ public class PasswordManager implements IPasswordManager {
     }
 
     public boolean initialize() {
-        if (repository.getEncryptedMasterPassword() == null) {
+        if (repository.getKeyCheck() == null && repository.getEncryptedMasterPassword() == null) {
             System.out.println(INIT_MESSAGE);
             setMasterPassword();
         } else return authenticate();
@@ -43,11 +50,11 @@ public class PasswordManager implements IPasswordManager {
         Scanner scanner = new Scanner(System.in);
         for (int i = 0; i < 3; i++) {
             String enteredPassword = prompt(scanner, "Enter Master Password: ");
-            secretKey = crypto.deriveKey(enteredPassword, repository.getSalt());
+            SecretKey enteredKey = crypto.deriveKey(enteredPassword, repository.getSalt(), repository.getKdfParameters());
 
-            String encryptedEnteredPassword = crypto.encrypt(enteredPassword, secretKey);
-
-            if (encryptedEnteredPassword.equals(repository.getEncryptedMasterPassword())) {
+            if (isMasterKey(enteredPassword, enteredKey)) {
+                masterKey = enteredKey;
+                secretKey = unlockDataKey();
                 System.out.println("Access Granted.");
                 return true;
             }
@@ -59,6 +66,77 @@ public class PasswordManager implements IPasswordManager {
         return false;
     }
 
+    // A wrong password costs one key derivation plus an HMAC compared in constant time.
+    // Vaults created before the key check only have the master password encrypted under its own key.
+    private boolean isMasterKey(String enteredPassword, SecretKey enteredKey) {
+        byte[] keyCheck = repository.getKeyCheck();
+        if (keyCheck != null) {
+            return crypto.verifyKeyCheck(enteredKey, keyCheck);
+        }
+
+        try {
+            String stored = entryCrypto().decrypt(repository.getEncryptedMasterPassword(), enteredKey);
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), enteredPassword.getBytes(StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    // Entries are encrypted with a data key wrapped by the master key. Vaults created before
+    // that used the master key directly, so it becomes their data key on first unlock.
+    private SecretKey unlockDataKey() {
+        boolean upgraded = false;
+        if (repository.getKeyCheck() == null) {
+            repository.setKeyCheck(crypto.computeKeyCheck(masterKey));
+            repository.setEncryptedMasterPassword(null);
+            upgraded = true;
+        }
+
+        SecretKey dataKey;
+        byte[] wrappedKey = repository.getWrappedKey();
+        if (wrappedKey != null) {
+            dataKey = crypto.unwrapKey(wrappedKey, masterKey);
+        } else {
+            dataKey = masterKey;
+            repository.setWrappedKey(crypto.wrapKey(masterKey, masterKey));
+            upgraded = true;
+        }
+
+        if (!repository.isEntriesAuthenticated() && migrateLegacyEntries(dataKey)) {
+            upgraded = true;
+        }
+
+        if (upgraded) {
+            repository.save();
+        }
+        return dataKey;
+    }
+
+    // A vault without the AES-GCM marker was written before AES-GCM, so all of its values are ECB.
+    // They are rewritten as AES-GCM under the same key; if one cannot be decrypted, the vault is
+    // put back as it was, all ECB, and the next unlock tries again.
+    private boolean migrateLegacyEntries(SecretKey dataKey) {
+        ICryptoService legacy = crypto.legacyEcb();
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, legacy, dataKey, crypto, dataKey);
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+        engine.run(checkpoint, null);
+
+        if (!checkpoint.getFailedAccounts().isEmpty()) {
+            ReEncryptionEngine rollback = new ReEncryptionEngine(repository, crypto, dataKey, legacy, dataKey);
+            rollback.run(rollback.newCheckpoint(), null);
+            System.out.println("Could not decrypt: " + checkpoint.getFailedAccounts().keySet()
+                    + ". The vault keeps its legacy AES/ECB format.");
+            return false;
+        }
+        repository.setEntriesAuthenticated(true);
+        return true;
+    }
+
+    // the service for the format the vault's entries, and a pre-key-check master password, are in
+    private ICryptoService entryCrypto() {
+        return repository.isEntriesAuthenticated() ? crypto : crypto.legacyEcb();
+    }
+
     public void setMasterPassword() {
         while (true) {
             Scanner scanner = new Scanner(System.in);
@@ -78,8 +156,19 @@ public class PasswordManager implements IPasswordManager {
             byte[]salt = crypto.generateSalt();
             repository.setSalt(salt);
 
-            secretKey = crypto.deriveKey(masterPassword, salt);
-            repository.setEncryptedMasterPassword(crypto.encrypt(masterPassword, secretKey));
+            KdfParameters kdf = crypto.calibrateKdf(TARGET_UNLOCK_MILLIS);
+            repository.setKdfParameters(kdf);
+
+            masterKey = crypto.deriveKey(masterPassword, salt, kdf);
+            repository.setKeyCheck(crypto.computeKeyCheck(masterKey));
+            repository.setEncryptedMasterPassword(null);
+
+            // a new master password only re-wraps the data key; entries stay as they are
+            if (secretKey == null) {
+                secretKey = crypto.generateDataKey();
+                repository.setEntriesAuthenticated(true);
+            }
+            repository.setWrappedKey(crypto.wrapKey(secretKey, masterKey));
 
             repository.save();
             break;
@@ -97,7 +186,9 @@ public class PasswordManager implements IPasswordManager {
             System.out.println("4. Search Account");
             System.out.println("5. Update Entry");
             System.out.println("6. Update master password");
-            System.out.println("7. Exit");
+            System.out.println("7. Rotate data key");
+            System.out.println("8. Find accounts by username");
+            System.out.println("9. Exit");
             System.out.print("Choose an option: ");
 
             try {
@@ -115,38 +206,66 @@ public class PasswordManager implements IPasswordManager {
                         break;
                     case 6: updateMasterPassword();
                         break;
-                    case 7: { return; }
+                    case 7: rotateDataKey();
+                        break;
+                    case 8: findByUsername(scanner);
+                        break;
+                    case 9: {
+                        repository.flush();
+                        return;
+                    }
                     default : System.out.println("Invalid option. Try again.");
                 }
             } catch (NumberFormatException e) {
                 System.out.println("You did not enter a number. Try again.");
+            } catch (RuntimeException e) {
+                // e.g. a failed save; the vault on disk is still the previous one
+                System.out.println(e.getMessage());
             }
 
         }
     }
 
     public void updateMasterPassword() {
-        Map<String, PasswordEntry> entriesCopy = new HashMap<>(repository.getEntries());
-
         setMasterPassword();
-        repository.dump();
+    }
 
-        entriesCopy.forEach((key, value) -> {
-            importEntry(value, repository.getEncryptedMasterPassword());
-        });
+    /**
+     * Replaces the data key, e.g. after it may have leaked, and re-encrypts every entry under it.
+     * Entries still in the legacy ECB format are rewritten as AES-GCM on the way, and from then on
+     * the vault reads AES-GCM values only. If any entry cannot be decrypted, the rotation is
+     * undone and the old key stays, as dropping it would leave that entry unreadable for good.
+     */
+    public void rotateDataKey() {
+        SecretKey newKey = crypto.generateDataKey();
+        ICryptoService source = entryCrypto();
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, source, secretKey, crypto, newKey);
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+
+        engine.run(checkpoint, (done, total) -> System.out.print("\rRe-encrypting entries: " + done + "/" + total));
+        System.out.println();
+
+        if (!checkpoint.getFailedAccounts().isEmpty()) {
+            // put the entries already moved back under the old key; nothing has been saved yet
+            ReEncryptionEngine rollback = new ReEncryptionEngine(repository, crypto, newKey, source, secretKey);
+            rollback.run(rollback.newCheckpoint(), null);
+            System.out.println("Could not decrypt: " + checkpoint.getFailedAccounts().keySet()
+                    + ". Data key not rotated; fix or remove these entries and try again.");
+            return;
+        }
 
+        secretKey = newKey;
+        repository.setWrappedKey(crypto.wrapKey(secretKey, masterKey));
+        repository.setEntriesAuthenticated(true);
         repository.save();
-    }
-
-    public void importEntry(PasswordEntry entry, String newMasterPassword) {
-        repository.add(new PasswordEntry(entry.getAccountName(), entry.getUsername(), newMasterPassword));
+        System.out.println("Data key rotated.");
     }
 
     public void addPassword(Scanner scanner) {
         String account = prompt(scanner, "Enter Account Name: ");
 
-        List<PasswordEntry> found = repository.find(account);
-        if (found != null && !found.isEmpty()) {
+        // a key lookup; find would match substrings and scan every entry
+        if (repository.get(account) != null) {
             System.out.println("Account with that name already exists!");
             return;
         }
@@ -158,8 +277,15 @@ public class PasswordManager implements IPasswordManager {
             System.out.println("All fields are required!");
         }
         else {
-            String encrypted = crypto.encrypt(pass, secretKey);
-            System.out.println(repository.add(new PasswordEntry(account, user, encrypted)) ? "Password added successfully.": "Password not added");
+            byte[] encrypted = entryCrypto().encrypt(pass.getBytes(StandardCharsets.UTF_8), secretKey);
+            boolean added;
+            try {
+                added = repository.add(new PasswordEntry(account, user, encrypted));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Password not added: " + e.getMessage());
+                return;
+            }
+            System.out.println(added ? "Password added successfully.": "Password not added");
             repository.save();
         }
     }
@@ -175,8 +301,12 @@ public class PasswordManager implements IPasswordManager {
     }
 
     public void viewPasswords() {
-        Map<String, PasswordEntry> entries = repository.getEntries();
-        entries.values().forEach(this::printEntry);
+        // page by page, so a large vault is never held in full; sorted only where that is free
+        EntryQuery query = repository.isAccountOrdered() ? EntryQuery.all() : EntryQuery.all().unordered();
+        EntryCursor cursor = repository.cursor(query);
+        for (List<PasswordEntry> page = cursor.nextPage(); !page.isEmpty(); page = cursor.nextPage()) {
+            page.forEach(this::printEntry);
+        }
     }
 
     public void searchPassword(Scanner scanner) {
@@ -191,6 +321,30 @@ public class PasswordManager implements IPasswordManager {
         }
         else {
             System.out.println("Entry not found.");
+            suggestAccounts(account);
+        }
+    }
+
+    // names only: a near miss may be a different account than the one meant
+    private void suggestAccounts(String account) {
+        int maxDistance = account.length() <= 4 ? 1 : 2;
+        List<PasswordEntry> similar = repository.fuzzyFind(account, maxDistance);
+        if (similar != null && !similar.isEmpty()) {
+            System.out.println("Did you mean: " + similar.stream()
+                    .limit(MAX_SUGGESTIONS)
+                    .map(PasswordEntry::getAccountName)
+                    .collect(Collectors.joining(", ")) + "?");
+        }
+    }
+
+    public void findByUsername(Scanner scanner) {
+        String username = prompt(scanner, "Enter Username: ");
+
+        List<PasswordEntry> entries = repository.findByUsername(username);
+        if (entries == null || entries.isEmpty()) {
+            System.out.println("No accounts use that username.");
+        } else {
+            entries.forEach(entry -> System.out.println(entry.getAccountName()));
         }
     }
 
@@ -203,9 +357,13 @@ public class PasswordManager implements IPasswordManager {
         else {
             String user = prompt(scanner, "Enter New Username: ");
             String pass = prompt(scanner, "Enter New Password: ");
-            String encrypted = crypto.encrypt(pass, secretKey);
-            if(repository.update(account, user, encrypted)) {
-                System.out.println("Account updated!");
+            byte[] encrypted = entryCrypto().encrypt(pass.getBytes(StandardCharsets.UTF_8), secretKey);
+            try {
+                if(repository.update(account, user, encrypted)) {
+                    System.out.println("Account updated!");
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Account not updated: " + e.getMessage());
             }
         }
     }
@@ -216,7 +374,7 @@ public class PasswordManager implements IPasswordManager {
     }
 
     private void printEntry(PasswordEntry entry) {
-        String decrypted = crypto.decrypt(entry.getEncryptedPassword(), secretKey);
+        String decrypted = new String(entryCrypto().decrypt(entry.getEncryptedPassword(), secretKey), StandardCharsets.UTF_8);
         System.out.println("\nAccount: " + entry.getAccountName());
         System.out.println("Username: " + entry.getUsername());
         System.out.println("Password: " + decrypted);
@@ -0,0 +1,228 @@
+package manager;
+
+import interfaces.ICryptoService;
+import interfaces.IPasswordRepository;
+import model.PasswordEntry;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-encrypts every entry of a repository from one key/cipher to another, in parallel.
+ *
+ * Accounts are split into fixed-size batches that run on a fork/join pool. Each batch
+ * decrypts and re-encrypts without holding any lock and then applies its results to the
+ * repository in one synchronized step. Finished batches are recorded in a {@link Checkpoint},
+ * so an interrupted or partially failed run is retryable within the process by passing the
+ * same checkpoint to {@link #run} again. Entries that already decrypt with the target key are
+ * skipped, which keeps a re-run idempotent even without the checkpoint.
+ *
+ * The engine does not persist anything, the checkpoint included; callers save the repository
+ * once it is complete. Until then the vault file keeps the old encryption, so after a crash
+ * there is nothing to resume and the next run starts over.
+ */
+public class ReEncryptionEngine {
+    public static final int DEFAULT_BATCH_SIZE = 512;
+
+    /** Called after every batch; may be called from several pool threads at once. */
+    public interface ProgressListener {
+        void onProgress(int completed, int total);
+    }
+
+    private final IPasswordRepository repository;
+    private final ICryptoService sourceCrypto;
+    private final SecretKey sourceKey;
+    private final ICryptoService targetCrypto;
+    private final SecretKey targetKey;
+    private final int batchSize;
+    private final ForkJoinPool pool;
+
+    public ReEncryptionEngine(IPasswordRepository repository, ICryptoService sourceCrypto, SecretKey sourceKey,
+                              ICryptoService targetCrypto, SecretKey targetKey) {
+        this(repository, sourceCrypto, sourceKey, targetCrypto, targetKey, DEFAULT_BATCH_SIZE, ForkJoinPool.commonPool());
+    }
+
+    public ReEncryptionEngine(IPasswordRepository repository, ICryptoService sourceCrypto, SecretKey sourceKey,
+                              ICryptoService targetCrypto, SecretKey targetKey, int batchSize, ForkJoinPool pool) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.repository = repository;
+        this.sourceCrypto = sourceCrypto;
+        this.sourceKey = sourceKey;
+        this.targetCrypto = targetCrypto;
+        this.targetKey = targetKey;
+        this.batchSize = batchSize;
+        this.pool = pool;
+    }
+
+    /** Captures the accounts to process; entries added afterwards are not part of this run. */
+    public Checkpoint newCheckpoint() {
+        List<String> accounts;
+        synchronized (repository) {
+            accounts = new ArrayList<>(repository.getEntries().keySet());
+        }
+        Collections.sort(accounts);
+        return new Checkpoint(accounts, batchSize);
+    }
+
+    /**
+     * Processes every batch not yet recorded in the checkpoint.
+     *
+     * @return true when all batches are done and no entry failed
+     */
+    public boolean run(Checkpoint checkpoint, ProgressListener listener) {
+        if (checkpoint.batchSize != batchSize) {
+            throw new IllegalArgumentException("Checkpoint was created with a different batch size");
+        }
+        AtomicInteger completed = new AtomicInteger(checkpoint.getCompletedEntries());
+        // once per run: for some repositories this is a copy of the whole vault
+        Map<String, PasswordEntry> entries;
+        synchronized (repository) {
+            entries = repository.getEntries();
+        }
+        pool.invoke(new BatchRange(checkpoint, entries, 0, checkpoint.batchCount(), completed, listener));
+        return checkpoint.isComplete() && checkpoint.getFailedAccounts().isEmpty();
+    }
+
+    private void runBatch(Checkpoint checkpoint, Map<String, PasswordEntry> entries, int batch,
+                          AtomicInteger completed, ProgressListener listener) {
+        if (checkpoint.isBatchDone(batch)) return;
+
+        List<String> accounts = checkpoint.batch(batch);
+        List<PasswordEntry> results = new ArrayList<>(accounts.size());
+
+        // repositories are not safe for reads concurrent with writes, and reads may reorder caches
+        List<PasswordEntry> sources = new ArrayList<>(accounts.size());
+        synchronized (repository) {
+            for (String account : accounts) {
+                PasswordEntry entry = entries.get(account);
+                if (entry != null) { // null if removed since the checkpoint was taken
+                    sources.add(entry);
+                }
+            }
+        }
+
+        for (PasswordEntry entry : sources) {
+            String account = entry.getAccountName();
+            try {
+                byte[] plain = sourceCrypto.decrypt(entry.getEncryptedPassword(), sourceKey);
+                results.add(new PasswordEntry(account, entry.getUsername(), targetCrypto.encrypt(plain, targetKey)));
+            } catch (RuntimeException e) {
+                if (!isAlreadyReEncrypted(entry)) {
+                    checkpoint.failed.put(account, e);
+                }
+            }
+        }
+
+        synchronized (repository) {
+            repository.updateAll(results);
+        }
+        checkpoint.markBatchDone(batch);
+
+        int done = completed.addAndGet(accounts.size());
+        if (listener != null) {
+            listener.onProgress(done, checkpoint.accounts.size());
+        }
+    }
+
+    private boolean isAlreadyReEncrypted(PasswordEntry entry) {
+        try {
+            targetCrypto.decrypt(entry.getEncryptedPassword(), targetKey);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private class BatchRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Checkpoint checkpoint;
+        private final Map<String, PasswordEntry> entries;
+        private final int from;
+        private final int to;
+        private final AtomicInteger completed;
+        private final ProgressListener listener;
+
+        BatchRange(Checkpoint checkpoint, Map<String, PasswordEntry> entries, int from, int to,
+                   AtomicInteger completed, ProgressListener listener) {
+            this.checkpoint = checkpoint;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.completed = completed;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) runBatch(checkpoint, entries, from, completed, listener);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchRange(checkpoint, entries, from, mid, completed, listener),
+                    new BatchRange(checkpoint, entries, mid, to, completed, listener));
+        }
+    }
+
+    /** Progress of one re-encryption pass, in memory only: the account snapshot and which batches are done. */
+    public static final class Checkpoint {
+        private final List<String> accounts;
+        private final int batchSize;
+        private final BitSet doneBatches = new BitSet();
+        private final Map<String, RuntimeException> failed = new ConcurrentHashMap<>();
+
+        private Checkpoint(List<String> accounts, int batchSize) {
+            this.accounts = accounts;
+            this.batchSize = batchSize;
+        }
+
+        public synchronized boolean isComplete() {
+            return doneBatches.cardinality() == batchCount();
+        }
+
+        public synchronized int getCompletedEntries() {
+            int done = 0;
+            for (int batch = doneBatches.nextSetBit(0); batch >= 0; batch = doneBatches.nextSetBit(batch + 1)) {
+                done += batch(batch).size();
+            }
+            return done;
+        }
+
+        public int getTotalEntries() {
+            return accounts.size();
+        }
+
+        /** Accounts whose ciphertext could be decrypted with neither the source nor the target key. */
+        public Map<String, RuntimeException> getFailedAccounts() {
+            return Collections.unmodifiableMap(failed);
+        }
+
+        int batchCount() {
+            return (accounts.size() + batchSize - 1) / batchSize;
+        }
+
+        List<String> batch(int batch) {
+            int from = batch * batchSize;
+            return accounts.subList(from, Math.min(from + batchSize, accounts.size()));
+        }
+
+        synchronized boolean isBatchDone(int batch) {
+            return doneBatches.get(batch);
+        }
+
+        synchronized void markBatchDone(int batch) {
+            doneBatches.set(batch);
+        }
+    }
+}
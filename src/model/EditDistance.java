@@ -0,0 +1,33 @@
+package model;
+
+/** Levenshtein distance between account names, for ranking near misses of a search. */
+public final class EditDistance {
+
+    private EditDistance() {
+    }
+
+    /** Insertions, deletions and substitutions needed to turn one string into the other. */
+    public static int between(String a, String b) {
+        if (a.length() < b.length()) {
+            String swap = a;
+            a = b;
+            b = swap;
+        }
+        // one row over the shorter string
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            row[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            char c = a.charAt(i - 1);
+            int diagonal = row[0];
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int above = row[j];
+                row[j] = c == b.charAt(j - 1) ? diagonal : 1 + Math.min(diagonal, Math.min(above, row[j - 1]));
+                diagonal = above;
+            }
+        }
+        return row[b.length()];
+    }
+}
@@ -0,0 +1,108 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes collected for a repository's {@code batch}; nothing is applied while they are
+ * being collected. They are applied in the order they were made, each with the meaning of the
+ * single-entry method of the same name.
+ *
+ * If a change throws, for instance an entry too large for the repository, the changes already
+ * applied are undone in reverse order before the exception is passed on, so the repository is
+ * left as it was.
+ */
+public final class EntryBatch {
+    private static final int ADD = 0;
+    private static final int UPDATE = 1;
+    private static final int REMOVE = 2;
+
+    private final List<Change> changes = new ArrayList<>();
+
+    public EntryBatch add(PasswordEntry entry) {
+        changes.add(new Change(ADD, entry.getAccountName(), entry));
+        return this;
+    }
+
+    public EntryBatch update(String accountName, String username, byte[] encryptedPassword) {
+        changes.add(new Change(UPDATE, accountName, new PasswordEntry(accountName, username, encryptedPassword)));
+        return this;
+    }
+
+    public EntryBatch remove(String accountName) {
+        changes.add(new Change(REMOVE, accountName, null));
+        return this;
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * What a batch is applied to; repositories and the edits of
+     * {@code VersionedPasswordRepository} are both targets.
+     */
+    public interface Target {
+        PasswordEntry get(String accountName);
+
+        boolean add(PasswordEntry entry);
+
+        boolean update(String accountName, String username, byte[] encryptedPassword);
+
+        boolean remove(String accountName);
+    }
+
+    /** @return how many of the changes took effect */
+    public int applyTo(Target target) {
+        List<Change> undo = new ArrayList<>();
+        int applied = 0;
+        try {
+            for (Change change : changes) {
+                PasswordEntry previous = change.kind == ADD ? null : target.get(change.accountName);
+                if (!apply(target, change)) {
+                    continue;
+                }
+                applied++;
+                undo.add(change.kind == ADD ? new Change(REMOVE, change.accountName, null)
+                        : change.kind == UPDATE ? new Change(UPDATE, change.accountName, previous)
+                        : new Change(ADD, change.accountName, previous));
+            }
+        } catch (RuntimeException e) {
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                Change change = undo.get(i);
+                if (change.kind == REMOVE || change.entry != null) {
+                    try {
+                        apply(target, change);
+                    } catch (RuntimeException undoFailure) {
+                        e.addSuppressed(undoFailure);
+                    }
+                }
+            }
+            throw e;
+        }
+        return applied;
+    }
+
+    private static boolean apply(Target target, Change change) {
+        switch (change.kind) {
+            case ADD:
+                return target.add(change.entry);
+            case UPDATE:
+                return target.update(change.accountName, change.entry.getUsername(), change.entry.getEncryptedPassword());
+            default:
+                return target.remove(change.accountName);
+        }
+    }
+
+    private static final class Change {
+        final int kind;
+        final String accountName;
+        final PasswordEntry entry;
+
+        Change(int kind, String accountName, PasswordEntry entry) {
+            this.kind = kind;
+            this.accountName = accountName;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Entries matching an {@link EntryQuery}, fetched one page at a time.
+ *
+ * Only the current page of entries is held, so walking a vault of any size takes memory for one
+ * page.
+ * Use it either page by page with {@link #nextPage()} or entry by entry as an iterator.
+ * {@link #position()} names the last account handed out, from which a later ordered query can
+ * carry on.
+ */
+public final class EntryCursor implements Iterator<PasswordEntry> {
+
+    private interface PageSource {
+        // up to limit matching entries after the given account (null at the start)
+        List<PasswordEntry> fetch(String after, int limit);
+    }
+
+    private final PageSource source;
+    private final int pageSize;
+    private String position;
+    private List<PasswordEntry> page = Collections.emptyList();
+    private int index;
+    private boolean exhausted;
+
+    private EntryCursor(PageSource source, EntryQuery query) {
+        this.source = source;
+        this.pageSize = query.getPageSize();
+        this.position = query.getAfter();
+    }
+
+    /**
+     * Cursor over entries the repository can produce lazily: in account-name order starting after
+     * {@link EntryQuery#getAfter()} for ordered queries, in any order otherwise.
+     */
+    public static EntryCursor over(Iterator<PasswordEntry> entries, EntryQuery query) {
+        return new EntryCursor((after, limit) -> {
+            List<PasswordEntry> found = new ArrayList<>();
+            while (found.size() < limit && entries.hasNext()) {
+                PasswordEntry entry = entries.next();
+                if (query.matches(entry)) {
+                    found.add(entry);
+                }
+            }
+            return found;
+        }, query);
+    }
+
+    /**
+     * Cursor over entries kept in no particular order. An unordered query reads them in one pass;
+     * an ordered one scans them once per page, keeping only the page's worth of smallest names
+     * after the last page, so memory stays bounded at the price of time.
+     */
+    public static EntryCursor scanning(Map<String, PasswordEntry> entries, EntryQuery query) {
+        if (!query.isOrdered()) {
+            return over(entries.values().iterator(), query);
+        }
+        return new EntryCursor((after, limit) -> {
+            // the largest name on top, so it is the one to drop when a smaller one turns up
+            PriorityQueue<PasswordEntry> smallest = new PriorityQueue<>(limit,
+                    Comparator.comparing(PasswordEntry::getAccountName).reversed());
+            for (PasswordEntry entry : entries.values()) {
+                if ((after != null && entry.getAccountName().compareTo(after) <= 0) || !query.matches(entry)) {
+                    continue;
+                }
+                if (smallest.size() < limit) {
+                    smallest.add(entry);
+                } else if (entry.getAccountName().compareTo(smallest.peek().getAccountName()) < 0) {
+                    smallest.poll();
+                    smallest.add(entry);
+                }
+            }
+            List<PasswordEntry> found = new ArrayList<>(smallest);
+            found.sort(Comparator.comparing(PasswordEntry::getAccountName));
+            return found;
+        }, query);
+    }
+
+    /** The next page, empty once all entries are returned. */
+    public List<PasswordEntry> nextPage() {
+        List<PasswordEntry> rest = new ArrayList<>(page.subList(index, page.size()));
+        if (rest.isEmpty()) {
+            fill();
+            rest = page;
+        }
+        index = page.size();
+        if (!rest.isEmpty()) {
+            position = rest.get(rest.size() - 1).getAccountName();
+        }
+        return rest;
+    }
+
+    public boolean hasNext() {
+        if (index >= page.size()) {
+            fill();
+        }
+        return index < page.size();
+    }
+
+    public PasswordEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PasswordEntry entry = page.get(index++);
+        position = entry.getAccountName();
+        return entry;
+    }
+
+    /** The account of the last entry returned, or where the query started if none was. */
+    public String position() {
+        return position;
+    }
+
+    private void fill() {
+        if (exhausted) {
+            page = Collections.emptyList();
+        } else {
+            page = source.fetch(position, pageSize);
+            exhausted = page.size() < pageSize;
+        }
+        index = 0;
+    }
+}
@@ -0,0 +1,77 @@
+package model;
+
+import java.util.function.Predicate;
+
+/**
+ * What an {@link EntryCursor} returns: which entries, in what order, starting where, and how
+ * many per page. Queries are immutable; every method returns a new one.
+ *
+ * Results come in account-name order unless {@link #unordered()} is asked for, which lets a
+ * repository stream entries as they are stored. An ordered query can resume {@link #after}
+ * the last account of an earlier page, so a caller needs to keep no more than that name.
+ */
+public final class EntryQuery {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private final Predicate<PasswordEntry> filter;
+    private final boolean ordered;
+    private final String after;
+    private final int pageSize;
+
+    private EntryQuery(Predicate<PasswordEntry> filter, boolean ordered, String after, int pageSize) {
+        this.filter = filter;
+        this.ordered = ordered;
+        this.after = after;
+        this.pageSize = pageSize;
+    }
+
+    /** Every entry, in account-name order, {@link #DEFAULT_PAGE_SIZE} per page. */
+    public static EntryQuery all() {
+        return new EntryQuery(null, true, null, DEFAULT_PAGE_SIZE);
+    }
+
+    /** Only entries the filter accepts; combines with earlier filters. */
+    public EntryQuery where(Predicate<PasswordEntry> filter) {
+        return new EntryQuery(this.filter == null ? filter : this.filter.and(filter), ordered, after, pageSize);
+    }
+
+    /** Only accounts ordered after the given one. */
+    public EntryQuery after(String accountName) {
+        if (!ordered) {
+            throw new IllegalArgumentException("Resuming after an account needs account-name order");
+        }
+        return new EntryQuery(filter, true, accountName, pageSize);
+    }
+
+    /** In whatever order the repository stores entries. */
+    public EntryQuery unordered() {
+        if (after != null) {
+            throw new IllegalArgumentException("Resuming after an account needs account-name order");
+        }
+        return new EntryQuery(filter, false, null, pageSize);
+    }
+
+    public EntryQuery pageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        return new EntryQuery(filter, ordered, after, pageSize);
+    }
+
+    public boolean matches(PasswordEntry entry) {
+        return (after == null || entry.getAccountName().compareTo(after) > 0) && (filter == null || filter.test(entry));
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /** The account to start after, or null to start at the first. */
+    public String getAfter() {
+        return after;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
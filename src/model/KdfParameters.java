@@ -0,0 +1,98 @@
+package model;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Which key derivation function a vault uses and how expensive it is.
+ * Stored in the vault header so every vault can carry its own cost.
+ */
+public final class KdfParameters implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PBKDF2_SHA256 = "PBKDF2WithHmacSHA256";
+    public static final String SCRYPT = "scrypt";
+
+    private final String algorithm;
+    private final int iterations;
+    private final int cost;
+    private final int blockSize;
+    private final int parallelism;
+
+    private KdfParameters(String algorithm, int iterations, int cost, int blockSize, int parallelism) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    public static KdfParameters pbkdf2(int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+        return new KdfParameters(PBKDF2_SHA256, iterations, 0, 0, 0);
+    }
+
+    /**
+     * @param cost        CPU/memory cost N, a power of two
+     * @param blockSize   block size r; each lane uses 128 * r * N bytes
+     * @param parallelism number of independent lanes p
+     */
+    public static KdfParameters scrypt(int cost, int blockSize, int parallelism) {
+        if (cost < 2 || (cost & (cost - 1)) != 0) {
+            throw new IllegalArgumentException("Cost must be a power of two greater than 1");
+        }
+        if (blockSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("Block size and parallelism must be positive");
+        }
+        return new KdfParameters(SCRYPT, 0, cost, blockSize, parallelism);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Memory touched by one derivation, in bytes. */
+    public long getMemoryBytes() {
+        return SCRYPT.equals(algorithm) ? 128L * blockSize * cost * parallelism : 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof KdfParameters)) return false;
+        KdfParameters other = (KdfParameters) o;
+        return iterations == other.iterations && cost == other.cost && blockSize == other.blockSize
+                && parallelism == other.parallelism && algorithm.equals(other.algorithm);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(algorithm, iterations, cost, blockSize, parallelism);
+    }
+
+    @Override
+    public String toString() {
+        if (SCRYPT.equals(algorithm)) {
+            return algorithm + ", N=" + cost + " r=" + blockSize + " p=" + parallelism;
+        }
+        return algorithm + ", " + iterations + " iterations";
+    }
+}
@@ -1,13 +1,27 @@
 package model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Base64;
 
 public class PasswordEntry implements Serializable {
+    private static final long serialVersionUID = 1921517487525634856L;
+
+    // Serialized form predates raw ciphertext; keep writing Base64 so existing vault files still load.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("accountName", String.class),
+            new ObjectStreamField("username", String.class),
+            new ObjectStreamField("encryptedPassword", String.class)
+    };
+
     private String accountName;
     private String username;
-    private String encryptedPassword;
+    private byte[] encryptedPassword;
 
-    public PasswordEntry(String accountName, String username, String encryptedPassword) {
+    public PasswordEntry(String accountName, String username, byte[] encryptedPassword) {
         this.accountName = accountName;
         this.username = username;
         this.encryptedPassword = encryptedPassword;
@@ -21,7 +35,7 @@ public class PasswordEntry implements Serializable {
         return username;
     }
 
-    public String getEncryptedPassword() {
+    public byte[] getEncryptedPassword() {
         return encryptedPassword;
     }
 
@@ -29,10 +43,23 @@ public class PasswordEntry implements Serializable {
         this.username = username;
     }
 
-    public void setEncryptedPassword(String encryptedPassword) {
+    public void setEncryptedPassword(byte[] encryptedPassword) {
         this.encryptedPassword = encryptedPassword;
     }
 
-}
-
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("accountName", accountName);
+        fields.put("username", username);
+        fields.put("encryptedPassword", encryptedPassword == null ? null : Base64.getEncoder().encodeToString(encryptedPassword));
+        out.writeFields();
+    }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        accountName = (String) fields.get("accountName", null);
+        username = (String) fields.get("username", null);
+        String encoded = (String) fields.get("encryptedPassword", null);
+        encryptedPassword = encoded == null ? null : Base64.getDecoder().decode(encoded);
+    }
+}
@@ -0,0 +1,86 @@
+package model;
+
+import java.io.Serializable;
+
+/**
+ * Vault-level metadata persisted next to the entries: everything needed to turn
+ * the master password into the key that decrypts them.
+ */
+public class VaultHeader implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private byte[] salt;
+    private String encryptedMasterPassword;
+    private byte[] wrappedKey;
+    private byte[] keyCheck;
+    private KdfParameters kdfParameters;
+    private boolean entriesAuthenticated;
+
+    public VaultHeader() {
+    }
+
+    /** Shallow copy; the fields are replaced on change, never modified in place. */
+    public VaultHeader(VaultHeader other) {
+        this.salt = other.salt;
+        this.encryptedMasterPassword = other.encryptedMasterPassword;
+        this.wrappedKey = other.wrappedKey;
+        this.keyCheck = other.keyCheck;
+        this.kdfParameters = other.kdfParameters;
+        this.entriesAuthenticated = other.entriesAuthenticated;
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public void setSalt(byte[] salt) {
+        this.salt = salt;
+    }
+
+    public String getEncryptedMasterPassword() {
+        return encryptedMasterPassword;
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        this.encryptedMasterPassword = encryptedMasterPassword;
+    }
+
+    /** Data-encryption key, encrypted with the key derived from the master password. */
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        this.wrappedKey = wrappedKey;
+    }
+
+    /** HMAC of a constant under the master key; verifies a derived key without decrypting anything. */
+    public byte[] getKeyCheck() {
+        return keyCheck;
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        this.keyCheck = keyCheck;
+    }
+
+    /** Null for vaults created before the cost was calibrated per host. */
+    public KdfParameters getKdfParameters() {
+        return kdfParameters;
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        this.kdfParameters = kdfParameters;
+    }
+
+    /**
+     * True once every entry is known to be AES-GCM, so that nothing else is decrypted.
+     * False for vaults that may still hold entries from before, in the legacy ECB format.
+     */
+    public boolean isEntriesAuthenticated() {
+        return entriesAuthenticated;
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        this.entriesAuthenticated = entriesAuthenticated;
+    }
+}
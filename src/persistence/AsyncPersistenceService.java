@@ -0,0 +1,282 @@
+package persistence;
+
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Moves the writes of another persistence service onto a background thread.
+ *
+ * The changes reported since the previous save are collected as they happen; {@link #save}
+ * only hands them over, together with a copy of the header, so its cost depends on the number
+ * of changes and not on the vault size or the disk. Saves that pile up before the worker gets
+ * to them are merged, and the worker writes at most once per flush interval. Only states that
+ * were saved are written, never changes made after the last save.
+ *
+ * The worker keeps its own copy of the entries, so the wrapped service never reads a map that
+ * the caller is modifying. {@link #flush} waits until everything saved so far is durable and
+ * rethrows a failed write; {@link #close} flushes and stops the worker. If the worker itself
+ * dies, for instance of an OutOfMemoryError, every later save, flush and close rethrows that.
+ */
+public class AsyncPersistenceService implements IPersistenceService, AutoCloseable {
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private final IPersistenceService delegate;
+    private final long flushIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private Batch unsaved = new Batch();
+    private Batch ready;
+    private long readySince;
+    private boolean flushRequested;
+    private boolean writing;
+    private boolean closed;
+    private RuntimeException failure;
+    private Throwable stopped; // why the worker ended before close()
+
+    // owned by the worker thread once load() has returned
+    private final HashMap<String, PasswordEntry> written = new HashMap<>();
+    private final Thread worker;
+
+    public AsyncPersistenceService(IPersistenceService delegate) {
+        this(delegate, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public AsyncPersistenceService(IPersistenceService delegate, long flushIntervalMillis) {
+        this.delegate = delegate;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.worker = new Thread(this::runWorker, "vault-writer");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public PersistenceService.LoadedData load() {
+        PersistenceService.LoadedData data = delegate.load();
+        lock.lock();
+        try {
+            written.clear();
+            if (data != null) {
+                written.putAll(data.entries);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return data;
+    }
+
+    public void recordPut(PasswordEntry entry) {
+        lock.lock();
+        try {
+            unsaved.changes.put(entry.getAccountName(), entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordRemove(String accountName) {
+        lock.lock();
+        try {
+            unsaved.changes.put(accountName, null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordClear() {
+        lock.lock();
+        try {
+            unsaved.cleared = true;
+            unsaved.changes.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the current state for writing and returns immediately.
+     *
+     * @throws RuntimeException if an earlier background write failed; it is retried with this save
+     */
+    public void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Persistence is closed");
+            }
+            checkWorker();
+            unsaved.header = new VaultHeader(header);
+            if (ready == null) {
+                ready = unsaved;
+                readySince = System.nanoTime();
+            } else {
+                ready.merge(unsaved);
+            }
+            unsaved = new Batch();
+            changed.signalAll();
+
+            RuntimeException previous = failure;
+            failure = null;
+            if (previous != null) {
+                throw previous;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes everything saved so far without waiting for the schedule, and blocks until it is durable. */
+    public void flush() {
+        lock.lock();
+        try {
+            flushRequested = true;
+            changed.signalAll();
+            while ((ready != null || writing) && failure == null && stopped == null) {
+                changed.awaitUninterruptibly();
+            }
+            flushRequested = false;
+            checkWorker();
+
+            RuntimeException previous = failure;
+            failure = null;
+            if (previous != null) {
+                throw previous;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Flushes and stops the worker; saves after this fail. */
+    public void close() {
+        try {
+            flush();
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void runWorker() {
+        lock.lock();
+        try {
+            while (true) {
+                Batch batch = awaitBatch();
+                if (batch == null) return;
+
+                writing = true;
+                lock.unlock();
+                RuntimeException error = null;
+                try {
+                    write(batch);
+                } catch (RuntimeException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                    writing = false;
+                }
+
+                if (error != null) {
+                    // keep the batch so the next save or flush retries it
+                    failure = error;
+                    if (ready != null) {
+                        batch.merge(ready);
+                    }
+                    ready = batch;
+                }
+                changed.signalAll();
+            }
+        } catch (Throwable e) {
+            // an Error from the write; callers get it from save, flush and close
+            stopped = e;
+        } finally {
+            if (stopped == null && !closed) {
+                stopped = new IllegalStateException("Vault writer was interrupted");
+            }
+            changed.signalAll();
+            lock.unlock();
+        }
+    }
+
+    // with the lock held
+    private void checkWorker() {
+        if (stopped instanceof Error) {
+            throw (Error) stopped;
+        }
+        if (stopped != null) {
+            throw new IllegalStateException("Vault writer stopped: " + stopped.getMessage(), stopped);
+        }
+    }
+
+    // with the lock held: the next batch once it is due, or null when closed
+    private Batch awaitBatch() {
+        while (true) {
+            if (ready != null && failure == null) {
+                long wait = readySince + flushIntervalNanos - System.nanoTime();
+                if (wait <= 0 || flushRequested || closed) {
+                    Batch batch = ready;
+                    ready = null;
+                    return batch;
+                }
+                try {
+                    changed.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            } else if (closed) {
+                return null;
+            } else {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private void write(Batch batch) {
+        if (batch.cleared) {
+            written.clear();
+            delegate.recordClear();
+        }
+        for (Map.Entry<String, PasswordEntry> change : batch.changes.entrySet()) {
+            if (change.getValue() == null) {
+                written.remove(change.getKey());
+                delegate.recordRemove(change.getKey());
+            } else {
+                written.put(change.getKey(), change.getValue());
+                delegate.recordPut(change.getValue());
+            }
+        }
+        delegate.save(batch.header, written);
+    }
+
+    // changes between two saves; a null value marks a removed account
+    private static final class Batch {
+        boolean cleared;
+        final LinkedHashMap<String, PasswordEntry> changes = new LinkedHashMap<>();
+        VaultHeader header;
+
+        void merge(Batch newer) {
+            if (newer.cleared) {
+                cleared = true;
+                changes.clear();
+            }
+            changes.putAll(newer.changes);
+            header = newer.header;
+        }
+    }
+}
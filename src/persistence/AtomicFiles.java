@@ -0,0 +1,67 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** Durable file writes: content is forced to disk before it becomes visible under its final name. */
+final class AtomicFiles {
+
+    interface Content {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    private AtomicFiles() {
+    }
+
+    /** Writes next to the target, forces it to disk and renames it over the target. */
+    static void replace(Path target, Content content) throws IOException {
+        replace(target, content, null);
+    }
+
+    /**
+     * Like {@link #replace(Path, Content)}, closing the given resource, when not null, after the
+     * new content is on disk and before the rename. Windows refuses to replace a file that is
+     * still open or mapped.
+     */
+    static void replace(Path target, Content content, Closeable beforeRename) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        create(temp, content);
+        try {
+            if (beforeRename != null) {
+                beforeRename.close();
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /** Writes a file that nothing refers to yet and forces it to disk; a failed write leaves nothing behind. */
+    static void create(Path target, Content content) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            content.writeTo(channel);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    // makes a rename itself durable; not every platform can open a directory, which is fine to skip
+    static void forceDirectory(Path directory) {
+        if (directory == null) return;
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+}
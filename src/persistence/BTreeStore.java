@@ -0,0 +1,735 @@
+package persistence;
+
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-resident B+tree of entries keyed by account name, stored in fixed-size pages.
+ *
+ * Pages 0 and 1 are alternating superblocks holding the vault header, the root page and the
+ * commit counter; every other page is a tree node. Nodes are never changed in place: the first
+ * change to a committed node copies it to a free page, and its parents up to the root follow.
+ * {@link #commit} forces the new pages to disk and then writes the superblock the previous
+ * commit did not use, so a crash at any point leaves the last complete commit readable.
+ * Pages dropped by a commit are reused from the next one on.
+ *
+ * Decoded nodes are kept in an LRU cache of a fixed number of pages, so the heap holds the
+ * cache and the changes since the last commit, not the vault. Every page carries a CRC32.
+ * Nodes are not merged when entries are removed, only dropped once empty.
+ */
+public final class BTreeStore implements Closeable {
+    public static final int PAGE_SIZE = 4096;
+    public static final int DEFAULT_CACHE_PAGES = 1024;
+    /** Largest encoded entry; with at least four per page a split always yields two pages that fit. */
+    public static final int MAX_ENTRY_SIZE = PAGE_SIZE / 4;
+
+    private static final int MAGIC = 0x504D4254; // "PMBT"
+    private static final short VERSION = 1;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int NODE_HEADER = 4 + 1 + 2; // crc, type, count
+    private static final int SUPERBLOCK_HEADER = 4 + 4 + 2 + 8 + 8 + 4 + 8 + 8 + 4;
+    private static final long NO_PAGE = 0; // superblocks occupy pages 0 and 1
+    private static final long FIRST_NODE_PAGE = 2;
+
+    private final FileChannel channel;
+    private final LinkedHashMap<Long, Node> cache;
+    // nodes written since the last commit; never evicted, and changed in place until then
+    private final HashMap<Long, Node> dirty = new HashMap<>();
+    private final BitSet free = new BitSet();
+    private final BitSet freedSinceCommit = new BitSet();
+    private final ByteBuffer pageBuffer = ByteBuffer.allocate(PAGE_SIZE);
+
+    private long commitId;
+    private byte[] committedHeader;
+    private boolean changed;
+
+    private VaultHeader header = new VaultHeader();
+    private long root = NO_PAGE;
+    private int height;
+    private long size;
+    private long pageCount = FIRST_NODE_PAGE;
+    private int modCount;
+
+    private BTreeStore(FileChannel channel, int cachePages) {
+        this.channel = channel;
+        this.cache = new LinkedHashMap<Long, Node>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest) {
+                return size() > cachePages;
+            }
+        };
+    }
+
+    /** Opens the tree in the file, creating an empty one when the file is new. */
+    public static BTreeStore open(Path file, int cachePages) throws IOException {
+        if (cachePages <= 0) {
+            throw new IllegalArgumentException("Cache must hold at least one page");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            BTreeStore store = new BTreeStore(channel, cachePages);
+            if (channel.size() > 0) {
+                store.recover();
+            }
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** True until the first commit. */
+    public boolean isNew() {
+        return commitId == 0;
+    }
+
+    /** The live header; changes to it are written with the next commit. */
+    public VaultHeader getHeader() {
+        return header;
+    }
+
+    public void setHeader(VaultHeader header) {
+        this.header = header;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public PasswordEntry get(String accountName) {
+        if (height == 0) {
+            return null;
+        }
+        Node node = load(root);
+        for (int level = height; level > 1; level--) {
+            Internal internal = (Internal) node;
+            node = load(internal.children.get(internal.childIndex(accountName)));
+        }
+        Leaf leaf = (Leaf) node;
+        int index = leaf.indexOf(accountName);
+        return index >= 0 ? leaf.entries.get(index) : null;
+    }
+
+    /**
+     * Adds or replaces the entry for its account.
+     *
+     * @return true if the account was not stored before
+     * @throws IllegalArgumentException if the encoded entry is larger than {@link #MAX_ENTRY_SIZE}
+     */
+    public boolean put(PasswordEntry entry) {
+        if (!fits(entry)) {
+            throw new IllegalArgumentException("Entry too large for a page: " + entry.getAccountName());
+        }
+        modCount++;
+        changed = true;
+        if (height == 0) {
+            Leaf leaf = new Leaf(allocate());
+            dirty.put(leaf.page, leaf);
+            leaf.entries.add(entry);
+            root = leaf.page;
+            height = 1;
+            size++;
+            return true;
+        }
+
+        Node top = writable(root);
+        root = top.page;
+        long before = size;
+        Split split = insert(top, height, entry);
+        if (split != null) {
+            Internal newRoot = new Internal(allocate());
+            dirty.put(newRoot.page, newRoot);
+            newRoot.children.add(top.page);
+            newRoot.keys.add(split.key);
+            newRoot.children.add(split.right);
+            root = newRoot.page;
+            height++;
+        }
+        return size > before;
+    }
+
+    public boolean remove(String accountName) {
+        if (get(accountName) == null) {
+            return false; // a miss must not copy the path
+        }
+        modCount++;
+        changed = true;
+        Node top = writable(root);
+        root = top.page;
+        delete(top, height, accountName);
+        size--;
+
+        // drop an emptied root and roots with a single child
+        while (height > 0) {
+            Node node = load(root);
+            if (node instanceof Leaf ? ((Leaf) node).entries.isEmpty() : ((Internal) node).children.isEmpty()) {
+                freePage(root);
+                root = NO_PAGE;
+                height = 0;
+            } else if (node instanceof Internal && ((Internal) node).children.size() == 1) {
+                freePage(root);
+                root = ((Internal) node).children.get(0);
+                height--;
+            } else {
+                break;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        if (height > 0) {
+            freeSubtree(root, height);
+        }
+        root = NO_PAGE;
+        height = 0;
+        size = 0;
+        modCount++;
+        changed = true;
+    }
+
+    /** Entries in account-name order; fails fast if the tree changes during iteration. */
+    public Iterator<PasswordEntry> iterator() {
+        return new EntryIterator(null);
+    }
+
+    /** Entries with account names after the given one (all if null), found without reading earlier leaves. */
+    public Iterator<PasswordEntry> iterator(String after) {
+        return new EntryIterator(after);
+    }
+
+    /** Makes every change since the last commit durable; does nothing if there are none. */
+    public void commit() throws IOException {
+        byte[] headerBytes = VaultFormat.encodeHeaderFields(header);
+        if (!changed && Arrays.equals(headerBytes, committedHeader)) {
+            return;
+        }
+        if (SUPERBLOCK_HEADER + headerBytes.length > PAGE_SIZE) {
+            throw new IOException("Vault header too large for a page");
+        }
+
+        long[] pages = dirty.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        for (long page : pages) {
+            pageBuffer.clear();
+            dirty.get(page).encode(pageBuffer);
+            writePage(page);
+        }
+        channel.force(true);
+
+        long next = commitId + 1;
+        pageBuffer.clear();
+        pageBuffer.putInt(0).putInt(MAGIC).putShort(VERSION).putLong(next).putLong(root).putInt(height)
+                .putLong(pageCount).putLong(size).putInt(headerBytes.length).put(headerBytes);
+        writePage(next % 2);
+        channel.force(true);
+
+        commitId = next;
+        committedHeader = headerBytes;
+        changed = false;
+        cache.putAll(dirty);
+        dirty.clear();
+        free.or(freedSinceCommit);
+        freedSinceCommit.clear();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // picks the newest valid superblock and finds the pages the tree does not use
+    private void recover() throws IOException {
+        ByteBuffer chosen = null;
+        for (long slot = 0; slot < 2; slot++) {
+            ByteBuffer page = readPage(slot);
+            if (page != null && page.getInt(4) == MAGIC && page.getShort(8) == VERSION
+                    && (chosen == null || page.getLong(10) > chosen.getLong(10))) {
+                chosen = page;
+            }
+        }
+        if (chosen == null) {
+            throw new IOException("No valid superblock");
+        }
+        chosen.position(10);
+        commitId = chosen.getLong();
+        root = chosen.getLong();
+        height = chosen.getInt();
+        pageCount = chosen.getLong();
+        size = chosen.getLong();
+        committedHeader = new byte[chosen.getInt()];
+        chosen.get(committedHeader);
+        header = VaultFormat.decodeHeaderFields(committedHeader);
+
+        BitSet used = new BitSet();
+        if (height > 0) {
+            markUsed(root, height, used);
+        }
+        free.set((int) FIRST_NODE_PAGE, (int) pageCount);
+        free.andNot(used);
+    }
+
+    // internal nodes are read, leaves are known from their parents
+    private void markUsed(long page, int level, BitSet used) {
+        used.set((int) page);
+        if (level > 1) {
+            for (long child : ((Internal) load(page)).children) {
+                markUsed(child, level - 1, used);
+            }
+        }
+    }
+
+    private Split insert(Node node, int level, PasswordEntry entry) {
+        if (level == 1) {
+            Leaf leaf = (Leaf) node;
+            int index = leaf.indexOf(entry.getAccountName());
+            if (index >= 0) {
+                leaf.entries.set(index, entry);
+            } else {
+                leaf.entries.add(-index - 1, entry);
+                size++;
+            }
+            return leaf.encodedSize() > PAGE_SIZE ? splitLeaf(leaf) : null;
+        }
+
+        Internal internal = (Internal) node;
+        int index = internal.childIndex(entry.getAccountName());
+        Node child = writable(internal.children.get(index));
+        internal.children.set(index, child.page);
+        Split split = insert(child, level - 1, entry);
+        if (split == null) {
+            return null;
+        }
+        internal.keys.add(index, split.key);
+        internal.children.add(index + 1, split.right);
+        return internal.encodedSize() > PAGE_SIZE ? splitInternal(internal) : null;
+    }
+
+    // returns true once the node is empty
+    private boolean delete(Node node, int level, String accountName) {
+        if (level == 1) {
+            Leaf leaf = (Leaf) node;
+            leaf.entries.remove(leaf.indexOf(accountName));
+            return leaf.entries.isEmpty();
+        }
+
+        Internal internal = (Internal) node;
+        int index = internal.childIndex(accountName);
+        Node child = writable(internal.children.get(index));
+        internal.children.set(index, child.page);
+        if (delete(child, level - 1, accountName)) {
+            freePage(child.page);
+            internal.children.remove(index);
+            if (!internal.keys.isEmpty()) {
+                internal.keys.remove(index == 0 ? 0 : index - 1);
+            }
+        }
+        return internal.children.isEmpty();
+    }
+
+    private Split splitLeaf(Leaf leaf) {
+        List<PasswordEntry> entries = leaf.entries;
+        int half = leaf.encodedSize() / 2;
+        int cut = 0;
+        for (int bytes = NODE_HEADER; bytes < half && cut < entries.size() - 1; cut++) {
+            bytes += entrySize(entries.get(cut));
+        }
+        cut = Math.max(1, cut);
+
+        Leaf right = new Leaf(allocate());
+        dirty.put(right.page, right);
+        right.entries.addAll(entries.subList(cut, entries.size()));
+        entries.subList(cut, entries.size()).clear();
+        return new Split(right.entries.get(0).getAccountName(), right.page);
+    }
+
+    private Split splitInternal(Internal internal) {
+        List<String> keys = internal.keys;
+        int half = internal.encodedSize() / 2;
+        int middle = 0;
+        for (int bytes = NODE_HEADER + 8; bytes < half && middle < keys.size() - 2; middle++) {
+            bytes += 4 + utf8Length(keys.get(middle)) + 8;
+        }
+        middle = Math.max(1, middle);
+
+        Internal right = new Internal(allocate());
+        dirty.put(right.page, right);
+        String separator = keys.get(middle);
+        right.keys.addAll(keys.subList(middle + 1, keys.size()));
+        right.children.addAll(internal.children.subList(middle + 1, internal.children.size()));
+        keys.subList(middle, keys.size()).clear();
+        internal.children.subList(middle + 1, internal.children.size()).clear();
+        return new Split(separator, right.page);
+    }
+
+    // the node to change on this page: itself if written since the last commit, otherwise a copy on a new page
+    private Node writable(long page) {
+        Node node = dirty.get(page);
+        if (node != null) {
+            return node;
+        }
+        Node copy = load(page).copy(allocate());
+        freePage(page);
+        dirty.put(copy.page, copy);
+        return copy;
+    }
+
+    private Node load(long page) {
+        Node node = dirty.get(page);
+        if (node == null) {
+            node = cache.get(page);
+        }
+        if (node == null) {
+            try {
+                ByteBuffer buffer = readPage(page);
+                if (buffer == null) {
+                    throw new IOException("Corrupt page " + page);
+                }
+                node = decode(page, buffer);
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading data: " + e.getMessage(), e);
+            }
+            cache.put(page, node);
+        }
+        return node;
+    }
+
+    private long allocate() {
+        int page = free.nextSetBit((int) FIRST_NODE_PAGE);
+        if (page < 0) {
+            return pageCount++;
+        }
+        free.clear(page);
+        return page;
+    }
+
+    // a page the last commit uses stays untouched until the next commit is durable
+    private void freePage(long page) {
+        if (dirty.remove(page) != null) {
+            free.set((int) page);
+        } else {
+            cache.remove(page);
+            freedSinceCommit.set((int) page);
+        }
+    }
+
+    private void freeSubtree(long page, int level) {
+        if (level > 1) {
+            for (long child : new ArrayList<>(((Internal) load(page)).children)) {
+                freeSubtree(child, level - 1);
+            }
+        }
+        freePage(page);
+    }
+
+    // fills in the checksum of the page in pageBuffer and writes it
+    private void writePage(long page) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(pageBuffer.array(), 4, PAGE_SIZE - 4);
+        pageBuffer.putInt(0, (int) crc.getValue());
+        pageBuffer.clear();
+        long position = page * PAGE_SIZE;
+        while (pageBuffer.hasRemaining()) {
+            position += channel.write(pageBuffer, position);
+        }
+    }
+
+    // the page, or null if it is missing or its checksum does not match
+    private ByteBuffer readPage(long page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        long position = page * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return null;
+            }
+            position += read;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, PAGE_SIZE - 4);
+        return (int) crc.getValue() == buffer.getInt(0) ? buffer : null;
+    }
+
+    private static Node decode(long page, ByteBuffer buffer) throws IOException {
+        buffer.position(4);
+        byte type = buffer.get();
+        int count = buffer.getShort() & 0xFFFF;
+        if (type == LEAF) {
+            Leaf leaf = new Leaf(page);
+            for (int i = 0; i < count; i++) {
+                leaf.entries.add(new PasswordEntry(getString(buffer), getString(buffer), getBytes(buffer)));
+            }
+            return leaf;
+        }
+        if (type == INTERNAL) {
+            Internal internal = new Internal(page);
+            internal.children.add(buffer.getLong());
+            for (int i = 0; i < count; i++) {
+                internal.keys.add(getString(buffer));
+                internal.children.add(buffer.getLong());
+            }
+            return internal;
+        }
+        throw new IOException("Unknown page type " + type + " on page " + page);
+    }
+
+    /** Whether the entry is small enough to be stored; see {@link #MAX_ENTRY_SIZE}. */
+    public static boolean fits(PasswordEntry entry) {
+        return entrySize(entry) <= MAX_ENTRY_SIZE;
+    }
+
+    static int entrySize(PasswordEntry entry) {
+        byte[] password = entry.getEncryptedPassword();
+        return 4 + utf8Length(entry.getAccountName()) + 4 + utf8Length(entry.getUsername())
+                + 4 + (password == null ? 0 : password.length);
+    }
+
+    // never less than the encoded length; unpaired surrogates are counted high
+    private static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        putBytes(buffer, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length).put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = getBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("Corrupt length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private abstract static class Node {
+        final long page;
+
+        Node(long page) {
+            this.page = page;
+        }
+
+        abstract int encodedSize();
+
+        abstract void encode(ByteBuffer buffer);
+
+        abstract Node copy(long page);
+    }
+
+    private static final class Leaf extends Node {
+        final ArrayList<PasswordEntry> entries = new ArrayList<>();
+
+        Leaf(long page) {
+            super(page);
+        }
+
+        // binary search; -(insertion point) - 1 when absent
+        int indexOf(String accountName) {
+            int low = 0;
+            int high = entries.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int order = entries.get(middle).getAccountName().compareTo(accountName);
+                if (order < 0) {
+                    low = middle + 1;
+                } else if (order > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -low - 1;
+        }
+
+        int encodedSize() {
+            int size = NODE_HEADER;
+            for (PasswordEntry entry : entries) {
+                size += entrySize(entry);
+            }
+            return size;
+        }
+
+        void encode(ByteBuffer buffer) {
+            buffer.putInt(0).put(LEAF).putShort((short) entries.size());
+            for (PasswordEntry entry : entries) {
+                putString(buffer, entry.getAccountName());
+                putString(buffer, entry.getUsername());
+                putBytes(buffer, entry.getEncryptedPassword());
+            }
+        }
+
+        Node copy(long page) {
+            Leaf copy = new Leaf(page);
+            copy.entries.addAll(entries);
+            return copy;
+        }
+    }
+
+    // child i holds the accounts from keys[i - 1] (inclusive) up to keys[i]
+    private static final class Internal extends Node {
+        final ArrayList<String> keys = new ArrayList<>();
+        final ArrayList<Long> children = new ArrayList<>();
+
+        Internal(long page) {
+            super(page);
+        }
+
+        int childIndex(String accountName) {
+            int low = 0;
+            int high = keys.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys.get(middle).compareTo(accountName) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int encodedSize() {
+            int size = NODE_HEADER + 8;
+            for (String key : keys) {
+                size += 4 + utf8Length(key) + 8;
+            }
+            return size;
+        }
+
+        void encode(ByteBuffer buffer) {
+            buffer.putInt(0).put(INTERNAL).putShort((short) keys.size());
+            buffer.putLong(children.get(0));
+            for (int i = 0; i < keys.size(); i++) {
+                putString(buffer, keys.get(i));
+                buffer.putLong(children.get(i + 1));
+            }
+        }
+
+        Node copy(long page) {
+            Internal copy = new Internal(page);
+            copy.keys.addAll(keys);
+            copy.children.addAll(children);
+            return copy;
+        }
+    }
+
+    private static final class Split {
+        final String key;
+        final long right;
+
+        Split(String key, long right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<PasswordEntry> {
+        private final int expectedModCount = modCount;
+        private final ArrayDeque<Internal> path = new ArrayDeque<>();
+        private final ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+        private Leaf leaf;
+        private int index;
+
+        EntryIterator(String after) {
+            if (height > 0) {
+                descend(root, height, after);
+            }
+        }
+
+        public boolean hasNext() {
+            checkForComodification();
+            while (leaf != null && index >= leaf.entries.size()) {
+                nextLeaf();
+            }
+            return leaf != null;
+        }
+
+        public PasswordEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return leaf.entries.get(index++);
+        }
+
+        // to the leftmost leaf, or to the first entry after the given account
+        private void descend(long page, int level, String after) {
+            for (; level > 1; level--) {
+                Internal internal = (Internal) load(page);
+                int child = after == null ? 0 : internal.childIndex(after);
+                path.push(internal);
+                nextChild.push(child + 1);
+                page = internal.children.get(child);
+            }
+            leaf = (Leaf) load(page);
+            if (after == null) {
+                index = 0;
+            } else {
+                int found = leaf.indexOf(after);
+                index = found >= 0 ? found + 1 : -found - 1;
+            }
+        }
+
+        private void nextLeaf() {
+            leaf = null;
+            for (int level = 2; !path.isEmpty(); level++) {
+                Internal parent = path.peek();
+                int child = nextChild.pop();
+                if (child < parent.children.size()) {
+                    nextChild.push(child + 1);
+                    descend(parent.children.get(child), level - 1, null);
+                    return;
+                }
+                path.pop();
+            }
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+}
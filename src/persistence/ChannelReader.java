@@ -0,0 +1,154 @@
+package persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/** Buffered reader for the layout produced by {@link ChannelWriter}. */
+class ChannelReader {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final int maxLength;
+
+    ChannelReader(ReadableByteChannel channel) {
+        this(channel, ChannelWriter.BUFFER_SIZE, Integer.MAX_VALUE);
+    }
+
+    /** Reads straight from an in-memory buffer, such as a mapped file, without copying it. */
+    ChannelReader(ByteBuffer source) {
+        this.channel = null;
+        this.buffer = source;
+        this.maxLength = Integer.MAX_VALUE;
+    }
+
+    /** @param maxLength upper bound for a single length-prefixed value, to reject corrupt lengths early */
+    ChannelReader(ReadableByteChannel channel, int bufferSize, int maxLength) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+        this.maxLength = maxLength;
+    }
+
+    byte getByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    short getShort() throws IOException {
+        require(2);
+        return buffer.getShort();
+    }
+
+    int getInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    long getLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    byte[] getBytes() throws IOException {
+        int length = getInt();
+        if (length == -1) {
+            return null;
+        }
+        checkLength(length);
+        byte[] value = new byte[length];
+        getRaw(value);
+        return value;
+    }
+
+    /** Skips a length-prefixed value without copying it. */
+    void skipBytes() throws IOException {
+        int length = getInt();
+        if (length == -1) {
+            return;
+        }
+        checkLength(length);
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int chunk = Math.min(buffer.remaining(), length);
+            buffer.position(buffer.position() + chunk);
+            length -= chunk;
+        }
+    }
+
+    String getString() throws IOException {
+        byte[] bytes = getBytes();
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void getRaw(byte[] value) throws IOException {
+        int offset = 0;
+        while (offset < value.length) {
+            if (!buffer.hasRemaining()) {
+                fill();
+            }
+            int chunk = Math.min(buffer.remaining(), value.length - offset);
+            buffer.get(value, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    /** Position in the source buffer; only meaningful for readers over an in-memory buffer. */
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * Bytes left in the source, or Long.MAX_VALUE for a channel of unknown size. Lengths and
+     * counts read from the source are checked against it before anything is allocated for them.
+     */
+    long remaining() throws IOException {
+        if (channel == null) {
+            return buffer.remaining();
+        }
+        if (channel instanceof SeekableByteChannel) {
+            SeekableByteChannel seekable = (SeekableByteChannel) channel;
+            return buffer.remaining() + seekable.size() - seekable.position();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** True when the channel has no more bytes. */
+    boolean atEnd() throws IOException {
+        if (buffer.hasRemaining() || channel == null) {
+            return !buffer.hasRemaining();
+        }
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read <= 0 && !buffer.hasRemaining();
+    }
+
+    private void checkLength(int length) throws IOException {
+        if (length < 0 || length > maxLength || length > remaining()) {
+            throw new IOException("Corrupt length " + length);
+        }
+    }
+
+    private void require(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if (channel == null) {
+            throw new EOFException("Unexpected end of vault file");
+        }
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            throw new EOFException("Unexpected end of vault file");
+        }
+    }
+}
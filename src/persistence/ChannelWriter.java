@@ -0,0 +1,96 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered, length-prefixed primitive writer on top of an NIO channel.
+ * Byte arrays and strings are written as an int length followed by the bytes; -1 stands for null.
+ */
+class ChannelWriter {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long written;
+
+    ChannelWriter(WritableByteChannel channel) {
+        this(channel, BUFFER_SIZE);
+    }
+
+    ChannelWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    ChannelWriter putByte(byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+        return this;
+    }
+
+    ChannelWriter putShort(short value) throws IOException {
+        ensure(2);
+        buffer.putShort(value);
+        return this;
+    }
+
+    ChannelWriter putInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    ChannelWriter putLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    ChannelWriter putBytes(byte[] value) throws IOException {
+        if (value == null) {
+            return putInt(-1);
+        }
+        putInt(value.length);
+        return putRaw(value);
+    }
+
+    ChannelWriter putString(String value) throws IOException {
+        return putBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    ChannelWriter putRaw(byte[] value) throws IOException {
+        if (value.length > buffer.capacity()) {
+            flush();
+            ByteBuffer direct = ByteBuffer.wrap(value);
+            while (direct.hasRemaining()) {
+                written += channel.write(direct);
+            }
+            return this;
+        }
+        ensure(value.length);
+        buffer.put(value);
+        return this;
+    }
+
+    /** Bytes handed to the channel so far, plus whatever is still buffered. */
+    long position() {
+        return written + buffer.position();
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package persistence;
+
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Merges bursts of saves into one durable write of another persistence service.
+ *
+ * Saves that arrive while a write is in progress, or within the configured delay of the
+ * first save of a batch, join the same batch. One of the waiting callers then writes the most
+ * recent state on behalf of all of them. Every {@link #save} still returns only once its data
+ * is on disk and rethrows the failure of the write that covered it, so the durability contract
+ * of the wrapped service is unchanged; what changes is the number of writes per burst.
+ */
+public class GroupCommitPersistenceService implements IPersistenceService {
+
+    private final IPersistenceService delegate;
+    private final long maxDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition finished = lock.newCondition();
+    private Batch open;
+    private boolean writing;
+
+    /** @param maxDelayMillis how long the first save of a batch waits for others to join; 0 only merges saves that queue up behind a running write */
+    public GroupCommitPersistenceService(IPersistenceService delegate, long maxDelayMillis) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Delay must not be negative");
+        }
+        this.delegate = delegate;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    public void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+        lock.lock();
+        try {
+            if (open == null) {
+                open = new Batch(System.nanoTime() + maxDelayNanos);
+            }
+            Batch batch = open;
+            batch.header = header;
+            batch.entries = entries;
+
+            while (!batch.done) {
+                if (writing) {
+                    finished.awaitUninterruptibly();
+                } else {
+                    write(batch);
+                }
+            }
+            if (batch.failure != null) {
+                throw batch.failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PersistenceService.LoadedData load() {
+        return delegate.load();
+    }
+
+    public void recordPut(PasswordEntry entry) {
+        delegate.recordPut(entry);
+    }
+
+    public void recordRemove(String accountName) {
+        delegate.recordRemove(accountName);
+    }
+
+    public void recordClear() {
+        delegate.recordClear();
+    }
+
+    public void flush() {
+        delegate.flush();
+    }
+
+    // called with the lock held; releases it for the actual write
+    private void write(Batch batch) {
+        writing = true;
+        try {
+            long remaining;
+            while ((remaining = batch.deadline - System.nanoTime()) > 0) {
+                try {
+                    finished.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            open = null; // later saves start the next batch
+
+            lock.unlock();
+            try {
+                delegate.save(batch.header, batch.entries);
+            } catch (RuntimeException e) {
+                batch.failure = e;
+            } finally {
+                lock.lock();
+            }
+            batch.done = true;
+        } finally {
+            writing = false;
+            finished.signalAll();
+        }
+    }
+
+    private static final class Batch {
+        final long deadline;
+        VaultHeader header;
+        Map<String, PasswordEntry> entries;
+        boolean done;
+        RuntimeException failure;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package persistence;
+
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Vault persistence as a snapshot plus an append-only log of changes.
+ *
+ * Between saves the repository's change notifications are encoded into a pending batch.
+ * {@link #save} appends that batch and the current header to "&lt;file&gt;.wal" as one
+ * checksummed frame and forces it to disk, so a save costs the size of the change instead
+ * of the size of the vault. {@link #load} reads the snapshot and replays the log; a frame
+ * cut short by a crash fails its checksum and is dropped together with anything after it.
+ *
+ * Once the log passes the compaction threshold it is set aside as "&lt;file&gt;.wal.compacting"
+ * and a background thread writes a new snapshot from a copy of the entries, then deletes the
+ * set-aside log. Every record sets a final value, so replaying a log over a snapshot that
+ * already contains it changes nothing and a crash during compaction loses no data.
+ */
+public class JournaledPersistenceService implements IPersistenceService {
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 4L * 1024 * 1024;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final byte HEADER_WITHOUT_FLAGS = 4; // written before the header had flags
+    private static final byte HEADER = 5;
+    private static final int FRAME_HEADER_LENGTH = 8;
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Path compactingFile;
+    private final long compactionThreshold;
+    private final PersistenceService snapshot;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "vault-compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    private final ChannelWriter pending = new ChannelWriter(Channels.newChannel(pendingBytes));
+    private FileChannel log;
+    private Future<?> compaction;
+
+    public JournaledPersistenceService(String fileName) {
+        this(fileName, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public JournaledPersistenceService(String fileName, long compactionThreshold) {
+        this.snapshotFile = Paths.get(fileName);
+        this.logFile = Paths.get(fileName + ".wal");
+        this.compactingFile = Paths.get(fileName + ".wal.compacting");
+        this.compactionThreshold = compactionThreshold;
+        this.snapshot = new PersistenceService(fileName);
+    }
+
+    public synchronized void recordPut(PasswordEntry entry) {
+        try {
+            pending.putByte(PUT);
+            VaultFormat.writeEntry(pending, entry);
+        } catch (IOException e) {
+            throw new RuntimeException("Journal error", e);
+        }
+    }
+
+    public synchronized void recordRemove(String accountName) {
+        try {
+            pending.putByte(REMOVE).putString(accountName);
+        } catch (IOException e) {
+            throw new RuntimeException("Journal error", e);
+        }
+    }
+
+    public synchronized void recordClear() {
+        try {
+            pending.putByte(CLEAR);
+        } catch (IOException e) {
+            throw new RuntimeException("Journal error", e);
+        }
+    }
+
+    public synchronized void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+        try {
+            pending.putByte(HEADER);
+            VaultFormat.writeHeaderFields(pending, header);
+            pending.flush();
+            appendFrame(pendingBytes.toByteArray());
+            pendingBytes.reset();
+
+            if (log.size() >= compactionThreshold && !isCompacting()) {
+                startCompaction(header, entries);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @throws RuntimeException if the snapshot or the log cannot be read; nothing is then
+     *         truncated or compacted, so the files stay as they were
+     */
+    public synchronized LoadedData load() {
+        boolean found = Files.exists(snapshotFile) || Files.exists(compactingFile) || Files.exists(logFile);
+        LoadedData data = snapshot.load();
+        State state = data != null ? new State(data.header, data.entries) : new State(new VaultHeader(), new HashMap<>());
+
+        try {
+            replay(compactingFile, state);
+            openLog(replay(logFile, state));
+            if (Files.exists(compactingFile) && !isCompacting()) {
+                // a previous run stopped before its compaction finished
+                submitCompaction(new VaultHeader(state.header), new HashMap<>(state.entries));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading data: " + e.getMessage(), e);
+        }
+
+        if (!found) {
+            System.out.println("No existing data found. Starting fresh.");
+            return null;
+        }
+        return new LoadedData(state.header, state.entries);
+    }
+
+    /**
+     * Folds the log into the snapshot right away and deletes it, so that the snapshot file alone
+     * holds the whole vault. Changes recorded but not yet saved stay pending.
+     */
+    public synchronized void checkpoint() {
+        if (!Files.exists(logFile) && !Files.exists(compactingFile)) return;
+        awaitCompaction();
+        LoadedData data = load();
+        awaitCompaction();
+        if (data == null) return;
+        try {
+            PersistenceService.writeAtomically(snapshotFile, data.header, data.entries);
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            Files.deleteIfExists(compactingFile);
+            Files.deleteIfExists(logFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Checkpoint error", e);
+        }
+    }
+
+    /** Blocks until a running background compaction has finished. */
+    public void awaitCompaction() {
+        Future<?> running;
+        synchronized (this) {
+            running = compaction;
+        }
+        if (running == null) return;
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Compaction error", e.getCause());
+        }
+    }
+
+    private void appendFrame(byte[] payload) throws IOException {
+        if (log == null) {
+            openLog(replay(logFile, null));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+
+        long start = log.size();
+        try {
+            while (frame.hasRemaining()) {
+                log.write(frame);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            // a partial frame would hide every later one from replay
+            log.truncate(start);
+            log.position(start);
+            throw e;
+        }
+    }
+
+    private void openLog(long validLength) throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (log.size() > validLength) {
+            log.truncate(validLength);
+        }
+        log.position(validLength);
+    }
+
+    private boolean isCompacting() {
+        return (compaction != null && !compaction.isDone()) || Files.exists(compactingFile);
+    }
+
+    private void startCompaction(VaultHeader header, Map<String, PasswordEntry> entries) throws IOException {
+        log.close();
+        log = null;
+        Files.move(logFile, compactingFile, StandardCopyOption.ATOMIC_MOVE);
+        openLog(0);
+        submitCompaction(new VaultHeader(header), new HashMap<>(entries));
+    }
+
+    private void submitCompaction(VaultHeader header, HashMap<String, PasswordEntry> entries) {
+        compaction = compactor.submit(() -> {
+            try {
+                PersistenceService.writeAtomically(snapshotFile, header, entries);
+                Files.delete(compactingFile);
+            } catch (IOException e) {
+                System.err.println("Error compacting journal: " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Applies every intact frame of a log to the state, or only validates them when state is null.
+     *
+     * @return length of the intact prefix of the log
+     */
+    private static long replay(Path file, State state) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long valid = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChannelReader in = new ChannelReader(channel);
+            long size = channel.size();
+            while (valid + FRAME_HEADER_LENGTH <= size) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length < 0 || valid + FRAME_HEADER_LENGTH + length > size) break;
+
+                byte[] payload = new byte[length];
+                in.getRaw(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) break;
+
+                if (state != null) {
+                    apply(payload, state);
+                }
+                valid += FRAME_HEADER_LENGTH + length;
+            }
+        } catch (EOFException e) {
+            // torn tail; everything up to the last intact frame is kept
+        }
+        return valid;
+    }
+
+    private static void apply(byte[] payload, State state) throws IOException {
+        ChannelReader in = new ChannelReader(ByteBuffer.wrap(payload));
+        while (!in.atEnd()) {
+            byte type = in.getByte();
+            switch (type) {
+                case PUT:
+                    PasswordEntry entry = VaultFormat.readEntry(in);
+                    state.entries.put(entry.getAccountName(), entry);
+                    break;
+                case REMOVE:
+                    state.entries.remove(in.getString());
+                    break;
+                case CLEAR:
+                    state.entries.clear();
+                    break;
+                case HEADER:
+                    state.header = VaultFormat.readHeaderFields(in);
+                    break;
+                case HEADER_WITHOUT_FLAGS:
+                    state.header = VaultFormat.readHeaderFieldsWithoutFlags(in);
+                    break;
+                default:
+                    throw new IOException("Unknown journal record " + type);
+            }
+        }
+    }
+
+    private static final class State {
+        VaultHeader header;
+        final HashMap<String, PasswordEntry> entries;
+
+        State(VaultHeader header, HashMap<String, PasswordEntry> entries) {
+            this.header = header;
+            this.entries = entries;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package persistence;
+
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only view of a binary vault file mapped into memory.
+ *
+ * Opening reads the header and builds a hash table of entry offsets from the on-disk index;
+ * names and entry records stay in the mapped region and are decoded when asked for, so the
+ * heap cost is about two int slots per entry. Version 1 files have no index and their entry
+ * records are scanned once at open instead.
+ *
+ * {@link #close()} unmaps the file right away rather than when the buffer is collected, as
+ * Windows does not let a mapped file be replaced or deleted. The vault, and every set or
+ * iterator it handed out, must not be used after that.
+ */
+public final class MappedVault implements Closeable {
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final VaultHeader header;
+
+    // open-addressing table of entry record offsets + 1 (0 = free), keyed by the account name bytes
+    private final int[] slots;
+    private final int size;
+    private boolean closed;
+
+    private MappedVault(FileChannel channel, MappedByteBuffer buffer, VaultHeader header, int[] slots, int size) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.header = header;
+        this.slots = slots;
+        this.size = size;
+    }
+
+    public static MappedVault open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Vault too large to map: " + size + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            ChannelReader in = new ChannelReader(buffer.duplicate());
+            if (size < 6 || in.getInt() != VaultFormat.MAGIC) {
+                throw new IOException("Not a binary vault file");
+            }
+            short version = buffer.getShort(4);
+            VaultHeader header = VaultFormat.readHeader(in);
+
+            int count;
+            if (version != VaultFormat.VERSION_WITHOUT_INDEX) {
+                in = indexReader(buffer, (int) size);
+                count = in.getInt();
+            } else {
+                count = in.getInt();
+            }
+            if ((long) count * VaultFormat.MIN_ENTRY_LENGTH > in.remaining()) {
+                throw new IOException("Corrupt entry count " + count);
+            }
+            int[] slots = newSlots(count);
+            for (int i = 0; i < count; i++) {
+                int entryOffset;
+                int nameOffset = in.position();
+                if (version != VaultFormat.VERSION_WITHOUT_INDEX) {
+                    in.skipBytes();
+                    entryOffset = (int) in.getLong();
+                } else {
+                    entryOffset = nameOffset;
+                    in.skipBytes();
+                    in.skipBytes();
+                    in.skipBytes();
+                }
+                insert(slots, hash(buffer, nameOffset), entryOffset);
+            }
+            return new MappedVault(channel, buffer, header, slots, count);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public VaultHeader getHeader() {
+        return new VaultHeader(header);
+    }
+
+    /** Account names, decoded from the mapped file while iterating. */
+    public Set<String> accountNames() {
+        return new AbstractSet<String>() {
+            public Iterator<String> iterator() {
+                return new NameIterator();
+            }
+
+            public int size() {
+                return size;
+            }
+
+            public boolean contains(Object o) {
+                return o instanceof String && MappedVault.this.contains((String) o);
+            }
+        };
+    }
+
+    public boolean contains(String accountName) {
+        return find(accountName) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Decodes one entry from the mapped file, or returns null if the account is not in it. */
+    public PasswordEntry read(String accountName) {
+        int offset = find(accountName);
+        if (offset < 0) {
+            return null;
+        }
+        try {
+            return VaultFormat.readEntry(readerAt(offset));
+        } catch (IOException e) {
+            throw new RuntimeException("Vault read error", e);
+        }
+    }
+
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        channel.close();
+        unmap(buffer);
+    }
+
+    // There is no public unmap; this is the JDK's own hook for it, in jdk.unsupported. Where it
+    // is missing the mapping goes when the buffer is collected, and on Windows a save fails until then.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Vault is closed");
+        }
+    }
+
+    private int find(String accountName) {
+        checkOpen();
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        int mask = slots.length - 1;
+        for (int i = hash(name) & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int offset = slots[i] - 1;
+            if (nameEquals(offset, name)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    // entry records start with the length-prefixed account name
+    private boolean nameEquals(int offset, byte[] name) {
+        if (buffer.getInt(offset) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(offset + 4 + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ChannelReader readerAt(int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        return new ChannelReader(record);
+    }
+
+    private static ChannelReader indexReader(ByteBuffer buffer, int size) throws IOException {
+        if (size < VaultFormat.FOOTER_LENGTH || buffer.getInt(size - 4) != VaultFormat.INDEX_MAGIC) {
+            throw new IOException("Vault index footer missing");
+        }
+        long indexOffset = buffer.getLong(size - VaultFormat.FOOTER_LENGTH);
+        if (indexOffset < 0 || indexOffset > size - VaultFormat.FOOTER_LENGTH) {
+            throw new IOException("Corrupt index offset " + indexOffset);
+        }
+        ByteBuffer index = buffer.duplicate();
+        index.position((int) indexOffset);
+        return new ChannelReader(index);
+    }
+
+    private static int[] newSlots(int count) throws IOException {
+        if (count < 0 || count > (1 << 29)) {
+            throw new IOException("Corrupt entry count " + count);
+        }
+        // at most half full keeps probe sequences short
+        int capacity = Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1;
+        return new int[capacity];
+    }
+
+    private static void insert(int[] slots, int hash, int entryOffset) {
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = entryOffset + 1;
+    }
+
+    private static int hash(ByteBuffer buffer, int nameOffset) throws IOException {
+        int length = buffer.getInt(nameOffset);
+        if (length < 0) {
+            throw new IOException("Missing account name");
+        }
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer.get(nameOffset + 4 + i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] name) {
+        int h = 1;
+        for (byte b : name) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private class NameIterator implements Iterator<String> {
+        private int slot = advance(0);
+
+        private int advance(int from) {
+            while (from < slots.length && slots[from] == 0) {
+                from++;
+            }
+            return from;
+        }
+
+        public boolean hasNext() {
+            return slot < slots.length;
+        }
+
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            checkOpen();
+            int offset = slots[slot] - 1;
+            slot = advance(slot + 1);
+            try {
+                return readerAt(offset).getString();
+            } catch (IOException e) {
+                throw new RuntimeException("Vault read error", e);
+            }
+        }
+    }
+}
@@ -1,11 +1,25 @@
 package persistence;
 
 import interfaces.IPersistenceService;
+import model.KdfParameters;
 import model.PasswordEntry;
+import model.VaultHeader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Stores the vault in the binary {@link VaultFormat}. Files written by older versions through
+ * Java serialization are still read; they are converted on the next save or by {@link #migrate()}.
+ */
 public class PersistenceService implements IPersistenceService {
 
     private final String fileName;
@@ -14,27 +28,111 @@ public class PersistenceService implements IPersistenceService {
         this.fileName = fileName;
     }
 
-    public void save(byte[] salt, String encryptedMasterPassword, HashMap<String, PasswordEntry> entries) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fileName))) {
-            oos.writeObject(salt);
-            oos.writeObject(encryptedMasterPassword);
-            oos.writeObject(entries);
+    /**
+     * Replaces the vault file atomically: a crash leaves either the old or the new file, never a mix.
+     *
+     * @throws RuntimeException if the vault could not be written; the previous file is then unchanged
+     */
+    public void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+        try {
+            writeAtomically(path(), header, entries);
         } catch (IOException e) {
-            System.err.println("Error saving data: " + e.getMessage());
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * @return the stored vault, or null if there is no vault file yet
+     * @throws RuntimeException if the file exists but cannot be read; it is then left untouched
+     */
     public LoadedData load() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileName))) {
-            byte[] salt = (byte[]) ois.readObject();
-            String encryptedMasterPassword = (String) ois.readObject();
-            HashMap<String, PasswordEntry> entries = (HashMap<String, PasswordEntry>) ois.readObject();
+        try (FileChannel channel = FileChannel.open(path(), StandardOpenOption.READ)) {
+            ChannelReader in = new ChannelReader(channel);
+            int magic = channel.size() >= 4 ? in.getInt() : 0;
+            if (magic != VaultFormat.MAGIC) {
+                channel.position(0);
+                return loadSerialized(channel);
+            }
 
-            return new LoadedData(salt, encryptedMasterPassword, entries);
-        } catch (IOException | ClassNotFoundException e) {
+            VaultHeader header = VaultFormat.readHeader(in);
+            return new LoadedData(header, VaultFormat.readEntries(in));
+        } catch (NoSuchFileException e) {
             System.out.println("No existing data found. Starting fresh.");
             return null;
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException("Error loading data: " + e.getMessage(), e);
         }
     }
-}
 
+    /**
+     * Rewrites a Java-serialized vault in the binary format.
+     *
+     * @return true if the file was converted, false if it was already binary or missing
+     */
+    public boolean migrate() {
+        if (!isSerializedFormat()) {
+            return false;
+        }
+        LoadedData data = load();
+        if (data == null) {
+            return false;
+        }
+        save(data.header, data.entries);
+        return true;
+    }
+
+    boolean isSerializedFormat() {
+        try (FileChannel channel = FileChannel.open(path(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {
+                // keep reading until the magic is complete or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == VaultFormat.JAVA_SERIALIZATION_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Writes a complete vault next to the target, forces it to disk and renames it over the target. */
+    public static void writeAtomically(Path target, VaultHeader header, Map<String, PasswordEntry> entries) throws IOException {
+        writeAtomically(target, header, entries, null);
+    }
+
+    /**
+     * As above, closing the given resource once the new vault is written and before the rename;
+     * for entries read from a mapping of the target, which has to be released first on Windows.
+     */
+    public static void writeAtomically(Path target, VaultHeader header, Map<String, PasswordEntry> entries,
+                                       Closeable beforeRename) throws IOException {
+        AtomicFiles.replace(target, channel -> VaultFormat.write(new ChannelWriter(channel), header, entries), beforeRename);
+    }
+
+    private Path path() {
+        return Paths.get(fileName);
+    }
+
+    private static LoadedData loadSerialized(FileChannel channel) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        VaultHeader header = new VaultHeader();
+        header.setSalt((byte[]) ois.readObject());
+        header.setEncryptedMasterPassword((String) ois.readObject());
+        HashMap<String, PasswordEntry> entries = (HashMap<String, PasswordEntry>) ois.readObject();
+        header.setWrappedKey((byte[]) readOptional(ois));
+        header.setKeyCheck((byte[]) readOptional(ois));
+        header.setKdfParameters((KdfParameters) readOptional(ois));
+
+        return new LoadedData(header, entries);
+    }
+
+    // fields appended after the entries map are missing in files written by older versions
+    private static Object readOptional(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        try {
+            return ois.readObject();
+        } catch (EOFException e) {
+            return null;
+        } catch (OptionalDataException e) {
+            if (e.eof) return null;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package persistence;
+
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Splits the vault across shard files by account-name hash and rewrites only the shards
+ * changed since the last save.
+ *
+ * A manifest ("&lt;file&gt;.manifest") holds the vault header and the current generation of
+ * every shard. A save writes each dirty shard to a new generation file
+ * ("&lt;file&gt;.shard-&lt;i&gt;.&lt;generation&gt;"), then replaces the manifest atomically and only
+ * then deletes the files it superseded. Until the manifest is renamed the previous state stays
+ * complete on disk, so a crash in the middle of a save never mixes old and new shards, which
+ * matters when one save changes the header and every entry, as a key rotation does.
+ *
+ * Every shard file and the manifest start with their own header and end with a CRC32 of all
+ * preceding bytes. Shards are read in parallel at load.
+ *
+ * An unsharded vault file is read when there is no manifest yet and deleted once the first
+ * manifest is committed, so the two never exist side by side as separate copies of the vault.
+ */
+public class ShardedPersistenceService implements IPersistenceService {
+    public static final int DEFAULT_SHARD_COUNT = 16;
+
+    private static final int MANIFEST_MAGIC = 0x504D534D; // "PMSM"
+    private static final int SHARD_MAGIC = 0x504D5348; // "PMSH"
+    private static final short VERSION = 1;
+
+    private final Path manifestFile;
+    private final Path legacyFile;
+    private final String shardPrefix;
+
+    private int shardCount;
+    private long[] generations;
+    private byte[] writtenHeader;
+    private boolean splitting; // loaded from the unsharded file, which goes after the first save
+    private final BitSet dirty = new BitSet();
+
+    public ShardedPersistenceService(String fileName) {
+        this(fileName, DEFAULT_SHARD_COUNT);
+    }
+
+    /** @param shardCount used for new vaults; an existing vault keeps the count it was created with */
+    public ShardedPersistenceService(String fileName, int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        this.manifestFile = Paths.get(fileName + ".manifest");
+        this.legacyFile = Paths.get(fileName);
+        this.shardPrefix = Paths.get(fileName).getFileName() + ".shard-";
+        this.shardCount = shardCount;
+        this.generations = new long[shardCount];
+    }
+
+    /** Whether the vault of this file name has been sharded, so it must not be opened unsharded. */
+    public static boolean isSharded(String fileName) {
+        return Files.exists(Paths.get(fileName + ".manifest"));
+    }
+
+    public synchronized void recordPut(PasswordEntry entry) {
+        dirty.set(shardOf(entry.getAccountName()));
+    }
+
+    public synchronized void recordRemove(String accountName) {
+        dirty.set(shardOf(accountName));
+    }
+
+    public synchronized void recordClear() {
+        dirty.set(0, shardCount);
+    }
+
+    public synchronized void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+        try {
+            byte[] headerBytes = VaultFormat.encodeHeaderFields(header);
+            if (dirty.isEmpty() && Arrays.equals(headerBytes, writtenHeader)) {
+                return;
+            }
+
+            int[] shards = dirty.stream().toArray();
+            List<List<PasswordEntry>> contents = new ArrayList<>(shards.length);
+            int[] slot = new int[shardCount];
+            Arrays.fill(slot, -1);
+            for (int i = 0; i < shards.length; i++) {
+                slot[shards[i]] = i;
+                contents.add(new ArrayList<>());
+            }
+            // hashing every key costs far less than the writes it saves
+            for (PasswordEntry entry : entries.values()) {
+                int target = slot[shardOf(entry.getAccountName())];
+                if (target >= 0) {
+                    contents.get(target).add(entry);
+                }
+            }
+
+            long[] next = generations.clone();
+            for (int shard : shards) {
+                next[shard] = generations[shard] + 1;
+            }
+            IntStream.range(0, shards.length).parallel().forEach(i -> writeShard(shards[i], next[shards[i]], contents.get(i)));
+
+            AtomicFiles.replace(manifestFile, channel -> writeManifest(channel, headerBytes, next));
+            if (splitting) {
+                Files.deleteIfExists(legacyFile);
+                splitting = false;
+            }
+
+            for (int shard : shards) {
+                if (generations[shard] > 0) {
+                    Files.deleteIfExists(shardFile(shard, generations[shard]));
+                }
+            }
+            generations = next;
+            writtenHeader = headerBytes;
+            dirty.clear();
+        } catch (IOException | UncheckedShardException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    public synchronized LoadedData load() {
+        if (!Files.exists(manifestFile)) {
+            // an unsharded vault is split up on its first save
+            LoadedData data = new PersistenceService(legacyFile.toString()).load();
+            generations = new long[shardCount];
+            writtenHeader = null;
+            dirty.set(0, shardCount);
+            splitting = data != null;
+            return data;
+        }
+
+        try {
+            ChannelReader in = verifiedReader(Files.readAllBytes(manifestFile), MANIFEST_MAGIC);
+            byte[] headerBytes = in.getBytes();
+            int count = in.getInt();
+            if (count <= 0 || (long) count * 8 > in.remaining()) {
+                throw new IOException("Corrupt shard count " + count);
+            }
+            long[] stored = new long[count];
+            for (int i = 0; i < count; i++) {
+                stored[i] = in.getLong();
+            }
+
+            List<HashMap<String, PasswordEntry>> shards = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                shards.add(null);
+            }
+            IntStream.range(0, count).parallel().forEach(i -> shards.set(i, readShard(i, count, stored[i])));
+
+            int total = shards.stream().mapToInt(Map::size).sum();
+            HashMap<String, PasswordEntry> entries = new HashMap<>(Math.max(16, (int) (total / 0.75f) + 1));
+            shards.forEach(entries::putAll);
+
+            shardCount = count;
+            generations = stored;
+            writtenHeader = headerBytes;
+            dirty.clear();
+            deleteUnreferencedShards();
+
+            VaultHeader header = VaultFormat.decodeHeaderFields(headerBytes);
+            return new LoadedData(header, entries);
+        } catch (IOException | UncheckedShardException e) {
+            throw new RuntimeException("Error loading data: " + e.getMessage(), e);
+        }
+    }
+
+    int shardOf(String accountName) {
+        return (accountName.hashCode() & 0x7fffffff) % shardCount;
+    }
+
+    private Path shardFile(int shard, long generation) {
+        return manifestFile.resolveSibling(shardPrefix + shard + "." + generation);
+    }
+
+    private void writeShard(int shard, long generation, List<PasswordEntry> entries) {
+        try {
+            AtomicFiles.create(shardFile(shard, generation), channel -> {
+                CRC32 crc = new CRC32();
+                ChannelWriter out = new ChannelWriter(new ChecksumChannel(channel, crc));
+                out.putInt(SHARD_MAGIC).putShort(VERSION).putInt(shard).putInt(shardCount).putLong(generation);
+                out.putInt(entries.size());
+                for (PasswordEntry entry : entries) {
+                    VaultFormat.writeEntry(out, entry);
+                }
+                out.flush();
+                writeChecksum(channel, crc);
+            });
+        } catch (IOException e) {
+            throw new UncheckedShardException("shard " + shard + ": " + e.getMessage(), e);
+        }
+    }
+
+    private HashMap<String, PasswordEntry> readShard(int shard, int count, long generation) {
+        if (generation == 0) {
+            return new HashMap<>(); // never written
+        }
+        try {
+            ChannelReader in = verifiedReader(Files.readAllBytes(shardFile(shard, generation)), SHARD_MAGIC);
+            if (in.getInt() != shard || in.getInt() != count || in.getLong() != generation) {
+                throw new IOException("Shard " + shard + " belongs to a different vault layout");
+            }
+            return VaultFormat.readEntries(in);
+        } catch (IOException e) {
+            throw new UncheckedShardException("shard " + shard + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void writeManifest(FileChannel channel, byte[] headerBytes, long[] generations) throws IOException {
+        CRC32 crc = new CRC32();
+        ChannelWriter out = new ChannelWriter(new ChecksumChannel(channel, crc));
+        out.putInt(MANIFEST_MAGIC).putShort(VERSION);
+        out.putBytes(headerBytes);
+        out.putInt(generations.length);
+        for (long generation : generations) {
+            out.putLong(generation);
+        }
+        out.flush();
+        writeChecksum(channel, crc);
+    }
+
+    private static void writeChecksum(FileChannel channel, CRC32 crc) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+        trailer.flip();
+        while (trailer.hasRemaining()) {
+            channel.write(trailer);
+        }
+    }
+
+    // checks the trailing CRC32 and the magic and version at the start
+    private static ChannelReader verifiedReader(byte[] bytes, int magic) throws IOException {
+        if (bytes.length < 10) {
+            throw new IOException("File too short");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - 4)) {
+            throw new IOException("Checksum mismatch");
+        }
+        ChannelReader in = new ChannelReader(ByteBuffer.wrap(bytes, 0, bytes.length - 4));
+        if (in.getInt() != magic || in.getShort() != VERSION) {
+            throw new IOException("Unknown file format");
+        }
+        return in;
+    }
+
+    // leftovers of saves that crashed before their manifest was written
+    private void deleteUnreferencedShards() throws IOException {
+        Set<Path> referenced = new HashSet<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            referenced.add(shardFile(shard, generations[shard]));
+        }
+        Path directory = manifestFile.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, shardPrefix + "*")) {
+            for (Path file : files) {
+                if (!referenced.contains(manifestFile.resolveSibling(file.getFileName()))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // lets shard I/O failures cross the parallel streams
+    private static final class UncheckedShardException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UncheckedShardException(String message, IOException cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final class ChecksumChannel implements java.nio.channels.WritableByteChannel {
+        private final FileChannel channel;
+        private final CRC32 crc;
+
+        ChecksumChannel(FileChannel channel, CRC32 crc) {
+            this.channel = channel;
+            this.crc = crc;
+        }
+
+        public int write(ByteBuffer source) throws IOException {
+            ByteBuffer view = source.duplicate();
+            int written = channel.write(source);
+            view.limit(view.position() + written);
+            crc.update(view);
+            return written;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
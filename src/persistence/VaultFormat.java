@@ -0,0 +1,181 @@
+package persistence;
+
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary vault layout, version 3:
+ *
+ * <pre>
+ * int    magic "PMV1"
+ * short  version
+ * bytes  salt, string encryptedMasterPassword, bytes wrappedKey, bytes keyCheck
+ * kdf    string algorithm (null when absent), int iterations, int cost, int blockSize, int parallelism
+ * byte   flags, bit 0 set when all entries are authenticated
+ * int    entry count
+ * entry  string accountName, string username, bytes encryptedPassword   (repeated)
+ * index  int count, then string accountName, long entry offset          (repeated)
+ * footer long index offset, int magic "PMIX"
+ * </pre>
+ *
+ * All lengths are big-endian ints and -1 marks a null value. Version 2 is the same without
+ * the flags, version 1 also without the index and footer; sequential readers stop after the
+ * entries and read all three.
+ * A file that does not start with the magic number is an ObjectOutputStream vault from
+ * before this format.
+ */
+final class VaultFormat {
+    static final int MAGIC = 0x504D5631; // "PMV1"
+    static final short VERSION = 3;
+    static final short VERSION_WITHOUT_FLAGS = 2;
+    static final short VERSION_WITHOUT_INDEX = 1;
+    private static final byte ENTRIES_AUTHENTICATED = 1;
+    static final int INDEX_MAGIC = 0x504D4958; // "PMIX"
+    static final int FOOTER_LENGTH = 12;
+    // three length prefixes; also the smallest index record, a name and an 8-byte offset
+    static final int MIN_ENTRY_LENGTH = 12;
+
+    // ObjectOutputStream streams start with 0xACED followed by the stream version 5
+    static final int JAVA_SERIALIZATION_MAGIC = 0xACED0005;
+
+    private VaultFormat() {
+    }
+
+    static void writeHeader(ChannelWriter out, VaultHeader header) throws IOException {
+        out.putInt(MAGIC).putShort(VERSION);
+        writeHeaderFields(out, header);
+    }
+
+    static void writeHeaderFields(ChannelWriter out, VaultHeader header) throws IOException {
+        out.putBytes(header.getSalt());
+        out.putString(header.getEncryptedMasterPassword());
+        out.putBytes(header.getWrappedKey());
+        out.putBytes(header.getKeyCheck());
+
+        KdfParameters kdf = header.getKdfParameters();
+        out.putString(kdf == null ? null : kdf.getAlgorithm());
+        if (kdf != null) {
+            out.putInt(kdf.getIterations()).putInt(kdf.getCost()).putInt(kdf.getBlockSize()).putInt(kdf.getParallelism());
+        }
+        out.putByte(header.isEntriesAuthenticated() ? ENTRIES_AUTHENTICATED : 0);
+    }
+
+    /** The header fields alone, for files that store them inside their own layout. */
+    static byte[] encodeHeaderFields(VaultHeader header) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChannelWriter out = new ChannelWriter(Channels.newChannel(bytes), 512);
+        writeHeaderFields(out, header);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Fields encoded before the flags existed end with the key derivation. */
+    static VaultHeader decodeHeaderFields(byte[] bytes) throws IOException {
+        ChannelReader in = new ChannelReader(ByteBuffer.wrap(bytes));
+        VaultHeader header = readHeaderFieldsWithoutFlags(in);
+        if (!in.atEnd()) {
+            readFlags(in, header);
+        }
+        return header;
+    }
+
+    static void writeEntry(ChannelWriter out, PasswordEntry entry) throws IOException {
+        out.putString(entry.getAccountName());
+        out.putString(entry.getUsername());
+        out.putBytes(entry.getEncryptedPassword());
+    }
+
+    static void write(ChannelWriter out, VaultHeader header, Map<String, PasswordEntry> entries) throws IOException {
+        writeHeader(out, header);
+
+        int count = entries.size();
+        String[] names = new String[count];
+        long[] offsets = new long[count];
+        out.putInt(count);
+        int i = 0;
+        for (PasswordEntry entry : entries.values()) {
+            names[i] = entry.getAccountName();
+            offsets[i++] = out.position();
+            writeEntry(out, entry);
+        }
+        if (i != count) {
+            throw new IOException("Entries changed while saving");
+        }
+
+        long indexOffset = out.position();
+        out.putInt(count);
+        for (i = 0; i < count; i++) {
+            out.putString(names[i]).putLong(offsets[i]);
+        }
+        out.putLong(indexOffset).putInt(INDEX_MAGIC);
+        out.flush();
+    }
+
+    /** Reads the header; the magic number must already have been consumed. */
+    static VaultHeader readHeader(ChannelReader in) throws IOException {
+        short version = in.getShort();
+        if (version != VERSION && version != VERSION_WITHOUT_FLAGS && version != VERSION_WITHOUT_INDEX) {
+            throw new IOException("Unsupported vault version " + version);
+        }
+        return version == VERSION ? readHeaderFields(in) : readHeaderFieldsWithoutFlags(in);
+    }
+
+    static VaultHeader readHeaderFields(ChannelReader in) throws IOException {
+        VaultHeader header = readHeaderFieldsWithoutFlags(in);
+        readFlags(in, header);
+        return header;
+    }
+
+    static VaultHeader readHeaderFieldsWithoutFlags(ChannelReader in) throws IOException {
+        VaultHeader header = new VaultHeader();
+        header.setSalt(in.getBytes());
+        header.setEncryptedMasterPassword(in.getString());
+        header.setWrappedKey(in.getBytes());
+        header.setKeyCheck(in.getBytes());
+
+        String algorithm = in.getString();
+        if (algorithm != null) {
+            int iterations = in.getInt();
+            int cost = in.getInt();
+            int blockSize = in.getInt();
+            int parallelism = in.getInt();
+            if (KdfParameters.SCRYPT.equals(algorithm)) {
+                header.setKdfParameters(KdfParameters.scrypt(cost, blockSize, parallelism));
+            } else if (KdfParameters.PBKDF2_SHA256.equals(algorithm)) {
+                header.setKdfParameters(KdfParameters.pbkdf2(iterations));
+            } else {
+                throw new IOException("Unknown key derivation " + algorithm);
+            }
+        }
+        return header;
+    }
+
+    private static void readFlags(ChannelReader in, VaultHeader header) throws IOException {
+        header.setEntriesAuthenticated((in.getByte() & ENTRIES_AUTHENTICATED) != 0);
+    }
+
+    static PasswordEntry readEntry(ChannelReader in) throws IOException {
+        return new PasswordEntry(in.getString(), in.getString(), in.getBytes());
+    }
+
+    static HashMap<String, PasswordEntry> readEntries(ChannelReader in) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || (long) count * MIN_ENTRY_LENGTH > in.remaining()) {
+            throw new IOException("Corrupt entry count " + count);
+        }
+        HashMap<String, PasswordEntry> entries = new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+        for (int i = 0; i < count; i++) {
+            PasswordEntry entry = readEntry(in);
+            entries.put(entry.getAccountName(), entry);
+        }
+        return entries;
+    }
+}
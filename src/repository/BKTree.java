@@ -0,0 +1,146 @@
+package repository;
+
+import model.EditDistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Burkhard-Keller tree over account names under edit distance.
+ *
+ * Every child hangs off its parent at its distance to the parent, and the triangle inequality
+ * limits a search within distance d of the query to children whose edge lies within d of the
+ * query's own distance to the parent; most of the tree is never compared. Names cannot be
+ * taken out of a BK-tree, so removed names are only marked, and the tree is rebuilt once
+ * they are the majority.
+ */
+final class BKTree {
+    private Node root;
+    // live and removed names, for the marks and the rebuild
+    private final HashMap<String, Node> nodes = new HashMap<>();
+    private int removed;
+
+    void add(String name) {
+        Node existing = nodes.get(name);
+        if (existing != null) {
+            if (existing.removed) {
+                existing.removed = false;
+                removed--;
+            }
+            return;
+        }
+        Node node = new Node(name);
+        nodes.put(name, node);
+        if (root == null) {
+            root = node;
+            return;
+        }
+        Node parent = root;
+        while (true) {
+            int distance = EditDistance.between(name, parent.name);
+            Node child = parent.child(distance);
+            if (child == null) {
+                parent.addChild(distance, node);
+                return;
+            }
+            parent = child;
+        }
+    }
+
+    void remove(String name) {
+        Node node = nodes.get(name);
+        if (node == null || node.removed) return;
+        node.removed = true;
+        removed++;
+        if (removed > nodes.size() / 2) {
+            rebuild();
+        }
+    }
+
+    void clear() {
+        root = null;
+        nodes.clear();
+        removed = 0;
+    }
+
+    /** Live names within maxDistance of the query, closest first, then by name. */
+    List<String> search(String query, int maxDistance) {
+        List<Match> matches = new ArrayList<>();
+        if (root != null) {
+            List<Node> pending = new ArrayList<>();
+            pending.add(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.remove(pending.size() - 1);
+                int distance = EditDistance.between(query, node.name);
+                if (distance <= maxDistance && !node.removed) {
+                    matches.add(new Match(node.name, distance));
+                }
+                for (int i = 0; i < node.childCount; i++) {
+                    if (Math.abs(node.edges[i] - distance) <= maxDistance) {
+                        pending.add(node.children[i]);
+                    }
+                }
+            }
+        }
+        matches.sort((a, b) -> a.distance != b.distance ? Integer.compare(a.distance, b.distance) : a.name.compareTo(b.name));
+        List<String> names = new ArrayList<>(matches.size());
+        for (Match match : matches) {
+            names.add(match.name);
+        }
+        return names;
+    }
+
+    private void rebuild() {
+        List<String> live = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (!node.removed) {
+                live.add(node.name);
+            }
+        }
+        clear();
+        live.forEach(this::add);
+    }
+
+    private static final class Node {
+        final String name;
+        boolean removed;
+        int[] edges = new int[0];
+        Node[] children = new Node[0];
+        int childCount;
+
+        Node(String name) {
+            this.name = name;
+        }
+
+        Node child(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (edges[i] == distance) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(int distance, Node child) {
+            if (childCount == edges.length) {
+                int capacity = Math.max(2, childCount * 2);
+                edges = Arrays.copyOf(edges, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            edges[childCount] = distance;
+            children[childCount++] = child;
+        }
+    }
+
+    private static final class Match {
+        final String name;
+        final int distance;
+
+        Match(String name, int distance) {
+            this.name = name;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package repository;
+
+import interfaces.IPasswordRepository;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.BTreeStore;
+import persistence.PersistenceService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Repository over a page-based B+tree in "&lt;file&gt;.btree".
+ *
+ * Lookups, adds and removes read and copy only the pages on the path to one leaf, and a save
+ * writes just those pages, so the vault does not have to fit in memory. A vault file in the
+ * older single-file format is imported the first time the tree is created and deleted once the
+ * tree is committed, so the two never exist side by side as separate copies of the vault.
+ *
+ * An entry must fit in a quarter page ({@link BTreeStore#MAX_ENTRY_SIZE}); add and update throw
+ * IllegalArgumentException for larger ones. The import leaves them out, names them and keeps the
+ * old file as "&lt;file&gt;.not-imported" instead of deleting it.
+ */
+public class BTreePasswordRepository implements IPasswordRepository {
+
+    private final BTreeStore store;
+    private final Map<String, PasswordEntry> entriesView = new EntriesView();
+
+    public BTreePasswordRepository(String fileName) {
+        this(fileName, BTreeStore.DEFAULT_CACHE_PAGES);
+    }
+
+    public BTreePasswordRepository(String fileName, int cachePages) {
+        try {
+            this.store = BTreeStore.open(Paths.get(fileName + ".btree"), cachePages);
+        } catch (IOException e) {
+            throw new RuntimeException("Vault open error", e);
+        }
+        if (store.isNew()) {
+            importVault(fileName);
+        }
+    }
+
+    /** Whether the vault of this file name is stored as a B-tree, so it must not be opened as a single file. */
+    public static boolean exists(String fileName) {
+        return Files.exists(Paths.get(fileName + ".btree"));
+    }
+
+    public boolean add(PasswordEntry entry) {
+        if (store.get(entry.getAccountName()) != null) {
+            return false;
+        }
+        return store.put(entry);
+    }
+
+    public boolean remove(String accountName) {
+        return store.remove(accountName);
+    }
+
+    public boolean update(String accountName, String username, byte[] encryptedPassword) {
+        if (store.get(accountName) == null) {
+            return false;
+        }
+        store.put(new PasswordEntry(accountName, username, encryptedPassword));
+        return true;
+    }
+
+    public PasswordEntry get(String accountName) {
+        return store.get(accountName);
+    }
+
+    public List<PasswordEntry> find(String accountName) {
+        List<PasswordEntry> searchEntries = new ArrayList<>();
+
+        // substring match: walks the leaves in order
+        for (Iterator<PasswordEntry> it = store.iterator(); it.hasNext(); ) {
+            PasswordEntry entry = it.next();
+            if (entry.getAccountName().contains(accountName)) {
+                searchEntries.add(entry);
+            }
+        }
+        return searchEntries;
+    }
+
+    public void save() {
+        try {
+            store.commit();
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    public byte[] getSalt() {
+        return store.getHeader().getSalt();
+    }
+
+    public void setSalt(byte[] salt) {
+        store.getHeader().setSalt(salt);
+    }
+
+    public byte[] getWrappedKey() {
+        return store.getHeader().getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        store.getHeader().setWrappedKey(wrappedKey);
+    }
+
+    public byte[] getKeyCheck() {
+        return store.getHeader().getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        store.getHeader().setKeyCheck(keyCheck);
+    }
+
+    public KdfParameters getKdfParameters() {
+        return store.getHeader().getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        store.getHeader().setKdfParameters(kdfParameters);
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return store.getHeader().isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        store.getHeader().setEntriesAuthenticated(entriesAuthenticated);
+    }
+
+    public String getEncryptedMasterPassword() {
+        return store.getHeader().getEncryptedMasterPassword();
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        store.getHeader().setEncryptedMasterPassword(encryptedMasterPassword);
+    }
+
+    public boolean isAccountOrdered() {
+        return true;
+    }
+
+    /** Each page is read from the tree as it is needed; changing the tree meanwhile ends the cursor with an error. */
+    public EntryCursor cursor(EntryQuery query) {
+        return EntryCursor.over(store.iterator(query.getAfter()), query);
+    }
+
+    /** Live view in account-name order; entries are read from the tree as they are accessed. */
+    public Map<String, PasswordEntry> getEntries() {
+        return entriesView;
+    }
+
+    public void dump() {
+        store.clear();
+        VaultHeader header = new VaultHeader();
+        header.setEncryptedMasterPassword("");
+        store.setHeader(header);
+    }
+
+    private void importVault(String fileName) {
+        PersistenceService.LoadedData data = new PersistenceService(fileName).load();
+        if (data == null) {
+            return;
+        }
+        store.setHeader(data.header);
+        List<String> skipped = new ArrayList<>();
+        for (PasswordEntry entry : data.entries.values()) {
+            if (BTreeStore.fits(entry)) {
+                store.put(entry);
+            } else {
+                skipped.add(entry.getAccountName());
+            }
+        }
+        save();
+
+        Path legacy = Paths.get(fileName);
+        try {
+            if (skipped.isEmpty()) {
+                Files.delete(legacy);
+            } else {
+                Path kept = Paths.get(fileName + ".not-imported");
+                Files.move(legacy, kept, StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Not imported, too large for a B-tree page: " + skipped
+                        + ". They are still in " + kept + ".");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    private class EntriesView extends AbstractMap<String, PasswordEntry> {
+        private final Set<Entry<String, PasswordEntry>> entrySet = new AbstractSet<Entry<String, PasswordEntry>>() {
+            public Iterator<Entry<String, PasswordEntry>> iterator() {
+                Iterator<PasswordEntry> entries = store.iterator();
+                return new Iterator<Entry<String, PasswordEntry>>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public Entry<String, PasswordEntry> next() {
+                        PasswordEntry entry = entries.next();
+                        return new SimpleImmutableEntry<>(entry.getAccountName(), entry);
+                    }
+                };
+            }
+
+            public int size() {
+                return EntriesView.this.size();
+            }
+        };
+
+        public int size() {
+            return (int) Math.min(store.size(), Integer.MAX_VALUE);
+        }
+
+        public boolean containsKey(Object key) {
+            return key instanceof String && store.get((String) key) != null;
+        }
+
+        public PasswordEntry get(Object key) {
+            return key instanceof String ? store.get((String) key) : null;
+        }
+
+        public Set<Entry<String, PasswordEntry>> entrySet() {
+            return entrySet;
+        }
+    }
+}
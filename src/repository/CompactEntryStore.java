@@ -0,0 +1,408 @@
+package repository;
+
+import model.PasswordEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Entries packed into primitive arrays instead of one object graph per entry.
+ *
+ * Each entry has an id. Its account name and ciphertext are one record in a shared byte arena
+ * (varint length, UTF-8 name, varint length + 1 or 0 for null, ciphertext), and three int
+ * arrays indexed by id hold the record offset, the name hash and the username id. Usernames
+ * repeat across accounts, so each distinct one is stored once with a reference count. Names
+ * are found through an open-addressing table of ids with linear probing.
+ *
+ * Replaced and removed records stay in the arena as garbage until it makes up half of it,
+ * then the live records are copied into a new arena. {@link PasswordEntry} objects are only
+ * created when an entry is read.
+ */
+final class CompactEntryStore implements EntryStore {
+    private static final int FREE = -1;
+    private static final int NO_USERNAME = -1;
+    private static final int MIN_COMPACTION_BYTES = 1 << 20;
+
+    private byte[] arena = new byte[1 << 12];
+    private int arenaEnd;
+    private int garbage;
+
+    // by id
+    private int[] recordOffsets = new int[16];
+    private int[] hashes = new int[16];
+    private int[] userIds = new int[16];
+    private int idLimit; // ids at or above are unused
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int size;
+
+    // id + 1 per slot, 0 for an empty slot; at most half full
+    private int[] table = new int[32];
+
+    private final HashMap<String, Integer> usernameIds = new HashMap<>();
+    private String[] usernames = new String[16];
+    private int[] usernameRefs = new int[16];
+    private int usernameLimit;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(String accountName) {
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        return table[slotOf(name, hash(name))] != 0;
+    }
+
+    public PasswordEntry get(String accountName) {
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        int slot = slotOf(name, hash(name));
+        return table[slot] == 0 ? null : decode(table[slot] - 1, accountName);
+    }
+
+    /** Adds the entry, or replaces the one stored for its account. @return true if it was added */
+    public boolean put(PasswordEntry entry) {
+        byte[] name = entry.getAccountName().getBytes(StandardCharsets.UTF_8);
+        int hash = hash(name);
+        int slot = slotOf(name, hash);
+        if (table[slot] != 0) {
+            int id = table[slot] - 1;
+            releaseRecord(id);
+            releaseUsername(userIds[id]);
+            recordOffsets[id] = appendRecord(name, entry.getEncryptedPassword());
+            userIds[id] = acquireUsername(entry.getUsername());
+            compactIfWasteful();
+            return false;
+        }
+
+        int id = newId();
+        recordOffsets[id] = appendRecord(name, entry.getEncryptedPassword());
+        hashes[id] = hash;
+        userIds[id] = acquireUsername(entry.getUsername());
+        table[slot] = id + 1;
+        size++;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return true;
+    }
+
+    boolean remove(String accountName) {
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        int slot = slotOf(name, hash(name));
+        if (table[slot] == 0) {
+            return false;
+        }
+        int id = table[slot] - 1;
+        deleteSlot(slot);
+        releaseRecord(id);
+        releaseUsername(userIds[id]);
+        recordOffsets[id] = FREE;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        size--;
+        compactIfWasteful();
+        return true;
+    }
+
+    void clear() {
+        arena = new byte[1 << 12];
+        arenaEnd = 0;
+        garbage = 0;
+        recordOffsets = new int[16];
+        hashes = new int[16];
+        userIds = new int[16];
+        idLimit = 0;
+        freeCount = 0;
+        size = 0;
+        table = new int[32];
+        usernameIds.clear();
+        usernames = new String[16];
+        usernameRefs = new int[16];
+        usernameLimit = 0;
+    }
+
+    /** Account names containing the text; compares UTF-8 bytes, which matches String.contains for valid text. */
+    boolean nameContains(int id, byte[] text) {
+        int offset = recordOffsets[id];
+        int length = readVarint(offset);
+        int start = offset + varintSize(length);
+        for (int i = start, last = start + length - text.length; i <= last; i++) {
+            int j = 0;
+            while (j < text.length && arena[i + j] == text[j]) {
+                j++;
+            }
+            if (j == text.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** -1 if nobody uses the username. */
+    int usernameId(String username) {
+        Integer id = username == null ? null : usernameIds.get(username);
+        return id == null ? -1 : id;
+    }
+
+    int usernameIdOf(int id) {
+        return userIds[id];
+    }
+
+    /** Ids in use, in no particular order; the store must not change during iteration. */
+    Iterator<Integer> ids() {
+        return new Iterator<Integer>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < idLimit && recordOffsets[from] == FREE) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return next < idLimit;
+            }
+
+            public Integer next() {
+                if (next >= idLimit) {
+                    throw new NoSuchElementException();
+                }
+                int id = next;
+                next = advance(next + 1);
+                return id;
+            }
+        };
+    }
+
+    public Iterator<PasswordEntry> entries() {
+        Iterator<Integer> ids = ids();
+        return new Iterator<PasswordEntry>() {
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            public PasswordEntry next() {
+                return decode(ids.next());
+            }
+        };
+    }
+
+    String accountName(int id) {
+        int offset = recordOffsets[id];
+        int length = readVarint(offset);
+        return new String(arena, offset + varintSize(length), length, StandardCharsets.UTF_8);
+    }
+
+    PasswordEntry decode(int id) {
+        return decode(id, accountName(id));
+    }
+
+    private PasswordEntry decode(int id, String accountName) {
+        int offset = recordOffsets[id];
+        int nameLength = readVarint(offset);
+        offset += varintSize(nameLength) + nameLength;
+        int passwordLength = readVarint(offset) - 1;
+        byte[] password = passwordLength < 0 ? null
+                : Arrays.copyOfRange(arena, offset + varintSize(passwordLength + 1), offset + varintSize(passwordLength + 1) + passwordLength);
+        String username = userIds[id] == NO_USERNAME ? null : usernames[userIds[id]];
+        return new PasswordEntry(accountName, username, password);
+    }
+
+    // the slot holding the name, or the empty slot where it would go
+    private int slotOf(byte[] name, int hash) {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0 || (hashes[id] == hash && nameEquals(id, name))) {
+                return slot;
+            }
+        }
+    }
+
+    // backward-shift deletion keeps probe sequences intact without tombstones
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[table[next] - 1] & mask;
+            boolean reachable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (reachable) {
+                table[hole] = table[next];
+                hole = next;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != 0) {
+                int slot = hashes[value - 1] & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    private boolean nameEquals(int id, byte[] name) {
+        int offset = recordOffsets[id];
+        int length = readVarint(offset);
+        if (length != name.length) {
+            return false;
+        }
+        int start = offset + varintSize(length);
+        return Arrays.equals(arena, start, start + length, name, 0, length);
+    }
+
+    private int newId() {
+        if (freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        if (idLimit == recordOffsets.length) {
+            int capacity = idLimit * 2;
+            recordOffsets = Arrays.copyOf(recordOffsets, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+        }
+        return idLimit++;
+    }
+
+    private int appendRecord(byte[] name, byte[] password) {
+        int passwordLength = password == null ? 0 : password.length;
+        ensureArena(10 + name.length + passwordLength);
+        int start = arenaEnd;
+        writeVarint(name.length);
+        System.arraycopy(name, 0, arena, arenaEnd, name.length);
+        arenaEnd += name.length;
+        writeVarint(password == null ? 0 : passwordLength + 1);
+        if (password != null) {
+            System.arraycopy(password, 0, arena, arenaEnd, passwordLength);
+            arenaEnd += passwordLength;
+        }
+        return start;
+    }
+
+    private void releaseRecord(int id) {
+        garbage += recordLength(recordOffsets[id]);
+    }
+
+    private int recordLength(int offset) {
+        int nameLength = readVarint(offset);
+        int position = offset + varintSize(nameLength) + nameLength;
+        int passwordField = readVarint(position);
+        return position + varintSize(passwordField) + Math.max(0, passwordField - 1) - offset;
+    }
+
+    private void compactIfWasteful() {
+        if (arenaEnd < MIN_COMPACTION_BYTES || garbage * 2 < arenaEnd) return;
+        byte[] compacted = new byte[Math.max(1 << 12, (arenaEnd - garbage) + (arenaEnd - garbage) / 2)];
+        int end = 0;
+        for (int id = 0; id < idLimit; id++) {
+            int offset = recordOffsets[id];
+            if (offset != FREE) {
+                int length = recordLength(offset);
+                System.arraycopy(arena, offset, compacted, end, length);
+                recordOffsets[id] = end;
+                end += length;
+            }
+        }
+        arena = compacted;
+        arenaEnd = end;
+        garbage = 0;
+    }
+
+    private void ensureArena(int needed) {
+        if (arenaEnd + needed <= arena.length) return;
+        long capacity = Math.max((long) arenaEnd + needed, arena.length + (long) arena.length / 2);
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Vault too large for compact storage");
+        }
+        arena = Arrays.copyOf(arena, (int) capacity);
+    }
+
+    private int acquireUsername(String username) {
+        if (username == null) {
+            return NO_USERNAME;
+        }
+        Integer existing = usernameIds.get(username);
+        int id;
+        if (existing != null) {
+            id = existing;
+        } else {
+            id = usernameLimit;
+            // reuse a slot whose username is no longer referenced
+            for (int candidate = 0; candidate < usernameLimit && usernameLimit > 64; candidate += Math.max(1, usernameLimit / 64)) {
+                if (usernameRefs[candidate] == 0) {
+                    id = candidate;
+                    break;
+                }
+            }
+            if (id == usernameLimit) {
+                if (usernameLimit == usernames.length) {
+                    usernames = Arrays.copyOf(usernames, usernameLimit * 2);
+                    usernameRefs = Arrays.copyOf(usernameRefs, usernameLimit * 2);
+                }
+                usernameLimit++;
+            }
+            usernames[id] = username;
+            usernameIds.put(username, id);
+        }
+        usernameRefs[id]++;
+        return id;
+    }
+
+    private void releaseUsername(int id) {
+        if (id == NO_USERNAME) return;
+        if (--usernameRefs[id] == 0) {
+            usernameIds.remove(usernames[id]);
+            usernames[id] = null;
+        }
+    }
+
+    private static int hash(byte[] name) {
+        int h = 0x811C9DC5;
+        for (byte b : name) {
+            h = (h ^ b) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            arena[arenaEnd++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        arena[arenaEnd++] = (byte) value;
+    }
+
+    private int readVarint(int offset) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = arena[offset++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,160 @@
+package repository;
+
+import interfaces.IPasswordRepository;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.PersistenceService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repository that keeps its entries in a {@link CompactEntryStore}.
+ *
+ * A HashMap of entries costs a map node, an entry object, two strings and a byte array per
+ * account; here an entry is a record in a shared byte array plus a few ints, which takes about
+ * 40% of the heap. Entries are decoded when they are read. Saving streams them straight
+ * from the store into the vault file.
+ *
+ * Reads and changes are synchronized on the repository, so entries can be looked up while
+ * another thread changes them; iterating {@link #getEntries()} needs the caller to hold that lock.
+ */
+public class CompactPasswordRepository implements IPasswordRepository {
+
+    private final Path file;
+    private final CompactEntryStore store = new CompactEntryStore();
+    private VaultHeader header;
+
+    private final Map<String, PasswordEntry> entriesView = EntryStores.view(this, store);
+
+    public CompactPasswordRepository(String fileName) {
+        this.file = Paths.get(fileName);
+        this.header = EntryStores.load(fileName, store);
+    }
+
+    public synchronized boolean add(PasswordEntry entry) {
+        if (store.contains(entry.getAccountName())) {
+            return false;
+        }
+        store.put(entry);
+        return true;
+    }
+
+    public synchronized boolean remove(String accountName) {
+        return store.remove(accountName);
+    }
+
+    public synchronized boolean update(String accountName, String username, byte[] encryptedPassword) {
+        if (!store.contains(accountName)) {
+            return false;
+        }
+        store.put(new PasswordEntry(accountName, username, encryptedPassword));
+        return true;
+    }
+
+    public synchronized List<PasswordEntry> find(String accountName) {
+        List<PasswordEntry> searchEntries = new ArrayList<>();
+        byte[] text = accountName.getBytes(StandardCharsets.UTF_8);
+
+        // match on the stored name bytes, decode only the hits
+        for (Iterator<Integer> ids = store.ids(); ids.hasNext(); ) {
+            int id = ids.next();
+            if (store.nameContains(id, text)) {
+                searchEntries.add(store.decode(id));
+            }
+        }
+        return searchEntries;
+    }
+
+    public synchronized List<PasswordEntry> findByUsername(String username) {
+        List<PasswordEntry> found = new ArrayList<>();
+        int usernameId = store.usernameId(username);
+        if (usernameId < 0) {
+            return found;
+        }
+        // usernames are shared ids, so this compares ints rather than strings
+        for (Iterator<Integer> ids = store.ids(); ids.hasNext(); ) {
+            int id = ids.next();
+            if (store.usernameIdOf(id) == usernameId) {
+                found.add(store.decode(id));
+            }
+        }
+        found.sort(Comparator.comparing(PasswordEntry::getAccountName));
+        return found;
+    }
+
+    public synchronized void save() {
+        try {
+            PersistenceService.writeAtomically(file, header, entriesView);
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    public byte[] getSalt() {
+        return header.getSalt();
+    }
+
+    public void setSalt(byte[] salt) {
+        header.setSalt(salt);
+    }
+
+    public byte[] getWrappedKey() {
+        return header.getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        header.setWrappedKey(wrappedKey);
+    }
+
+    public byte[] getKeyCheck() {
+        return header.getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        header.setKeyCheck(keyCheck);
+    }
+
+    public KdfParameters getKdfParameters() {
+        return header.getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        header.setKdfParameters(kdfParameters);
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return header.isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        header.setEntriesAuthenticated(entriesAuthenticated);
+    }
+
+    public String getEncryptedMasterPassword() {
+        return header.getEncryptedMasterPassword();
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        header.setEncryptedMasterPassword(encryptedMasterPassword);
+    }
+
+    /** Live view; values are decoded from the store as they are read. */
+    public Map<String, PasswordEntry> getEntries() {
+        return entriesView;
+    }
+
+    public synchronized void dump() {
+        store.clear();
+        this.header = new VaultHeader();
+        this.header.setEncryptedMasterPassword("");
+    }
+}
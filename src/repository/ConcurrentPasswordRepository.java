@@ -0,0 +1,244 @@
+package repository;
+
+import interfaces.IPasswordRepository;
+import interfaces.IPersistenceService;
+import model.EntryBatch;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.PersistenceService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Repository that any number of threads may use at once.
+ *
+ * Entries live in a {@link ConcurrentHashMap}, so changes to different accounts do not wait
+ * for each other. Each change reports itself to the persistence service while it holds the
+ * lock of its own account, so the service sees changes to one account in the order they
+ * were applied. The header is replaced as a whole on every change and is never modified in
+ * place.
+ *
+ * Changes share a read lock that {@link #save}, {@link #getEntries} and {@link #dump} take
+ * exclusively. These three therefore see a state in which no change is half applied; that is
+ * what makes the map handed out a consistent snapshot. {@link #getEntries} copies the vault;
+ * {@link #save} hands the persistence service a read-only view of the live map instead, which
+ * stays consistent because no change runs until the save returns.
+ */
+public class ConcurrentPasswordRepository implements IPasswordRepository {
+
+    private final IPersistenceService persistence;
+    private final ConcurrentHashMap<String, PasswordEntry> entries;
+    private volatile VaultHeader header;
+
+    private final ReentrantReadWriteLock state = new ReentrantReadWriteLock();
+    private final Object headerLock = new Object();
+
+    public ConcurrentPasswordRepository(IPersistenceService persistence) {
+        this.persistence = persistence;
+        PersistenceService.LoadedData data = persistence.load();
+
+        if (data != null) {
+            this.header = data.header;
+            this.entries = new ConcurrentHashMap<>(data.entries);
+        } else {
+            this.header = new VaultHeader();
+            this.entries = new ConcurrentHashMap<>();
+        }
+    }
+
+    public boolean add(PasswordEntry entry) {
+        boolean[] added = new boolean[1];
+        change(() -> entries.compute(entry.getAccountName(), (accountName, current) -> {
+            if (current != null) {
+                return current;
+            }
+            persistence.recordPut(entry);
+            added[0] = true;
+            return entry;
+        }));
+        return added[0];
+    }
+
+    public boolean remove(String accountName) {
+        boolean[] removed = new boolean[1];
+        change(() -> entries.computeIfPresent(accountName, (key, current) -> {
+            persistence.recordRemove(accountName);
+            removed[0] = true;
+            return null;
+        }));
+        return removed[0];
+    }
+
+    public boolean update(String accountName, String username, byte[] encryptedPassword) {
+        return replace(accountName, null, username, encryptedPassword);
+    }
+
+    /**
+     * Updates the entry only if it is still the one the caller read, so a concurrent update
+     * of the same account is never overwritten unseen.
+     *
+     * @param expected the entry as read before, compared by identity
+     * @return false if the account is gone or holds a different entry by now
+     */
+    public boolean compareAndUpdate(String accountName, PasswordEntry expected, String username, byte[] encryptedPassword) {
+        if (expected == null) {
+            throw new IllegalArgumentException("Expected entry is required");
+        }
+        return replace(accountName, expected, username, encryptedPassword);
+    }
+
+    /** Applied while {@link #save} and {@link #getEntries} wait, so they see all of the batch or none of it. */
+    public int batch(Consumer<EntryBatch> changes) {
+        EntryBatch batch = new EntryBatch();
+        changes.accept(batch);
+        state.writeLock().lock();
+        try {
+            int applied = batch.applyTo(this);
+            save();
+            return applied;
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    public PasswordEntry get(String accountName) {
+        return entries.get(accountName);
+    }
+
+    public List<PasswordEntry> find(String accountName) {
+        List<PasswordEntry> searchEntries = new ArrayList<>();
+
+        // weakly consistent: sees each entry at most once, changes made meanwhile may or may not show
+        for (PasswordEntry entry : entries.values()) {
+            if (entry.getAccountName().contains(accountName)) {
+                searchEntries.add(entry);
+            }
+        }
+        return searchEntries;
+    }
+
+    public void save() {
+        state.writeLock().lock();
+        try {
+            persistence.save(header, Collections.unmodifiableMap(entries));
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    public void flush() {
+        persistence.flush();
+    }
+
+    public byte[] getSalt() {
+        return header.getSalt();
+    }
+
+    public void setSalt(byte[] salt) {
+        changeHeader(header -> header.setSalt(salt));
+    }
+
+    public byte[] getWrappedKey() {
+        return header.getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        changeHeader(header -> header.setWrappedKey(wrappedKey));
+    }
+
+    public byte[] getKeyCheck() {
+        return header.getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        changeHeader(header -> header.setKeyCheck(keyCheck));
+    }
+
+    public KdfParameters getKdfParameters() {
+        return header.getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        changeHeader(header -> header.setKdfParameters(kdfParameters));
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return header.isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        changeHeader(header -> header.setEntriesAuthenticated(entriesAuthenticated));
+    }
+
+    public String getEncryptedMasterPassword() {
+        return header.getEncryptedMasterPassword();
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        changeHeader(header -> header.setEncryptedMasterPassword(encryptedMasterPassword));
+    }
+
+    /** An unmodifiable copy of all entries at one point in time. */
+    public Map<String, PasswordEntry> getEntries() {
+        state.writeLock().lock();
+        try {
+            return Collections.unmodifiableMap(new HashMap<>(entries));
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    public void dump() {
+        state.writeLock().lock();
+        try {
+            entries.clear();
+            persistence.recordClear();
+            VaultHeader empty = new VaultHeader();
+            empty.setEncryptedMasterPassword("");
+            synchronized (headerLock) {
+                header = empty;
+            }
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    private boolean replace(String accountName, PasswordEntry expected, String username, byte[] encryptedPassword) {
+        boolean[] replaced = new boolean[1];
+        change(() -> entries.computeIfPresent(accountName, (key, current) -> {
+            if (expected != null && current != expected) {
+                return current;
+            }
+            PasswordEntry entry = new PasswordEntry(accountName, username, encryptedPassword);
+            persistence.recordPut(entry);
+            replaced[0] = true;
+            return entry;
+        }));
+        return replaced[0];
+    }
+
+    private void change(Runnable change) {
+        state.readLock().lock();
+        try {
+            change.run();
+        } finally {
+            state.readLock().unlock();
+        }
+    }
+
+    private void changeHeader(Consumer<VaultHeader> change) {
+        synchronized (headerLock) {
+            VaultHeader copy = new VaultHeader(header);
+            change.accept(copy);
+            header = copy;
+        }
+    }
+}
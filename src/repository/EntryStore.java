@@ -0,0 +1,21 @@
+package repository;
+
+import model.PasswordEntry;
+
+import java.util.Iterator;
+
+/** Entries kept in packed form and decoded to {@link PasswordEntry} objects only when read. */
+interface EntryStore {
+
+    int size();
+
+    boolean contains(String accountName);
+
+    PasswordEntry get(String accountName);
+
+    /** Adds the entry, or replaces the one stored for its account. @return true if it was added */
+    boolean put(PasswordEntry entry);
+
+    /** Decodes the entries one by one, in no particular order; the store must not change during iteration. */
+    Iterator<PasswordEntry> entries();
+}
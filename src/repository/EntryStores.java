@@ -0,0 +1,95 @@
+package repository;
+
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.PersistenceService;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/** Loading and map view shared by the repositories that keep their entries in an {@link EntryStore}. */
+final class EntryStores {
+
+    private EntryStores() {
+    }
+
+    /**
+     * Puts the entries of the vault file into the store.
+     *
+     * @return the vault header, or a new one if there is no vault file yet
+     * @throws RuntimeException if the file exists but cannot be read
+     */
+    static VaultHeader load(String fileName, EntryStore store) {
+        PersistenceService.LoadedData data = new PersistenceService(fileName).load();
+        if (data == null) {
+            return new VaultHeader();
+        }
+        for (PasswordEntry entry : data.entries.values()) {
+            store.put(entry);
+        }
+        return data.header;
+    }
+
+    /**
+     * Map view over the store whose lookups synchronize on the given lock; iterating it needs
+     * the caller to hold that lock.
+     */
+    static Map<String, PasswordEntry> view(Object lock, EntryStore store) {
+        return new EntriesView(lock, store);
+    }
+
+    private static final class EntriesView extends AbstractMap<String, PasswordEntry> {
+        private final Object lock;
+        private final EntryStore store;
+
+        private final Set<Entry<String, PasswordEntry>> entrySet = new AbstractSet<Entry<String, PasswordEntry>>() {
+            public Iterator<Entry<String, PasswordEntry>> iterator() {
+                Iterator<PasswordEntry> entries = store.entries();
+                return new Iterator<Entry<String, PasswordEntry>>() {
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    public Entry<String, PasswordEntry> next() {
+                        PasswordEntry entry = entries.next();
+                        return new SimpleImmutableEntry<>(entry.getAccountName(), entry);
+                    }
+                };
+            }
+
+            public int size() {
+                return EntriesView.this.size();
+            }
+        };
+
+        EntriesView(Object lock, EntryStore store) {
+            this.lock = lock;
+            this.store = store;
+        }
+
+        public int size() {
+            synchronized (lock) {
+                return store.size();
+            }
+        }
+
+        public boolean containsKey(Object key) {
+            synchronized (lock) {
+                return key instanceof String && store.contains((String) key);
+            }
+        }
+
+        public PasswordEntry get(Object key) {
+            synchronized (lock) {
+                return key instanceof String ? store.get((String) key) : null;
+            }
+        }
+
+        public Set<Entry<String, PasswordEntry>> entrySet() {
+            return entrySet;
+        }
+    }
+}
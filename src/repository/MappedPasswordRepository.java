@@ -0,0 +1,296 @@
+package repository;
+
+import interfaces.IPasswordRepository;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.MappedVault;
+import persistence.PersistenceService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Repository over a memory-mapped vault file.
+ *
+ * Opening loads the header and the account index only, so startup no longer grows with the
+ * size of the stored ciphertexts. Entries are decoded from the mapping when they are looked
+ * up; changes are kept in memory on top of the mapped file until {@link #save()} writes a
+ * new file and maps it in place of the old one.
+ *
+ * The old file is unmapped between writing the new one and renaming it into place, since
+ * Windows cannot replace a mapped file. Iterators over {@link #getEntries()} do not survive a
+ * save.
+ */
+public class MappedPasswordRepository implements IPasswordRepository {
+
+    private final Path file;
+    private MappedVault vault;
+    private VaultHeader header;
+
+    // changes since the last save: added or updated entries, and accounts removed from the file
+    private final HashMap<String, PasswordEntry> changed = new HashMap<>();
+    private final Set<String> removed = new HashSet<>();
+
+    private final Map<String, PasswordEntry> entriesView = new EntriesView();
+
+    public MappedPasswordRepository(String fileName) {
+        this.file = Paths.get(fileName);
+        PersistenceService legacy = new PersistenceService(fileName);
+        legacy.migrate();
+
+        if (Files.exists(file)) {
+            try {
+                this.vault = MappedVault.open(file);
+                this.header = vault.getHeader();
+            } catch (IOException e) {
+                throw new RuntimeException("Vault open error", e);
+            }
+        } else {
+            System.out.println("No existing data found. Starting fresh.");
+            this.header = new VaultHeader();
+        }
+    }
+
+    public boolean add(PasswordEntry entry) {
+        if (contains(entry.getAccountName())) {
+            return false;
+        }
+        changed.put(entry.getAccountName(), entry);
+        return true;
+    }
+
+    public boolean remove(String accountName) {
+        if (!contains(accountName)) {
+            return false;
+        }
+        changed.remove(accountName);
+        if (vault != null && vault.contains(accountName)) {
+            removed.add(accountName);
+        }
+        return true;
+    }
+
+    public boolean update(String accountName, String username, byte[] encryptedPassword) {
+        if (!contains(accountName)) {
+            return false;
+        }
+        changed.put(accountName, new PasswordEntry(accountName, username, encryptedPassword));
+        return true;
+    }
+
+    public List<PasswordEntry> find(String accountName) {
+        List<PasswordEntry> searchEntries = new ArrayList<>();
+
+        // match on the in-memory index, decode only the hits
+        for (String name : entriesView.keySet()) {
+            if (name.contains(accountName)) {
+                searchEntries.add(get(name));
+            }
+        }
+        return searchEntries;
+    }
+
+    public void save() {
+        try {
+            // the entries are read from the old mapping while the new file is written
+            PersistenceService.writeAtomically(file, header, entriesView, vault);
+        } catch (IOException | RuntimeException e) {
+            reopenAfterFailedSave();
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+        try {
+            vault = MappedVault.open(file);
+            changed.clear();
+            removed.clear();
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    // the rename failed after the old mapping was dropped; the old file is still in place
+    private void reopenAfterFailedSave() {
+        if (vault == null) return;
+        try {
+            vault.close();
+            vault = MappedVault.open(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Vault open error", e);
+        }
+    }
+
+    public byte[] getSalt() {
+        return header.getSalt();
+    }
+
+    public void setSalt(byte[] salt) {
+        header.setSalt(salt);
+    }
+
+    public byte[] getWrappedKey() {
+        return header.getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        header.setWrappedKey(wrappedKey);
+    }
+
+    public byte[] getKeyCheck() {
+        return header.getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        header.setKeyCheck(keyCheck);
+    }
+
+    public KdfParameters getKdfParameters() {
+        return header.getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        header.setKdfParameters(kdfParameters);
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return header.isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        header.setEntriesAuthenticated(entriesAuthenticated);
+    }
+
+    public String getEncryptedMasterPassword() {
+        return header.getEncryptedMasterPassword();
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        header.setEncryptedMasterPassword(encryptedMasterPassword);
+    }
+
+    /** Live view; values are decoded from the mapped file as they are read. */
+    public Map<String, PasswordEntry> getEntries() {
+        return entriesView;
+    }
+
+    public void dump() {
+        changed.clear();
+        if (vault != null) {
+            removed.addAll(vault.accountNames());
+        }
+        this.header = new VaultHeader();
+        this.header.setEncryptedMasterPassword("");
+    }
+
+    private boolean contains(String accountName) {
+        return changed.containsKey(accountName)
+                || (vault != null && !removed.contains(accountName) && vault.contains(accountName));
+    }
+
+    public PasswordEntry get(String accountName) {
+        PasswordEntry entry = changed.get(accountName);
+        if (entry != null) {
+            return entry;
+        }
+        if (vault == null || removed.contains(accountName)) {
+            return null;
+        }
+        return vault.read(accountName);
+    }
+
+    private class EntriesView extends AbstractMap<String, PasswordEntry> {
+        private final Set<Entry<String, PasswordEntry>> entrySet = new AbstractSet<Entry<String, PasswordEntry>>() {
+            public Iterator<Entry<String, PasswordEntry>> iterator() {
+                return new EntryIterator();
+            }
+
+            public int size() {
+                return EntriesView.this.size();
+            }
+        };
+
+        public int size() {
+            int stored = vault == null ? 0 : vault.size() - removed.size();
+            for (String accountName : changed.keySet()) {
+                if (vault == null || removed.contains(accountName) || !vault.contains(accountName)) {
+                    stored++;
+                }
+            }
+            return stored;
+        }
+
+        public boolean containsKey(Object key) {
+            return key instanceof String && contains((String) key);
+        }
+
+        public PasswordEntry get(Object key) {
+            return key instanceof String ? MappedPasswordRepository.this.get((String) key) : null;
+        }
+
+        public Set<Entry<String, PasswordEntry>> entrySet() {
+            return entrySet;
+        }
+    }
+
+    // file entries not removed or replaced, then the in-memory changes
+    private class EntryIterator implements Iterator<Map.Entry<String, PasswordEntry>> {
+        private final Iterator<String> stored = vault == null ? null : vault.accountNames().iterator();
+        private final Iterator<PasswordEntry> pending = changed.values().iterator();
+        private String next = advance();
+
+        private String advance() {
+            while (stored != null && stored.hasNext()) {
+                String accountName = stored.next();
+                if (!removed.contains(accountName) && !changed.containsKey(accountName)) {
+                    return accountName;
+                }
+            }
+            return pending.hasNext() ? pending.next().getAccountName() : null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<String, PasswordEntry> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String accountName = next;
+            next = advance();
+            return new LazyEntry(accountName);
+        }
+    }
+
+    // key-only iteration, as find() does, never decodes the entry
+    private class LazyEntry implements Map.Entry<String, PasswordEntry> {
+        private final String accountName;
+
+        LazyEntry(String accountName) {
+            this.accountName = accountName;
+        }
+
+        public String getKey() {
+            return accountName;
+        }
+
+        public PasswordEntry getValue() {
+            return get(accountName);
+        }
+
+        public PasswordEntry setValue(PasswordEntry value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
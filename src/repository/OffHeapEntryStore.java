@@ -0,0 +1,387 @@
+package repository;
+
+import model.PasswordEntry;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Entries kept in direct memory, outside the Java heap.
+ *
+ * Records live in fixed-size direct buffers (segments). Blocks come in power-of-two size
+ * classes; a freed block goes on the free list of its class, linked through its first eight
+ * bytes, and is handed out again before a segment grows. A record is
+ * {@code hash, name length, username length, password length} as ints (-1 for null) followed
+ * by the bytes. The index is an open-addressing table of record addresses in another direct
+ * buffer, so the heap holds only the list of segments however many entries there are.
+ *
+ * Freed and replaced blocks are zeroed right away, and {@link #close()} zeroes everything, so
+ * ciphertexts do not linger until the buffers are collected.
+ */
+final class OffHeapEntryStore implements EntryStore, Closeable {
+    static final int SEGMENT_SIZE = 1 << 22;
+
+    private static final int MIN_BLOCK_SHIFT = 5;
+    private static final int RECORD_HEADER = 16;
+    private static final long NONE = -1;
+
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private int top = SEGMENT_SIZE; // bump position in the last segment
+    // address of the first free block per size class
+    private final long[] freeLists = new long[23 - MIN_BLOCK_SHIFT];
+
+    // address + 1 per slot, 0 for an empty slot; at most half full
+    private ByteBuffer table = ByteBuffer.allocateDirect(32 * 8);
+    private int slots = 32;
+    private int size;
+    private boolean closed;
+
+    OffHeapEntryStore() {
+        Arrays.fill(freeLists, NONE);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Direct memory held by the segments and the index, in bytes. */
+    long reservedBytes() {
+        return (long) segments.size() * SEGMENT_SIZE + (long) slots * 8;
+    }
+
+    public boolean contains(String accountName) {
+        checkOpen();
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        return table.getLong(slotOf(name, hash(name)) * 8) != 0;
+    }
+
+    public PasswordEntry get(String accountName) {
+        checkOpen();
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        long value = table.getLong(slotOf(name, hash(name)) * 8);
+        return value == 0 ? null : decode(value - 1);
+    }
+
+    /** Adds the entry, or replaces the one stored for its account. @return true if it was added */
+    public boolean put(PasswordEntry entry) {
+        checkOpen();
+        byte[] name = entry.getAccountName().getBytes(StandardCharsets.UTF_8);
+        byte[] username = entry.getUsername() == null ? null : entry.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] password = entry.getEncryptedPassword();
+        int hash = hash(name);
+        int slot = slotOf(name, hash);
+        long existing = table.getLong(slot * 8);
+
+        long address = allocate(RECORD_HEADER + name.length + length(username) + length(password));
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        segment.putInt(offset, hash);
+        segment.putInt(offset + 4, name.length);
+        segment.putInt(offset + 8, username == null ? -1 : username.length);
+        segment.putInt(offset + 12, password == null ? -1 : password.length);
+        offset += RECORD_HEADER;
+        segment.put(offset, name);
+        offset += name.length;
+        if (username != null) {
+            segment.put(offset, username);
+            offset += username.length;
+        }
+        if (password != null) {
+            segment.put(offset, password);
+        }
+
+        table.putLong(slot * 8, address + 1);
+        if (existing != 0) {
+            free(existing - 1);
+            return false;
+        }
+        size++;
+        if (size * 2 > slots) {
+            rehash(slots * 2);
+        }
+        return true;
+    }
+
+    boolean remove(String accountName) {
+        checkOpen();
+        byte[] name = accountName.getBytes(StandardCharsets.UTF_8);
+        int slot = slotOf(name, hash(name));
+        long value = table.getLong(slot * 8);
+        if (value == 0) {
+            return false;
+        }
+        deleteSlot(slot);
+        free(value - 1);
+        size--;
+        return true;
+    }
+
+    /** Zeroes and drops every entry; the store stays usable. */
+    void clear() {
+        checkOpen();
+        wipe();
+        segments.clear();
+        top = SEGMENT_SIZE;
+        Arrays.fill(freeLists, NONE);
+        table = ByteBuffer.allocateDirect(32 * 8);
+        slots = 32;
+        size = 0;
+    }
+
+    /** Zeroes all entry memory; the store cannot be used afterwards. */
+    public void close() {
+        if (closed) return;
+        wipe();
+        segments.clear();
+        closed = true;
+    }
+
+    /** Record addresses, in no particular order; the store must not change during iteration. */
+    Iterator<Long> addresses() {
+        checkOpen();
+        return new Iterator<Long>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from < slots && table.getLong(from * 8) == 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return slot < slots;
+            }
+
+            public Long next() {
+                if (slot >= slots) {
+                    throw new NoSuchElementException();
+                }
+                long address = table.getLong(slot * 8) - 1;
+                slot = advance(slot + 1);
+                return address;
+            }
+        };
+    }
+
+    public Iterator<PasswordEntry> entries() {
+        Iterator<Long> addresses = addresses();
+        return new Iterator<PasswordEntry>() {
+            public boolean hasNext() {
+                return addresses.hasNext();
+            }
+
+            public PasswordEntry next() {
+                return decode(addresses.next());
+            }
+        };
+    }
+
+    /** Whether the record's account name contains the text; compares UTF-8 bytes, like String.contains for valid text. */
+    boolean nameContains(long address, byte[] text) {
+        ByteBuffer segment = segment(address);
+        int start = offset(address) + RECORD_HEADER;
+        int last = start + segment.getInt(offset(address) + 4) - text.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < text.length && segment.get(i + j) == text[j]) {
+                j++;
+            }
+            if (j == text.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean usernameEquals(long address, byte[] username) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        int length = segment.getInt(offset + 8);
+        if (length != username.length) {
+            return false;
+        }
+        return bytesEqual(segment, offset + RECORD_HEADER + segment.getInt(offset + 4), username);
+    }
+
+    PasswordEntry decode(long address) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        int nameLength = segment.getInt(offset + 4);
+        int usernameLength = segment.getInt(offset + 8);
+        int passwordLength = segment.getInt(offset + 12);
+        offset += RECORD_HEADER;
+
+        byte[] name = new byte[nameLength];
+        segment.get(offset, name);
+        offset += nameLength;
+        String username = null;
+        if (usernameLength >= 0) {
+            byte[] bytes = new byte[usernameLength];
+            segment.get(offset, bytes);
+            offset += usernameLength;
+            username = new String(bytes, StandardCharsets.UTF_8);
+        }
+        byte[] password = null;
+        if (passwordLength >= 0) {
+            password = new byte[passwordLength];
+            segment.get(offset, password);
+        }
+        return new PasswordEntry(new String(name, StandardCharsets.UTF_8), username, password);
+    }
+
+    // the slot holding the name, or the empty slot where it would go
+    private int slotOf(byte[] name, int hash) {
+        int mask = slots - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long value = table.getLong(slot * 8);
+            if (value == 0 || (hashOf(value - 1) == hash && nameEquals(value - 1, name))) {
+                return slot;
+            }
+        }
+    }
+
+    // backward-shift deletion keeps probe sequences intact without tombstones
+    private void deleteSlot(int slot) {
+        int mask = slots - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; table.getLong(next * 8) != 0; next = (next + 1) & mask) {
+            long value = table.getLong(next * 8);
+            int home = hashOf(value - 1) & mask;
+            boolean reachable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (reachable) {
+                table.putLong(hole * 8, value);
+                hole = next;
+            }
+        }
+        table.putLong(hole * 8, 0);
+    }
+
+    private void rehash(int capacity) {
+        if ((long) capacity * 8 > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Vault too large for off-heap storage");
+        }
+        ByteBuffer old = table;
+        int oldSlots = slots;
+        table = ByteBuffer.allocateDirect(capacity * 8);
+        slots = capacity;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldSlots; i++) {
+            long value = old.getLong(i * 8);
+            if (value != 0) {
+                int slot = hashOf(value - 1) & mask;
+                while (table.getLong(slot * 8) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table.putLong(slot * 8, value);
+            }
+        }
+    }
+
+    private boolean nameEquals(long address, byte[] name) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        if (segment.getInt(offset + 4) != name.length) {
+            return false;
+        }
+        return bytesEqual(segment, offset + RECORD_HEADER, name);
+    }
+
+    private static boolean bytesEqual(ByteBuffer segment, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (segment.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hashOf(long address) {
+        return segment(address).getInt(offset(address));
+    }
+
+    private long allocate(int length) {
+        int sizeClass = sizeClass(length);
+        long head = freeLists[sizeClass];
+        if (head != NONE) {
+            freeLists[sizeClass] = segment(head).getLong(offset(head));
+            segment(head).putLong(offset(head), 0);
+            return head;
+        }
+        int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+        if (top + blockSize > SEGMENT_SIZE) {
+            // the unused tail of the last segment is not reclaimed
+            segments.add(ByteBuffer.allocateDirect(SEGMENT_SIZE));
+            top = 0;
+        }
+        long address = ((long) (segments.size() - 1) << 32) | top;
+        top += blockSize;
+        return address;
+    }
+
+    private void free(long address) {
+        ByteBuffer segment = segment(address);
+        int offset = offset(address);
+        int sizeClass = sizeClass(RECORD_HEADER + segment.getInt(offset + 4)
+                + Math.max(0, segment.getInt(offset + 8)) + Math.max(0, segment.getInt(offset + 12)));
+        zero(segment, offset, 1 << (sizeClass + MIN_BLOCK_SHIFT));
+        segment.putLong(offset, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+    }
+
+    private void wipe() {
+        for (ByteBuffer segment : segments) {
+            zero(segment, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private static void zero(ByteBuffer buffer, int offset, int length) {
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            buffer.putLong(offset, 0);
+        }
+        for (; offset < end; offset++) {
+            buffer.put(offset, (byte) 0);
+        }
+    }
+
+    private static int sizeClass(int length) {
+        if (length > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Entry too large: " + length + " bytes");
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1 << MIN_BLOCK_SHIFT) - 1);
+        return shift - MIN_BLOCK_SHIFT;
+    }
+
+    private ByteBuffer segment(long address) {
+        return segments.get((int) (address >>> 32));
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static int hash(byte[] name) {
+        int h = 0x811C9DC5;
+        for (byte b : name) {
+            h = (h ^ b) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package repository;
+
+import interfaces.IPasswordRepository;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.PersistenceService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repository that keeps its entries in an {@link OffHeapEntryStore}, outside the Java heap.
+ *
+ * However large the vault, the garbage collector sees only a few buffers, so its pauses do not
+ * grow with the number of entries. Entries are decoded when they are read; saving streams them
+ * from the store into the vault file. Memory of removed or replaced entries is zeroed at once,
+ * and {@link #close()} zeroes the rest.
+ *
+ * Reads and changes are synchronized on the repository, so entries can be looked up while
+ * another thread changes them; iterating {@link #getEntries()} needs the caller to hold that lock.
+ */
+public class OffHeapPasswordRepository implements IPasswordRepository, Closeable {
+
+    private final Path file;
+    private final OffHeapEntryStore store = new OffHeapEntryStore();
+    private VaultHeader header;
+
+    private final Map<String, PasswordEntry> entriesView = EntryStores.view(this, store);
+
+    public OffHeapPasswordRepository(String fileName) {
+        this.file = Paths.get(fileName);
+        this.header = EntryStores.load(fileName, store);
+    }
+
+    public synchronized boolean add(PasswordEntry entry) {
+        if (store.contains(entry.getAccountName())) {
+            return false;
+        }
+        store.put(entry);
+        return true;
+    }
+
+    public synchronized boolean remove(String accountName) {
+        return store.remove(accountName);
+    }
+
+    public synchronized boolean update(String accountName, String username, byte[] encryptedPassword) {
+        if (!store.contains(accountName)) {
+            return false;
+        }
+        store.put(new PasswordEntry(accountName, username, encryptedPassword));
+        return true;
+    }
+
+    public synchronized List<PasswordEntry> find(String accountName) {
+        List<PasswordEntry> searchEntries = new ArrayList<>();
+        byte[] text = accountName.getBytes(StandardCharsets.UTF_8);
+
+        // match on the stored name bytes, decode only the hits
+        for (Iterator<Long> addresses = store.addresses(); addresses.hasNext(); ) {
+            long address = addresses.next();
+            if (store.nameContains(address, text)) {
+                searchEntries.add(store.decode(address));
+            }
+        }
+        return searchEntries;
+    }
+
+    public synchronized List<PasswordEntry> findByUsername(String username) {
+        List<PasswordEntry> found = new ArrayList<>();
+        if (username == null) {
+            return found;
+        }
+        byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+        for (Iterator<Long> addresses = store.addresses(); addresses.hasNext(); ) {
+            long address = addresses.next();
+            if (store.usernameEquals(address, bytes)) {
+                found.add(store.decode(address));
+            }
+        }
+        found.sort(Comparator.comparing(PasswordEntry::getAccountName));
+        return found;
+    }
+
+    public synchronized void save() {
+        try {
+            PersistenceService.writeAtomically(file, header, entriesView);
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving data: " + e.getMessage(), e);
+        }
+    }
+
+    public byte[] getSalt() {
+        return header.getSalt();
+    }
+
+    public void setSalt(byte[] salt) {
+        header.setSalt(salt);
+    }
+
+    public byte[] getWrappedKey() {
+        return header.getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        header.setWrappedKey(wrappedKey);
+    }
+
+    public byte[] getKeyCheck() {
+        return header.getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        header.setKeyCheck(keyCheck);
+    }
+
+    public KdfParameters getKdfParameters() {
+        return header.getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        header.setKdfParameters(kdfParameters);
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return header.isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        header.setEntriesAuthenticated(entriesAuthenticated);
+    }
+
+    public String getEncryptedMasterPassword() {
+        return header.getEncryptedMasterPassword();
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        header.setEncryptedMasterPassword(encryptedMasterPassword);
+    }
+
+    /** Live view; values are decoded from the store as they are read. */
+    public Map<String, PasswordEntry> getEntries() {
+        return entriesView;
+    }
+
+    public synchronized void dump() {
+        store.clear();
+        this.header = new VaultHeader();
+        this.header.setEncryptedMasterPassword("");
+    }
+
+    /** Direct memory held for the entries and their index, in bytes; freed blocks are reused. */
+    public synchronized long getReservedBytes() {
+        return store.reservedBytes();
+    }
+
+    /** Zeroes all entry memory; the repository cannot be used afterwards. */
+    public synchronized void close() {
+        store.close();
+    }
+}
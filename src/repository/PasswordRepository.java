@@ -2,67 +2,214 @@ package repository;
 
 import interfaces.IPasswordRepository;
 import interfaces.IPersistenceService;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.KdfParameters;
 import model.PasswordEntry;
+import model.VaultHeader;
 import persistence.PersistenceService;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class PasswordRepository implements IPasswordRepository {
 
     private final IPersistenceService persistence;
-    private byte[] salt;
-    private String encryptedMasterPassword;
+    private VaultHeader header;
 
     private final HashMap<String, PasswordEntry> entries;
+    private final TrigramIndex index = new TrigramIndex();
+    private final BKTree names = new BKTree();
+    // account names in order, for listing, prefix and range queries
+    private final TreeSet<String> sortedNames = new TreeSet<>();
+    // username -> accounts using it; entries without a username are not indexed
+    private final HashMap<String, Set<String>> accountsByUsername = new HashMap<>();
 
     public PasswordRepository(IPersistenceService persistence) {
         this.persistence = persistence;
         PersistenceService.LoadedData data = persistence.load();
 
         if (data != null) {
-            this.salt = data.salt;
-            this.encryptedMasterPassword = data.encryptedMasterPassword;
+            this.header = data.header;
             this.entries = data.entries;
         } else {
+            this.header = new VaultHeader();
             this.entries = new HashMap<String, PasswordEntry>();
         }
+        entries.keySet().forEach(index::add);
+        entries.keySet().forEach(names::add);
+        sortedNames.addAll(entries.keySet());
+        entries.values().forEach(this::indexUsername);
     }
 
     public boolean add(PasswordEntry entry) {
-        return entries.putIfAbsent(entry.getAccountName(), entry) == null;
+        if (entries.putIfAbsent(entry.getAccountName(), entry) != null) {
+            return false;
+        }
+        index.add(entry.getAccountName());
+        names.add(entry.getAccountName());
+        sortedNames.add(entry.getAccountName());
+        indexUsername(entry);
+        persistence.recordPut(entry);
+        return true;
     }
 
     public boolean remove(String accountName) {
-        return entries.remove(accountName) != null;
+        PasswordEntry removed = entries.remove(accountName);
+        if (removed == null) {
+            return false;
+        }
+        index.remove(accountName);
+        unindexUsername(removed);
+        names.remove(accountName);
+        sortedNames.remove(accountName);
+        persistence.recordRemove(accountName);
+        return true;
+    }
+
+    public boolean update(String accountName, String username, byte[] encryptedPassword) {
+        PasswordEntry entry = new PasswordEntry(accountName, username, encryptedPassword);
+        PasswordEntry previous = entries.replace(accountName, entry);
+        if (previous == null) {
+            return false;
+        }
+        unindexUsername(previous);
+        indexUsername(entry);
+        persistence.recordPut(entry);
+        return true;
     }
 
-    public boolean update(String accountName, String username, String encryptedPassword) {
-        return entries.replace(accountName, new PasswordEntry(accountName, username, encryptedPassword)) != null;
+    public PasswordEntry get(String accountName) {
+        return entries.get(accountName);
     }
 
     public List<PasswordEntry> find(String accountName) {
         List<PasswordEntry> searchEntries = new ArrayList<>();
 
-        entries.forEach((key, value) -> {
-            if (value.getAccountName().contains(accountName)) {
-                searchEntries.add(entries.get(key));
-            }
-        });
+        for (String name : index.search(accountName)) {
+            searchEntries.add(entries.get(name));
+        }
         return searchEntries;
     }
 
+    public List<PasswordEntry> fuzzyFind(String accountName, int maxDistance) {
+        List<PasswordEntry> searchEntries = new ArrayList<>();
+        for (String name : names.search(accountName, maxDistance)) {
+            searchEntries.add(entries.get(name));
+        }
+        return searchEntries;
+    }
+
+    public List<PasswordEntry> findByUsername(String username) {
+        List<PasswordEntry> found = new ArrayList<>();
+        Set<String> accounts = accountsByUsername.get(username);
+        if (accounts != null) {
+            for (String accountName : new TreeSet<>(accounts)) {
+                found.add(entries.get(accountName));
+            }
+        }
+        return found;
+    }
+
+    public List<PasswordEntry> findByPrefix(String prefix) {
+        List<PasswordEntry> found = new ArrayList<>();
+        for (String accountName : sortedNames.tailSet(prefix, true)) {
+            if (!accountName.startsWith(prefix)) {
+                break;
+            }
+            found.add(entries.get(accountName));
+        }
+        return found;
+    }
+
+    public List<PasswordEntry> findRange(String from, String to) {
+        List<PasswordEntry> found = new ArrayList<>();
+        if (from != null && to != null && from.compareTo(to) >= 0) {
+            return found;
+        }
+        NavigableSet<String> range = from == null ? sortedNames : sortedNames.tailSet(from, true);
+        if (to != null) {
+            range = range.headSet(to, false);
+        }
+        for (String accountName : range) {
+            found.add(entries.get(accountName));
+        }
+        return found;
+    }
+
+    public boolean isAccountOrdered() {
+        return true;
+    }
+
+    /** Ordered pages come from the sorted index; changing the repository meanwhile ends the cursor with an error. */
+    public EntryCursor cursor(EntryQuery query) {
+        if (!query.isOrdered()) {
+            return EntryCursor.over(entries.values().iterator(), query);
+        }
+        Iterator<String> accountNames = (query.getAfter() == null ? sortedNames : sortedNames.tailSet(query.getAfter(), false)).iterator();
+        return EntryCursor.over(new Iterator<PasswordEntry>() {
+            public boolean hasNext() {
+                return accountNames.hasNext();
+            }
+
+            public PasswordEntry next() {
+                return entries.get(accountNames.next());
+            }
+        }, query);
+    }
+
     public void save() {
-        persistence.save(salt, encryptedMasterPassword, entries);
+        persistence.save(header, entries);
+    }
+
+    public void flush() {
+        persistence.flush();
     }
 
     public byte[] getSalt() {
-        return salt;
+        return header.getSalt();
     }
 
     public void setSalt(byte[] salt) {
-        this.salt = salt;
+        header.setSalt(salt);
+    }
+
+    public byte[] getWrappedKey() {
+        return header.getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        header.setWrappedKey(wrappedKey);
+    }
+
+    public byte[] getKeyCheck() {
+        return header.getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        header.setKeyCheck(keyCheck);
+    }
+
+    public KdfParameters getKdfParameters() {
+        return header.getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        header.setKdfParameters(kdfParameters);
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return header.isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        header.setEntriesAuthenticated(entriesAuthenticated);
     }
 
     public HashMap<String, PasswordEntry> getEntries() {
@@ -71,16 +218,33 @@ public class PasswordRepository implements IPasswordRepository {
 
     public void dump() {
         this.entries.clear();
-        this.encryptedMasterPassword = "";
-        this.salt = null;
+        index.clear();
+        names.clear();
+        sortedNames.clear();
+        accountsByUsername.clear();
+        persistence.recordClear();
+        this.header = new VaultHeader();
+        this.header.setEncryptedMasterPassword("");
     }
 
     public String getEncryptedMasterPassword() {
-        return encryptedMasterPassword;
+        return header.getEncryptedMasterPassword();
     }
 
     public void setEncryptedMasterPassword(String encryptedMasterPassword) {
-        this.encryptedMasterPassword = encryptedMasterPassword;
+        header.setEncryptedMasterPassword(encryptedMasterPassword);
+    }
+
+    private void indexUsername(PasswordEntry entry) {
+        if (entry.getUsername() != null) {
+            accountsByUsername.computeIfAbsent(entry.getUsername(), username -> new HashSet<>()).add(entry.getAccountName());
+        }
     }
-}
 
+    private void unindexUsername(PasswordEntry entry) {
+        Set<String> accounts = entry.getUsername() == null ? null : accountsByUsername.get(entry.getUsername());
+        if (accounts != null && accounts.remove(entry.getAccountName()) && accounts.isEmpty()) {
+            accountsByUsername.remove(entry.getUsername());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package repository;
+
+import model.PasswordEntry;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable search tree of entries keyed by account name; every change returns a new root
+ * and shares all untouched nodes with the old one.
+ *
+ * Node priorities come from a hash of the key, so the shape, and with it the expected
+ * O(log n) depth, does not depend on the order of the changes. A change copies only the
+ * nodes on one path.
+ */
+final class PersistentTreap {
+
+    private PersistentTreap() {
+    }
+
+    static final class Node {
+        final String key;
+        final PasswordEntry value;
+        final int priority;
+        final Node left;
+        final Node right;
+
+        Node(String key, PasswordEntry value, int priority, Node left, Node right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+        }
+
+        Node with(Node left, Node right) {
+            return new Node(key, value, priority, left, right);
+        }
+    }
+
+    static PasswordEntry get(Node node, String key) {
+        while (node != null) {
+            int order = key.compareTo(node.key);
+            if (order == 0) {
+                return node.value;
+            }
+            node = order < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    static Node put(Node node, String key, PasswordEntry value) {
+        if (node == null) {
+            return new Node(key, value, priority(key), null, null);
+        }
+        int order = key.compareTo(node.key);
+        if (order == 0) {
+            return new Node(key, value, node.priority, node.left, node.right);
+        }
+        if (order < 0) {
+            Node left = put(node.left, key, value);
+            // rotate right when the new child outranks this node
+            return left.priority > node.priority ? left.with(left.left, node.with(left.right, node.right)) : node.with(left, node.right);
+        }
+        Node right = put(node.right, key, value);
+        return right.priority > node.priority ? right.with(node.with(node.left, right.left), right.right) : node.with(node.left, right);
+    }
+
+    /** The tree without the key; the same root if the key is absent. */
+    static Node remove(Node node, String key) {
+        if (node == null) {
+            return null;
+        }
+        int order = key.compareTo(node.key);
+        if (order == 0) {
+            return merge(node.left, node.right);
+        }
+        if (order < 0) {
+            Node left = remove(node.left, key);
+            return left == node.left ? node : node.with(left, node.right);
+        }
+        Node right = remove(node.right, key);
+        return right == node.right ? node : node.with(node.left, right);
+    }
+
+    /** Entries in account-name order. */
+    static Iterator<PasswordEntry> iterator(Node root) {
+        return iterator(root, null);
+    }
+
+    /** Entries with account names after the given one (all if null), in order. */
+    static Iterator<PasswordEntry> iterator(Node root, String after) {
+        return new Iterator<PasswordEntry>() {
+            private final ArrayDeque<Node> path = new ArrayDeque<>();
+
+            {
+                // keep the nodes past the start whose left side is still to come
+                for (Node node = root; node != null; ) {
+                    if (after == null || node.key.compareTo(after) > 0) {
+                        path.push(node);
+                        node = node.left;
+                    } else {
+                        node = node.right;
+                    }
+                }
+            }
+
+            private void descend(Node node) {
+                for (; node != null; node = node.left) {
+                    path.push(node);
+                }
+            }
+
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            public PasswordEntry next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = path.pop();
+                descend(node.right);
+                return node.value;
+            }
+        };
+    }
+
+    // all keys of the left tree are smaller than those of the right one
+    private static Node merge(Node left, Node right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            return left.with(left.left, merge(left.right, right));
+        }
+        return right.with(merge(left, right.left), right.right);
+    }
+
+    private static int priority(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,184 @@
+package repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Inverted index from every three-character substring of an account name to the accounts
+ * containing it, for substring search without scanning every name.
+ *
+ * Each account gets an increasing id, so the posting lists stay sorted just by appending. A
+ * query intersects the lists of its trigrams, smallest first, and checks the few remaining
+ * candidates with {@link String#contains}; queries shorter than three characters fall back
+ * to a scan of the names.
+ *
+ * Removed accounts leave their id unused. Once unused ids outnumber the accounts, the index is
+ * rebuilt with the accounts renumbered in the same order, so churn does not grow it for good.
+ */
+final class TrigramIndex {
+    private static final int MIN_REBUILD_IDS = 64;
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[16];
+    private int nextId;
+    private final HashMap<Long, Postings> postings = new HashMap<>();
+
+    void add(String accountName) {
+        if (ids.containsKey(accountName)) return;
+        int id = nextId++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = accountName;
+        ids.put(accountName, id);
+        for (long trigram : trigrams(accountName)) {
+            postings.computeIfAbsent(trigram, key -> new Postings()).append(id);
+        }
+    }
+
+    void remove(String accountName) {
+        Integer id = ids.remove(accountName);
+        if (id == null) return;
+        names[id] = null;
+        for (long trigram : trigrams(accountName)) {
+            Postings list = postings.get(trigram);
+            list.remove(id);
+            if (list.size == 0) {
+                postings.remove(trigram);
+            }
+        }
+        int unused = nextId - ids.size();
+        if (unused >= MIN_REBUILD_IDS && unused > ids.size()) {
+            rebuild();
+        }
+    }
+
+    void clear() {
+        ids.clear();
+        names = new String[16];
+        nextId = 0;
+        postings.clear();
+    }
+
+    // renumbers the accounts from 0 in their current order, with arrays sized for them alone
+    private void rebuild() {
+        List<String> accounts = new ArrayList<>(ids.size());
+        for (int id = 0; id < nextId; id++) {
+            if (names[id] != null) {
+                accounts.add(names[id]);
+            }
+        }
+        clear();
+        accounts.forEach(this::add);
+    }
+
+    /** Accounts whose name contains the query, in the order they were added. */
+    List<String> search(String query) {
+        List<String> found = new ArrayList<>();
+        if (query.length() < 3) {
+            for (int id = 0; id < nextId; id++) {
+                if (names[id] != null && names[id].contains(query)) {
+                    found.add(names[id]);
+                }
+            }
+            return found;
+        }
+
+        long[] grams = trigrams(query);
+        Postings[] lists = new Postings[grams.length];
+        int i = 0;
+        for (long trigram : grams) {
+            lists[i] = postings.get(trigram);
+            if (lists[i++] == null) {
+                return found;
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+        int[] candidates = Arrays.copyOf(lists[0].ids, lists[0].size);
+        int count = candidates.length;
+        for (int list = 1; list < lists.length && count > 0; list++) {
+            count = intersect(candidates, count, lists[list]);
+        }
+        // the trigrams can match out of order, so confirm each candidate
+        for (int c = 0; c < count; c++) {
+            String name = names[candidates[c]];
+            if (name.contains(query)) {
+                found.add(name);
+            }
+        }
+        return found;
+    }
+
+    // keeps the candidates present in the list: a merge when both are of similar length,
+    // otherwise a binary search per candidate
+    private static int intersect(int[] candidates, int count, Postings list) {
+        int kept = 0;
+        if (list.size < count * 8) {
+            for (int c = 0, at = 0; c < count && at < list.size; ) {
+                if (candidates[c] < list.ids[at]) {
+                    c++;
+                } else if (candidates[c] > list.ids[at]) {
+                    at++;
+                } else {
+                    candidates[kept++] = candidates[c++];
+                    at++;
+                }
+            }
+            return kept;
+        }
+        int from = 0;
+        for (int c = 0; c < count; c++) {
+            int at = Arrays.binarySearch(list.ids, from, list.size, candidates[c]);
+            if (at >= 0) {
+                candidates[kept++] = candidates[c];
+                from = at + 1;
+            } else {
+                from = -at - 1;
+            }
+        }
+        return kept;
+    }
+
+    // distinct trigrams, each packed into a long
+    private static long[] trigrams(String text) {
+        if (text.length() < 3) {
+            return new long[0];
+        }
+        long[] grams = new long[text.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        Arrays.sort(grams);
+        int distinct = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[distinct++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, distinct);
+    }
+
+    // sorted ids of the accounts containing one trigram
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void append(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        void remove(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0) {
+                System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+                size--;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package repository;
+
+import model.PasswordEntry;
+import model.VaultHeader;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One published version of a {@link VersionedPasswordRepository}: the header and all entries
+ * as they were at that point. It never changes, so it can be read from any thread for as long
+ * as needed, and holding it costs nothing beyond the tree nodes the newer versions replaced.
+ */
+public final class VaultSnapshot {
+    private final long version;
+    private final VaultHeader header;
+    final PersistentTreap.Node root;
+    private final int size;
+    private final Map<String, PasswordEntry> entries = new EntriesView();
+
+    VaultSnapshot(long version, VaultHeader header, PersistentTreap.Node root, int size) {
+        this.version = version;
+        this.header = header;
+        this.root = root;
+        this.size = size;
+    }
+
+    /** Increases by one with every published change. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** A copy, as the header of a published version must not change. */
+    public VaultHeader getHeader() {
+        return new VaultHeader(header);
+    }
+
+    VaultHeader header() {
+        return header;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PasswordEntry get(String accountName) {
+        return PersistentTreap.get(root, accountName);
+    }
+
+    /** Entries whose account name contains the given text, in account-name order. */
+    public List<PasswordEntry> find(String accountName) {
+        List<PasswordEntry> found = new ArrayList<>();
+        for (Iterator<PasswordEntry> it = PersistentTreap.iterator(root); it.hasNext(); ) {
+            PasswordEntry entry = it.next();
+            if (entry.getAccountName().contains(accountName)) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+
+    /** Read-only map view in account-name order; nothing is copied. */
+    public Map<String, PasswordEntry> entries() {
+        return entries;
+    }
+
+    private class EntriesView extends AbstractMap<String, PasswordEntry> {
+        private final Set<Entry<String, PasswordEntry>> entrySet = new AbstractSet<Entry<String, PasswordEntry>>() {
+            public Iterator<Entry<String, PasswordEntry>> iterator() {
+                Iterator<PasswordEntry> values = PersistentTreap.iterator(root);
+                return new Iterator<Entry<String, PasswordEntry>>() {
+                    public boolean hasNext() {
+                        return values.hasNext();
+                    }
+
+                    public Entry<String, PasswordEntry> next() {
+                        PasswordEntry entry = values.next();
+                        return new SimpleImmutableEntry<>(entry.getAccountName(), entry);
+                    }
+                };
+            }
+
+            public int size() {
+                return size;
+            }
+        };
+
+        public int size() {
+            return size;
+        }
+
+        public boolean containsKey(Object key) {
+            return key instanceof String && VaultSnapshot.this.get((String) key) != null;
+        }
+
+        public PasswordEntry get(Object key) {
+            return key instanceof String ? VaultSnapshot.this.get((String) key) : null;
+        }
+
+        public Set<Entry<String, PasswordEntry>> entrySet() {
+            return entrySet;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package repository;
+
+import interfaces.IPasswordRepository;
+import interfaces.IPersistenceService;
+import model.EntryBatch;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import persistence.PersistenceService;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Repository that publishes every change as a new immutable version.
+ *
+ * Readers take the current {@link VaultSnapshot} and see one point-in-time state for as long as
+ * they hold it, without locks and without copying; {@link #getEntries} hands out such a snapshot
+ * too. Versions share all unchanged parts of their entry tree, so a change costs O(log n).
+ *
+ * A bulk writer such as a rotation or an import opens an {@link Edit}, makes any number of
+ * changes that nobody else sees yet, and {@link #publish publishes} them in one step. Publishing
+ * fails if another change was published since the edit began, so no change is silently lost.
+ * The single-entry methods of the interface are edits of one change each. Until a newer version
+ * replaces it, {@link #dump} leaves readers of the old version with their entries.
+ */
+public class VersionedPasswordRepository implements IPasswordRepository {
+
+    private final IPersistenceService persistence;
+    private volatile VaultSnapshot current;
+
+    private final Object writeLock = new Object();
+
+    public VersionedPasswordRepository(IPersistenceService persistence) {
+        this.persistence = persistence;
+        PersistenceService.LoadedData data = persistence.load();
+
+        PersistentTreap.Node root = null;
+        if (data != null) {
+            for (PasswordEntry entry : data.entries.values()) {
+                root = PersistentTreap.put(root, entry.getAccountName(), entry);
+            }
+            this.current = new VaultSnapshot(0, data.header, root, data.entries.size());
+        } else {
+            this.current = new VaultSnapshot(0, new VaultHeader(), null, 0);
+        }
+    }
+
+    /** The latest published version. */
+    public VaultSnapshot snapshot() {
+        return current;
+    }
+
+    /** Starts a set of changes on top of the latest version. */
+    public Edit edit() {
+        return new Edit(current);
+    }
+
+    /**
+     * Makes all changes of the edit visible at once.
+     *
+     * @return false, publishing nothing, if another version was published since the edit began
+     */
+    public boolean publish(Edit edit) {
+        synchronized (writeLock) {
+            if (edit.base != current) {
+                return false;
+            }
+            apply(edit);
+            return true;
+        }
+    }
+
+    public boolean add(PasswordEntry entry) {
+        return change(edit -> edit.add(entry));
+    }
+
+    public boolean remove(String accountName) {
+        return change(edit -> edit.remove(accountName));
+    }
+
+    public boolean update(String accountName, String username, byte[] encryptedPassword) {
+        return change(edit -> edit.update(accountName, username, encryptedPassword));
+    }
+
+    /** Publishes one version for all entries rather than one per entry. */
+    public int addAll(Collection<PasswordEntry> entries) {
+        EntryBatch batch = new EntryBatch();
+        entries.forEach(batch::add);
+        return publishAll(batch);
+    }
+
+    public int removeAll(Collection<String> accountNames) {
+        EntryBatch batch = new EntryBatch();
+        accountNames.forEach(batch::remove);
+        return publishAll(batch);
+    }
+
+    public int updateAll(Collection<PasswordEntry> entries) {
+        EntryBatch batch = new EntryBatch();
+        entries.forEach(entry -> batch.update(entry.getAccountName(), entry.getUsername(), entry.getEncryptedPassword()));
+        return publishAll(batch);
+    }
+
+    /** All changes of the batch become visible in one new version, which is then saved. */
+    public int batch(Consumer<EntryBatch> changes) {
+        EntryBatch batch = new EntryBatch();
+        changes.accept(batch);
+        synchronized (writeLock) {
+            int applied = publishAll(batch);
+            save();
+            return applied;
+        }
+    }
+
+    public PasswordEntry get(String accountName) {
+        return current.get(accountName);
+    }
+
+    public List<PasswordEntry> find(String accountName) {
+        return current.find(accountName);
+    }
+
+    /** Hands the persistence service the latest version itself; it is immutable, so nothing is copied. */
+    public void save() {
+        synchronized (writeLock) {
+            VaultSnapshot latest = current;
+            persistence.save(latest.header(), latest.entries());
+        }
+    }
+
+    public void flush() {
+        persistence.flush();
+    }
+
+    public byte[] getSalt() {
+        return current.header().getSalt();
+    }
+
+    public void setSalt(byte[] salt) {
+        changeHeader(header -> header.setSalt(salt));
+    }
+
+    public byte[] getWrappedKey() {
+        return current.header().getWrappedKey();
+    }
+
+    public void setWrappedKey(byte[] wrappedKey) {
+        changeHeader(header -> header.setWrappedKey(wrappedKey));
+    }
+
+    public byte[] getKeyCheck() {
+        return current.header().getKeyCheck();
+    }
+
+    public void setKeyCheck(byte[] keyCheck) {
+        changeHeader(header -> header.setKeyCheck(keyCheck));
+    }
+
+    public KdfParameters getKdfParameters() {
+        return current.header().getKdfParameters();
+    }
+
+    public void setKdfParameters(KdfParameters kdfParameters) {
+        changeHeader(header -> header.setKdfParameters(kdfParameters));
+    }
+
+    public boolean isEntriesAuthenticated() {
+        return current.header().isEntriesAuthenticated();
+    }
+
+    public void setEntriesAuthenticated(boolean entriesAuthenticated) {
+        changeHeader(header -> header.setEntriesAuthenticated(entriesAuthenticated));
+    }
+
+    public String getEncryptedMasterPassword() {
+        return current.header().getEncryptedMasterPassword();
+    }
+
+    public void setEncryptedMasterPassword(String encryptedMasterPassword) {
+        changeHeader(header -> header.setEncryptedMasterPassword(encryptedMasterPassword));
+    }
+
+    public boolean isAccountOrdered() {
+        return true;
+    }
+
+    /** Pages of the latest version; changes published while it is read do not show. */
+    public EntryCursor cursor(EntryQuery query) {
+        return EntryCursor.over(PersistentTreap.iterator(current.root, query.getAfter()), query);
+    }
+
+    /** The entries of the latest version; later changes do not show in the returned map. */
+    public Map<String, PasswordEntry> getEntries() {
+        return current.entries();
+    }
+
+    public void dump() {
+        change(edit -> {
+            edit.clear();
+            VaultHeader header = edit.header();
+            header.setSalt(null);
+            header.setWrappedKey(null);
+            header.setKeyCheck(null);
+            header.setKdfParameters(null);
+            header.setEntriesAuthenticated(false);
+            header.setEncryptedMasterPassword("");
+            return true;
+        });
+    }
+
+    private interface Change {
+        boolean applyTo(Edit edit);
+    }
+
+    private boolean change(Change change) {
+        synchronized (writeLock) {
+            Edit edit = edit();
+            if (!change.applyTo(edit)) {
+                return false;
+            }
+            apply(edit);
+            return true;
+        }
+    }
+
+    private int publishAll(EntryBatch batch) {
+        int[] applied = new int[1];
+        change(edit -> (applied[0] = batch.applyTo(edit)) > 0);
+        return applied[0];
+    }
+
+    private void changeHeader(Consumer<VaultHeader> change) {
+        change(edit -> {
+            change.accept(edit.header());
+            return true;
+        });
+    }
+
+    // with writeLock held
+    private void apply(Edit edit) {
+        if (edit.cleared) {
+            persistence.recordClear();
+        }
+        for (Map.Entry<String, PasswordEntry> change : edit.changes.entrySet()) {
+            if (change.getValue() == null) {
+                persistence.recordRemove(change.getKey());
+            } else {
+                persistence.recordPut(change.getValue());
+            }
+        }
+        VaultHeader header = edit.header != null ? edit.header : edit.base.header();
+        current = new VaultSnapshot(edit.base.getVersion() + 1, header, edit.root, edit.size);
+        edit.published = true;
+    }
+
+    /** Changes private to one writer until published; not for use by several threads. */
+    public static final class Edit implements EntryBatch.Target {
+        private final VaultSnapshot base;
+        private PersistentTreap.Node root;
+        private int size;
+        private VaultHeader header;
+        private boolean cleared;
+        // in order; null marks a removed account
+        private final LinkedHashMap<String, PasswordEntry> changes = new LinkedHashMap<>();
+        private boolean published;
+
+        private Edit(VaultSnapshot base) {
+            this.base = base;
+            this.root = base.root;
+            this.size = base.size();
+        }
+
+        /** The version this edit started from. */
+        public VaultSnapshot getBase() {
+            return base;
+        }
+
+        public PasswordEntry get(String accountName) {
+            return PersistentTreap.get(root, accountName);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /** Adds the entry unless its account exists. */
+        public boolean add(PasswordEntry entry) {
+            checkOpen();
+            if (get(entry.getAccountName()) != null) {
+                return false;
+            }
+            put(entry);
+            size++;
+            return true;
+        }
+
+        /** Replaces the entry of an existing account. */
+        public boolean update(String accountName, String username, byte[] encryptedPassword) {
+            checkOpen();
+            if (get(accountName) == null) {
+                return false;
+            }
+            put(new PasswordEntry(accountName, username, encryptedPassword));
+            return true;
+        }
+
+        public boolean remove(String accountName) {
+            checkOpen();
+            if (get(accountName) == null) {
+                return false;
+            }
+            root = PersistentTreap.remove(root, accountName);
+            changes.put(accountName, null);
+            size--;
+            return true;
+        }
+
+        /** Removes every entry; the header stays. */
+        public void clear() {
+            checkOpen();
+            root = null;
+            size = 0;
+            cleared = true;
+            changes.clear();
+        }
+
+        /** The header of the next version, copied from the base on first use. */
+        public VaultHeader header() {
+            checkOpen();
+            if (header == null) {
+                header = new VaultHeader(base.header());
+            }
+            return header;
+        }
+
+        private void put(PasswordEntry entry) {
+            root = PersistentTreap.put(root, entry.getAccountName(), entry);
+            changes.put(entry.getAccountName(), entry);
+        }
+
+        private void checkOpen() {
+            if (published) {
+                throw new IllegalStateException("Edit is already published");
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.After;
+import org.junit.Test;
+import persistence.AsyncPersistenceService;
+import persistence.PersistenceService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncPersistenceServiceTest {
+
+    private AsyncPersistenceService service;
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (RuntimeException e) {
+                // failure tests leave a failed write behind
+            }
+        }
+    }
+
+    @Test
+    public void saveShouldReturnBeforeWriteAndFlushShouldWait() {
+        RecordingPersistence delegate = new RecordingPersistence();
+        delegate.block = new CountDownLatch(1);
+        service = new AsyncPersistenceService(delegate, 0);
+        service.load();
+
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(entries, new PasswordEntry("gmail", "user", new byte[]{1}));
+        service.save(header(1), entries);
+
+        assertTrue(delegate.saved.isEmpty());
+        delegate.block.countDown();
+        service.flush();
+
+        assertEquals(1, delegate.saved.size());
+        assertTrue(delegate.saved.get(0).containsKey("gmail"));
+    }
+
+    @Test
+    public void repeatedSavesShouldBeMergedIntoOneWrite() {
+        RecordingPersistence delegate = new RecordingPersistence();
+        service = new AsyncPersistenceService(delegate, TimeUnit.HOURS.toMillis(1));
+        service.load();
+
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(entries, new PasswordEntry("a", "user", new byte[]{1}));
+        service.save(header(1), entries);
+        put(entries, new PasswordEntry("b", "user", new byte[]{2}));
+        service.save(header(2), entries);
+        entries.remove("a");
+        service.recordRemove("a");
+        service.save(header(3), entries);
+        service.flush();
+
+        assertEquals(1, delegate.saved.size());
+        assertEquals(1, delegate.saved.get(0).size());
+        assertTrue(delegate.saved.get(0).containsKey("b"));
+        assertArrayEquals(new byte[]{3}, delegate.lastHeader.getSalt());
+        // "a" was added and removed within the batch: only its removal reaches the delegate
+        assertEquals(1, delegate.puts);
+        assertEquals(1, delegate.removes);
+    }
+
+    @Test
+    public void changesAfterLastSaveShouldNotBeWritten() {
+        RecordingPersistence delegate = new RecordingPersistence();
+        service = new AsyncPersistenceService(delegate, 0);
+        service.load();
+
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(entries, new PasswordEntry("a", "user", new byte[]{1}));
+        service.save(header(1), entries);
+        put(entries, new PasswordEntry("b", "user", new byte[]{2}));
+        service.flush();
+
+        assertEquals(1, delegate.saved.get(delegate.saved.size() - 1).size());
+    }
+
+    @Test
+    public void scheduledFlushShouldWriteWithoutBeingAsked() throws Exception {
+        RecordingPersistence delegate = new RecordingPersistence();
+        service = new AsyncPersistenceService(delegate, 20);
+        service.load();
+
+        service.save(header(1), new HashMap<>());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delegate.saved.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, delegate.saved.size());
+    }
+
+    @Test
+    public void failedWriteShouldBeReportedAndRetried() {
+        RecordingPersistence delegate = new RecordingPersistence();
+        delegate.failures = 1;
+        service = new AsyncPersistenceService(delegate, 0);
+        service.load();
+
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(entries, new PasswordEntry("a", "user", new byte[]{1}));
+        service.save(header(1), entries);
+        try {
+            service.flush();
+            fail("flush should report the failed write");
+        } catch (RuntimeException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+
+        service.flush();
+        assertEquals(1, delegate.saved.size());
+        assertTrue(delegate.saved.get(0).containsKey("a"));
+    }
+
+    @Test(timeout = 10000)
+    public void workerErrorShouldBeRethrownInsteadOfHanging() {
+        RecordingPersistence delegate = new RecordingPersistence();
+        delegate.error = new OutOfMemoryError("heap");
+        AsyncPersistenceService failing = new AsyncPersistenceService(delegate, 0);
+        failing.load();
+        failing.save(header(1), new HashMap<>());
+
+        for (Runnable call : new Runnable[]{failing::flush, () -> failing.save(header(2), new HashMap<>()), failing::close}) {
+            try {
+                call.run();
+                fail("the worker's error should be rethrown");
+            } catch (OutOfMemoryError e) {
+                assertSame(delegate.error, e);
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void saveAfterCloseShouldFail() {
+        service = new AsyncPersistenceService(new RecordingPersistence(), 0);
+        service.close();
+        service.save(header(1), new HashMap<>());
+    }
+
+    private void put(HashMap<String, PasswordEntry> entries, PasswordEntry entry) {
+        entries.put(entry.getAccountName(), entry);
+        service.recordPut(entry);
+    }
+
+    private static VaultHeader header(int salt) {
+        VaultHeader header = new VaultHeader();
+        header.setSalt(new byte[]{(byte) salt});
+        return header;
+    }
+
+    private static class RecordingPersistence implements IPersistenceService {
+        final List<HashMap<String, PasswordEntry>> saved = new ArrayList<>();
+        volatile VaultHeader lastHeader;
+        volatile CountDownLatch block;
+        volatile Error error;
+        int failures;
+        int puts;
+        int removes;
+
+        public synchronized void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+            if (block != null) {
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            if (failures > 0) {
+                failures--;
+                throw new RuntimeException("disk full");
+            }
+            saved.add(new HashMap<>(entries));
+            lastHeader = header;
+        }
+
+        public PersistenceService.LoadedData load() {
+            return null;
+        }
+
+        public void recordPut(PasswordEntry entry) {
+            puts++;
+        }
+
+        public void recordRemove(String accountName) {
+            removes++;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import persistence.BTreeStore;
+import persistence.PersistenceService;
+import repository.BTreePasswordRepository;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BTreePasswordRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String fileName;
+
+    @Before
+    public void setUp() {
+        fileName = new File(folder.getRoot(), "passwords.dat").getPath();
+    }
+
+    @Test
+    public void changes_shouldBeVisibleAndSurviveReopenAfterSave() {
+        BTreePasswordRepository repository = new BTreePasswordRepository(fileName);
+        repository.setSalt(new byte[]{1, 2, 3});
+
+        assertTrue(repository.add(new PasswordEntry("gmail", "user1", new byte[]{1})));
+        assertFalse(repository.add(new PasswordEntry("gmail", "dup", new byte[]{2})));
+        assertTrue(repository.add(new PasswordEntry("github", "user2", new byte[]{3})));
+        assertTrue(repository.update("gmail", "changed", new byte[]{4}));
+        assertFalse(repository.update("missing", "x", new byte[]{5}));
+        assertTrue(repository.remove("github"));
+        assertFalse(repository.remove("github"));
+        repository.save();
+
+        BTreePasswordRepository reopened = new BTreePasswordRepository(fileName);
+        assertArrayEquals(new byte[]{1, 2, 3}, reopened.getSalt());
+        assertEquals(1, reopened.getEntries().size());
+        assertEquals("changed", reopened.getEntries().get("gmail").getUsername());
+    }
+
+    @Test
+    public void find_shouldMatchSubstringInAccountOrder() {
+        BTreePasswordRepository repository = new BTreePasswordRepository(fileName);
+        repository.add(new PasswordEntry("mail-work", "u", new byte[]{1}));
+        repository.add(new PasswordEntry("bank", "u", new byte[]{2}));
+        repository.add(new PasswordEntry("gmail", "u", new byte[]{3}));
+
+        List<PasswordEntry> found = repository.find("mail");
+
+        assertEquals(2, found.size());
+        assertEquals("gmail", found.get(0).getAccountName());
+        assertEquals("mail-work", found.get(1).getAccountName());
+    }
+
+    @Test
+    public void open_shouldImportExistingVault() {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            entries.put("account" + i, new PasswordEntry("account" + i, "user" + i, new byte[]{(byte) i}));
+        }
+        VaultHeader header = new VaultHeader();
+        header.setSalt(new byte[]{7});
+        header.setKdfParameters(KdfParameters.pbkdf2(54000));
+        new PersistenceService(fileName).save(header, entries);
+
+        BTreePasswordRepository repository = new BTreePasswordRepository(fileName);
+
+        assertEquals(100, repository.getEntries().size());
+        assertEquals("user42", repository.getEntries().get("account42").getUsername());
+        assertEquals(KdfParameters.pbkdf2(54000), repository.getKdfParameters());
+        assertArrayEquals(new byte[]{7}, new BTreePasswordRepository(fileName).getSalt());
+        assertFalse(new File(fileName).exists());
+        assertTrue(BTreePasswordRepository.exists(fileName));
+    }
+
+    @Test
+    public void open_shouldImportAllButEntriesTooLargeForAPage() {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("small", new PasswordEntry("small", "user", new byte[]{1}));
+        entries.put("huge", new PasswordEntry("huge", "user", new byte[BTreeStore.MAX_ENTRY_SIZE]));
+        new PersistenceService(fileName).save(new VaultHeader(), entries);
+
+        BTreePasswordRepository repository = new BTreePasswordRepository(fileName);
+
+        assertEquals(1, repository.getEntries().size());
+        assertNotNull(repository.getEntries().get("small"));
+        assertFalse(new File(fileName).exists());
+        assertEquals(2, new PersistenceService(fileName + ".not-imported").load().entries.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_entryTooLargeForAPage_shouldThrow() {
+        new BTreePasswordRepository(fileName).add(new PasswordEntry("huge", "user", new byte[BTreeStore.MAX_ENTRY_SIZE]));
+    }
+
+    @Test
+    public void dump_shouldClearEntriesAndHeader() {
+        BTreePasswordRepository repository = new BTreePasswordRepository(fileName);
+        repository.setSalt(new byte[]{1});
+        repository.add(new PasswordEntry("gmail", "u", new byte[]{1}));
+        repository.save();
+
+        repository.dump();
+        repository.save();
+
+        BTreePasswordRepository reopened = new BTreePasswordRepository(fileName);
+        assertTrue(reopened.getEntries().isEmpty());
+        assertNull(reopened.getSalt());
+        assertEquals("", reopened.getEncryptedMasterPassword());
+    }
+}
@@ -0,0 +1,176 @@
+import model.KdfParameters;
+import model.PasswordEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import persistence.BTreeStore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class BTreeStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "passwords.dat.btree").toPath();
+    }
+
+    @Test
+    public void randomChanges_shouldMatchSortedMapAcrossReopens() throws Exception {
+        TreeMap<String, PasswordEntry> expected = new TreeMap<>();
+        Random random = new Random(42);
+
+        for (int round = 0; round < 4; round++) {
+            // a tiny cache forces pages to be read back from the file
+            try (BTreeStore store = BTreeStore.open(file, 4)) {
+                assertContents(expected, store);
+                for (int i = 0; i < 3000; i++) {
+                    String account = "account" + random.nextInt(2000);
+                    if (random.nextInt(3) == 0) {
+                        assertEquals(expected.remove(account) != null, store.remove(account));
+                    } else {
+                        PasswordEntry entry = new PasswordEntry(account, "user" + i, new byte[random.nextInt(200)]);
+                        assertEquals(expected.put(account, entry) == null, store.put(entry));
+                    }
+                }
+                assertContents(expected, store);
+                store.commit();
+            }
+        }
+    }
+
+    @Test
+    public void reopen_shouldDropChangesAfterLastCommit() throws Exception {
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            assertTrue(store.isNew());
+            store.getHeader().setSalt(new byte[]{1, 2, 3});
+            store.getHeader().setKdfParameters(KdfParameters.pbkdf2(54000));
+            store.put(new PasswordEntry("gmail", "user", new byte[]{1}));
+            store.commit();
+
+            store.put(new PasswordEntry("github", "user", new byte[]{2}));
+            store.remove("gmail");
+        }
+
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            assertFalse(store.isNew());
+            assertEquals(1, store.size());
+            assertNotNull(store.get("gmail"));
+            assertNull(store.get("github"));
+            assertArrayEquals(new byte[]{1, 2, 3}, store.getHeader().getSalt());
+            assertEquals(KdfParameters.pbkdf2(54000), store.getHeader().getKdfParameters());
+        }
+    }
+
+    @Test
+    public void torn_superblock_shouldFallBackToPreviousCommit() throws Exception {
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            for (int i = 0; i < 500; i++) {
+                store.put(new PasswordEntry("account" + i, "user", new byte[32]));
+            }
+            store.commit(); // commit 1, superblock in page 1
+            store.put(new PasswordEntry("late", "user", new byte[32]));
+            store.commit(); // commit 2, superblock in page 0
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(100);
+            raf.write(0xFF);
+        }
+
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            assertEquals(500, store.size());
+            assertNull(store.get("late"));
+            assertNotNull(store.get("account499"));
+        }
+    }
+
+    @Test
+    public void repeatedUpdates_shouldReusePages() throws Exception {
+        try (BTreeStore store = BTreeStore.open(file, 64)) {
+            for (int i = 0; i < 2000; i++) {
+                store.put(new PasswordEntry("account" + i, "user", new byte[32]));
+            }
+            store.commit();
+            long sizeAfterLoad = file.toFile().length();
+
+            for (int i = 0; i < 500; i++) {
+                store.put(new PasswordEntry("account" + (i * 3), "changed", new byte[32]));
+                store.commit();
+            }
+
+            // copy-on-write needs a few spare pages per commit, not a page per change
+            assertTrue(file.toFile().length() < sizeAfterLoad + 16 * BTreeStore.PAGE_SIZE);
+        }
+    }
+
+    @Test
+    public void clear_shouldEmptyTree() throws Exception {
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            for (int i = 0; i < 1000; i++) {
+                store.put(new PasswordEntry("account" + i, "user", new byte[32]));
+            }
+            store.commit();
+            store.clear();
+            store.commit();
+        }
+
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            assertEquals(0, store.size());
+            assertFalse(store.iterator().hasNext());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void put_shouldRejectEntryLargerThanPageAllows() throws Exception {
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            store.put(new PasswordEntry("big", "user", new byte[BTreeStore.MAX_ENTRY_SIZE]));
+        }
+    }
+
+    private static void assertContents(TreeMap<String, PasswordEntry> expected, BTreeStore store) {
+        assertEquals(expected.size(), store.size());
+        List<String> actual = new ArrayList<>();
+        for (Iterator<PasswordEntry> it = store.iterator(); it.hasNext(); ) {
+            actual.add(it.next().getAccountName());
+        }
+        assertEquals(new ArrayList<>(expected.keySet()), actual);
+        for (Map.Entry<String, PasswordEntry> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().getUsername(), store.get(entry.getKey()).getUsername());
+        }
+    }
+    @Test
+    public void iteratorAfter_shouldStartPastTheGivenAccount() throws Exception {
+        TreeMap<String, PasswordEntry> expected = new TreeMap<>();
+        try (BTreeStore store = BTreeStore.open(file, 16)) {
+            for (int i = 0; i < 3000; i += 2) {
+                PasswordEntry entry = new PasswordEntry(String.format("account%05d", i), "user", new byte[]{1});
+                store.put(entry);
+                expected.put(entry.getAccountName(), entry);
+            }
+
+            // present and absent start keys, before, inside and past the tree
+            for (String after : new String[]{"a", "account00000", "account01001", "account02998", "z"}) {
+                List<String> names = new ArrayList<>();
+                for (Iterator<PasswordEntry> it = store.iterator(after); it.hasNext(); ) {
+                    names.add(it.next().getAccountName());
+                }
+                assertEquals(new ArrayList<>(expected.tailMap(after, false).keySet()), names);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Test;
+import persistence.PersistenceService;
+import repository.ConcurrentPasswordRepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentPasswordRepositoryTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void compareAndUpdate_shouldOnlyReplaceExpectedEntry() {
+        ConcurrentPasswordRepository repository = new ConcurrentPasswordRepository(new RecordingPersistence());
+        PasswordEntry original = new PasswordEntry("gmail", "user", new byte[]{1});
+        repository.add(original);
+
+        assertTrue(repository.compareAndUpdate("gmail", original, "first", new byte[]{2}));
+        assertFalse(repository.compareAndUpdate("gmail", original, "second", new byte[]{3}));
+        assertFalse(repository.compareAndUpdate("missing", original, "third", new byte[]{4}));
+        assertEquals("first", repository.get("gmail").getUsername());
+    }
+
+    @Test
+    public void getEntries_shouldReturnUnmodifiableSnapshot() {
+        ConcurrentPasswordRepository repository = new ConcurrentPasswordRepository(new RecordingPersistence());
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+
+        Map<String, PasswordEntry> snapshot = repository.getEntries();
+        repository.add(new PasswordEntry("github", "user", new byte[]{2}));
+
+        assertEquals(1, snapshot.size());
+        try {
+            snapshot.remove("gmail");
+            fail("snapshot should be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void save_shouldHandOverEntriesAsOfEachSave() {
+        RecordingPersistence persistence = new RecordingPersistence();
+        ConcurrentPasswordRepository repository = new ConcurrentPasswordRepository(persistence);
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+        repository.add(new PasswordEntry("github", "user", new byte[]{2}));
+        repository.save();
+        assertEquals(repository.getEntries(), persistence.saved);
+
+        repository.update("gmail", "changed", new byte[]{3});
+        repository.remove("github");
+        repository.add(new PasswordEntry("bank", "user", new byte[]{4}));
+        repository.save();
+        assertEquals(repository.getEntries(), persistence.saved);
+        assertEquals("changed", persistence.saved.get("gmail").getUsername());
+
+        repository.dump();
+        repository.add(new PasswordEntry("github", "other", new byte[]{5}));
+        repository.save();
+        assertEquals(repository.getEntries(), persistence.saved);
+        assertEquals(1, persistence.saved.size());
+    }
+
+    @Test
+    public void stress_concurrentChangesShouldNotBeLostOrReorderedForPersistence() throws Exception {
+        RecordingPersistence persistence = new RecordingPersistence();
+        ConcurrentPasswordRepository repository = new ConcurrentPasswordRepository(persistence);
+        repository.add(new PasswordEntry("counter", "0", new byte[0]));
+        int incrementsPerThread = 2000;
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            workers.add(pool.submit((Callable<Void>) () -> {
+                Random random = new Random(thread);
+                for (int i = 0; i < incrementsPerThread; i++) {
+                    // read-modify-write retried until no other thread got in between
+                    while (true) {
+                        PasswordEntry current = repository.get("counter");
+                        String next = String.valueOf(Integer.parseInt(current.getUsername()) + 1);
+                        if (repository.compareAndUpdate("counter", current, next, new byte[0])) break;
+                    }
+                    // shared accounts, so several threads race on the same keys
+                    String account = "shared" + random.nextInt(50);
+                    switch (random.nextInt(3)) {
+                        case 0: repository.add(new PasswordEntry(account, "t" + thread, new byte[]{(byte) i})); break;
+                        case 1: repository.update(account, "t" + thread, new byte[]{(byte) i}); break;
+                        default: repository.remove(account);
+                    }
+                }
+                return null;
+            }));
+        }
+        Future<?> saver = pool.submit((Callable<Void>) () -> {
+            while (running.get()) {
+                repository.save();
+                for (PasswordEntry entry : repository.getEntries().values()) {
+                    assertNotNull(entry.getAccountName());
+                }
+            }
+            return null;
+        });
+
+        for (Future<?> worker : workers) {
+            worker.get(60, TimeUnit.SECONDS);
+        }
+        running.set(false);
+        saver.get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+        repository.save();
+
+        assertEquals(String.valueOf(THREADS * incrementsPerThread), repository.get("counter").getUsername());
+        // replaying the reported changes gives exactly the repository contents
+        Map<String, PasswordEntry> entries = repository.getEntries();
+        assertEquals(entries.keySet(), persistence.replayed.keySet());
+        for (Map.Entry<String, PasswordEntry> entry : entries.entrySet()) {
+            assertSame(entry.getValue(), persistence.replayed.get(entry.getKey()));
+            assertSame(entry.getValue(), persistence.saved.get(entry.getKey()));
+        }
+        assertEquals(entries.size(), persistence.saved.size());
+        assertTrue(persistence.saves > 0);
+    }
+
+    private static class RecordingPersistence implements IPersistenceService {
+        final Map<String, PasswordEntry> replayed = new HashMap<>();
+        Map<String, PasswordEntry> saved;
+        int saves;
+
+        public synchronized void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+            saves++;
+            saved = new HashMap<>(entries);
+        }
+
+        public PersistenceService.LoadedData load() {
+            return null;
+        }
+
+        public synchronized void recordPut(PasswordEntry entry) {
+            replayed.put(entry.getAccountName(), entry);
+        }
+
+        public synchronized void recordRemove(String accountName) {
+            replayed.remove(accountName);
+        }
+
+        public synchronized void recordClear() {
+            replayed.clear();
+        }
+    }
+}
@@ -1,9 +1,20 @@
 import crypto.CryptoService;
+import crypto.EncryptionFormat;
+import crypto.KdfCalibrator;
 import interfaces.ICryptoService;
+import model.KdfParameters;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -33,6 +44,90 @@ public class CryptoServiceTest {
         assertEquals("AES", key.getAlgorithm());
     }
 
+    @Test
+    public void deriveKey_withKdfParameters_shouldDependOnIterations() {
+        byte[] salt = cryptoService.generateSalt();
+
+        SecretKey defaultKey = cryptoService.deriveKey("masterPassword", salt);
+        SecretKey sameAsDefault = cryptoService.deriveKey("masterPassword", salt, KdfParameters.pbkdf2(65536));
+        SecretKey legacyKey = cryptoService.deriveKey("masterPassword", salt, null);
+        SecretKey cheaperKey = cryptoService.deriveKey("masterPassword", salt, KdfParameters.pbkdf2(10000));
+
+        assertArrayEquals(defaultKey.getEncoded(), sameAsDefault.getEncoded());
+        assertArrayEquals(defaultKey.getEncoded(), legacyKey.getEncoded());
+        assertFalse(Arrays.equals(defaultKey.getEncoded(), cheaperKey.getEncoded()));
+    }
+
+    @Test
+    public void deriveKey_withScrypt_shouldMatchRfc7914Vector() {
+        byte[] salt = "NaCl".getBytes(StandardCharsets.US_ASCII);
+
+        SecretKey key = cryptoService.deriveKey("password", salt, KdfParameters.scrypt(1024, 8, 16));
+
+        // first 16 bytes of the 64-byte test vector from RFC 7914 section 12
+        assertEquals("fdbabe1c9d3472007856e7190d01e9fe", toHex(key.getEncoded()));
+        assertEquals("AES", key.getAlgorithm());
+    }
+
+    @Test
+    public void deriveKey_withScryptAndEmptyPassword_shouldMatchRfc7914Vector() {
+        SecretKey key = cryptoService.deriveKey("", new byte[0], KdfParameters.scrypt(16, 1, 1));
+
+        // first 16 bytes of the empty-password test vector from RFC 7914 section 12
+        assertEquals("77d6576238657b203b19ca42c18a0497", toHex(key.getEncoded()));
+    }
+
+    @Test
+    public void deriveKey_withScrypt_shouldBeRepeatableAcrossReusedTables() {
+        byte[] salt = new byte[16];
+        for (int i = 0; i < salt.length; i++) salt[i] = (byte) i;
+        KdfParameters params = KdfParameters.scrypt(1024, 8, 4);
+
+        SecretKey first = cryptoService.deriveKey("p\u00e4ssword", salt, params);
+        SecretKey second = cryptoService.deriveKey("p\u00e4ssword", salt, params);
+        SecretKey other = cryptoService.deriveKey("p\u00e4ssword", salt, KdfParameters.scrypt(2048, 8, 4));
+
+        assertEquals("ce76cfa12328a5fc833319891f756fd1", toHex(first.getEncoded()));
+        assertArrayEquals(first.getEncoded(), second.getEncoded());
+        assertFalse(Arrays.equals(first.getEncoded(), other.getEncoded()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scryptParameters_shouldRejectCostThatIsNotPowerOfTwo() {
+        KdfParameters.scrypt(1000, 8, 1);
+    }
+
+    @Test
+    public void calibrateKdf_withScrypt_shouldReturnPowerOfTwoCost() {
+        KdfCalibrator.Result result = new KdfCalibrator(cryptoService).calibrate(KdfParameters.SCRYPT, 50);
+        KdfParameters params = result.getParameters();
+
+        assertEquals(KdfParameters.SCRYPT, params.getAlgorithm());
+        assertTrue(params.getCost() >= 1 << 14);
+        assertEquals(0, params.getCost() & (params.getCost() - 1));
+        assertEquals(8, params.getBlockSize());
+        assertTrue(result.toReport().contains("N=" + params.getCost()));
+    }
+
+    @Test
+    public void calibrateKdf_shouldReturnPbkdf2ParametersWithinBounds() {
+        KdfCalibrator.Result result = new KdfCalibrator(cryptoService).calibrate(50);
+        KdfParameters params = result.getParameters();
+
+        assertEquals(KdfParameters.PBKDF2_SHA256, params.getAlgorithm());
+        assertTrue(params.getIterations() >= 65_536);
+        assertTrue(params.getIterations() <= 10_000_000);
+        assertTrue(params.getIterations() == 65_536 || params.getIterations() % 1000 == 0);
+        assertTrue(result.toReport().contains(params.getIterations() + " iterations"));
+    }
+
+    @Test
+    public void calibrateKdf_withTinyTarget_shouldNotGoBelowDefaultIterations() {
+        KdfParameters params = new KdfCalibrator(cryptoService).calibrate(1).getParameters();
+
+        assertEquals(KdfParameters.pbkdf2(65_536), params);
+    }
+
     @Test
     public void encryptAndDecrypt_shouldReturnOriginalPlainText() {
         byte[] salt = cryptoService.generateSalt();
@@ -48,7 +143,37 @@ public class CryptoServiceTest {
     }
 
     @Test
-    public void encrypt_sameInputSameKey_shouldProduceSameOutput() {
+    public void encryptAndDecryptBytes_shouldReturnOriginalBytes() {
+        SecretKey key = cryptoService.deriveKey("masterPassword", cryptoService.generateSalt());
+
+        byte[] plain = "p\u00e4ssw\u00f6rd".getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = cryptoService.encrypt(plain, key);
+
+        assertEquals(cryptoService.getEncryptedSize(plain.length, key), encrypted.length);
+        assertArrayEquals(plain, cryptoService.decrypt(encrypted, key));
+    }
+
+    @Test
+    public void encryptAndDecryptBuffers_shouldWriteIntoCallerSuppliedBuffers() {
+        SecretKey key = cryptoService.deriveKey("masterPassword", cryptoService.generateSalt());
+        byte[] plain = "mySecretPassword123!".getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer encrypted = ByteBuffer.allocate(cryptoService.getEncryptedSize(plain.length, key));
+        int written = cryptoService.encrypt(ByteBuffer.wrap(plain), encrypted, key);
+        encrypted.flip();
+
+        ByteBuffer decrypted = ByteBuffer.allocateDirect(written);
+        cryptoService.decrypt(encrypted, decrypted, key);
+        decrypted.flip();
+
+        byte[] result = new byte[decrypted.remaining()];
+        decrypted.get(result);
+        assertArrayEquals(plain, result);
+        assertArrayEquals(plain, cryptoService.decrypt(Arrays.copyOf(encrypted.array(), written), key));
+    }
+
+    @Test
+    public void encrypt_sameInputSameKey_shouldUseFreshNonce() {
         byte[] salt = cryptoService.generateSalt();
         SecretKey key = cryptoService.deriveKey("password", salt);
 
@@ -56,7 +181,134 @@ public class CryptoServiceTest {
         String encrypted1 = cryptoService.encrypt(text, key);
         String encrypted2 = cryptoService.encrypt(text, key);
 
+        assertNotEquals(encrypted1, encrypted2);
+        assertEquals(text, cryptoService.decrypt(encrypted1, key));
+        assertEquals(text, cryptoService.decrypt(encrypted2, key));
+    }
+
+    @Test
+    public void decrypt_legacyEcbCiphertext_shouldBeReadableThroughTheLegacyService() {
+        SecretKey key = cryptoService.deriveKey("password", cryptoService.generateSalt());
+        ICryptoService legacy = new CryptoService(EncryptionFormat.LEGACY_ECB);
+
+        String encrypted1 = legacy.encrypt("test", key);
+        String encrypted2 = legacy.encrypt("test", key);
+
         assertEquals(encrypted1, encrypted2);
+        assertEquals("test", cryptoService.legacyEcb().decrypt(encrypted1, key));
+        assertArrayEquals("test".getBytes(), cryptoService.legacyEcb().decrypt(legacy.encrypt("test".getBytes(), key), key));
+    }
+
+    @Test
+    public void decrypt_legacyEcbCiphertextStartingLikeGcm_shouldBeReadableThroughTheLegacyService() {
+        SecretKey key = cryptoService.deriveKey("password", cryptoService.generateSalt());
+        ICryptoService legacy = cryptoService.legacyEcb();
+
+        for (int i = 0; ; i++) {
+            byte[] plain = String.format("%-32d", i).getBytes();
+            byte[] encrypted = legacy.encrypt(plain, key);
+            if (encrypted[0] == 1) {
+                assertArrayEquals(plain, legacy.decrypt(encrypted, key));
+                ByteBuffer out = ByteBuffer.allocate(encrypted.length);
+                legacy.decrypt(ByteBuffer.wrap(encrypted), out, key);
+                assertArrayEquals(plain, Arrays.copyOf(out.array(), out.position()));
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void decrypt_gcmValueThroughTheLegacyService_shouldThrowException() {
+        SecretKey key = cryptoService.deriveKey("password", cryptoService.generateSalt());
+        byte[] encrypted = cryptoService.encrypt("test".getBytes(), key);
+
+        try {
+            cryptoService.legacyEcb().decrypt(encrypted, key);
+            fail("a legacy service reads ECB values only");
+        } catch (RuntimeException expected) {
+            // 33 bytes are not whole ECB blocks
+        }
+    }
+
+    @Test
+    public void decrypt_legacyEcbCiphertextWithGcmService_shouldThrowException() {
+        SecretKey key = cryptoService.deriveKey("password", cryptoService.generateSalt());
+        ICryptoService legacy = new CryptoService(EncryptionFormat.LEGACY_ECB);
+        byte[] encrypted = legacy.encrypt("test".getBytes(), key);
+
+        try {
+            cryptoService.decrypt(encrypted, key);
+            fail("an ECB value must not be read from a vault that is all AES-GCM");
+        } catch (RuntimeException expected) {
+            // no AES-GCM version byte
+        }
+    }
+
+    @Test
+    public void decrypt_gcmValueFailingItsTag_shouldNotFallBackToEcb() {
+        SecretKey key = cryptoService.deriveKey("password", cryptoService.generateSalt());
+        ICryptoService legacy = new CryptoService(EncryptionFormat.LEGACY_ECB);
+
+        // 32-byte plaintexts give 48-byte ECB values; search for one that starts like a GCM value
+        for (int i = 0; ; i++) {
+            byte[] plain = String.format("%-32d", i).getBytes();
+            byte[] encrypted = legacy.encrypt(plain, key);
+            if (encrypted[0] == 1) {
+                try {
+                    cryptoService.decrypt(encrypted, key);
+                    fail("a value with the AES-GCM version byte must be read as AES-GCM only");
+                } catch (RuntimeException expected) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void decrypt_tamperedCiphertext_shouldThrowException() {
+        SecretKey key = cryptoService.deriveKey("password", cryptoService.generateSalt());
+
+        byte[] encrypted = cryptoService.encrypt("secret".getBytes(), key);
+        encrypted[encrypted.length - 1] ^= 1;
+
+        cryptoService.decrypt(encrypted, key);
+    }
+
+    @Test
+    public void wrapAndUnwrapKey_shouldReturnSameDataKey() {
+        SecretKey masterKey = cryptoService.deriveKey("masterPassword", cryptoService.generateSalt());
+        SecretKey dataKey = cryptoService.generateDataKey();
+
+        byte[] wrapped = cryptoService.wrapKey(dataKey, masterKey);
+        SecretKey unwrapped = cryptoService.unwrapKey(wrapped, masterKey);
+
+        assertEquals("AES", unwrapped.getAlgorithm());
+        assertArrayEquals(dataKey.getEncoded(), unwrapped.getEncoded());
+        assertEquals("secret", cryptoService.decrypt(cryptoService.encrypt("secret", dataKey), unwrapped));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unwrapKey_withWrongMasterKey_shouldThrowException() {
+        SecretKey masterKey = cryptoService.deriveKey("masterPassword", cryptoService.generateSalt());
+        SecretKey otherKey = cryptoService.deriveKey("otherPassword", cryptoService.generateSalt());
+
+        byte[] wrapped = cryptoService.wrapKey(cryptoService.generateDataKey(), masterKey);
+
+        cryptoService.unwrapKey(wrapped, otherKey);
+    }
+
+    @Test
+    public void verifyKeyCheck_shouldAcceptOnlyTheKeyItWasComputedFor() {
+        byte[] salt = cryptoService.generateSalt();
+        SecretKey key = cryptoService.deriveKey("masterPassword", salt);
+        SecretKey sameKey = cryptoService.deriveKey("masterPassword", salt);
+        SecretKey otherKey = cryptoService.deriveKey("masterPassw0rd", salt);
+
+        byte[] keyCheck = cryptoService.computeKeyCheck(key);
+
+        assertEquals(32, keyCheck.length);
+        assertTrue(cryptoService.verifyKeyCheck(sameKey, keyCheck));
+        assertFalse(cryptoService.verifyKeyCheck(otherKey, keyCheck));
     }
 
     @Test(expected = RuntimeException.class)
@@ -71,4 +323,56 @@ public class CryptoServiceTest {
 
         cryptoService.decrypt(encrypted, wrongKey);
     }
+
+    @Test
+    public void decrypt_afterFailedDecrypt_shouldStillWorkWithCorrectKey() {
+        byte[] salt1 = cryptoService.generateSalt();
+        byte[] salt2 = cryptoService.generateSalt();
+
+        SecretKey correctKey = cryptoService.deriveKey("password", salt1);
+        SecretKey wrongKey = cryptoService.deriveKey("password", salt2);
+
+        String encrypted = cryptoService.encrypt("secret", correctKey);
+        try {
+            cryptoService.decrypt(encrypted, wrongKey);
+            fail("decrypt with the wrong key should fail");
+        } catch (RuntimeException expected) {
+            // pooled cipher for wrongKey must not be reused in a broken state
+        }
+
+        assertEquals("secret", cryptoService.decrypt(encrypted, correctKey));
+        assertEquals("secret", cryptoService.decrypt(cryptoService.encrypt("secret", correctKey), correctKey));
+    }
+
+    @Test
+    public void encryptAndDecrypt_fromSeveralThreads_shouldReturnOriginalPlainText() throws Exception {
+        SecretKey key = cryptoService.deriveKey("masterPassword", cryptoService.generateSalt());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        String plain = "secret-" + thread + "-" + i;
+                        if (!plain.equals(cryptoService.decrypt(cryptoService.encrypt(plain, key), key))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
 }
@@ -0,0 +1,128 @@
+import interfaces.IPersistenceService;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Test;
+import persistence.GroupCommitPersistenceService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class GroupCommitPersistenceServiceTest {
+
+    @Test
+    public void burstOfSavesShouldShareWrites() throws Exception {
+        SlowPersistence slow = new SlowPersistence(20);
+        GroupCommitPersistenceService service = new GroupCommitPersistenceService(slow, 0);
+
+        int savers = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(savers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < savers; i++) {
+            results.add(pool.submit(() -> {
+                start.await();
+                service.save(new VaultHeader(), new HashMap<>());
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+
+        // the first save writes alone, everything queued behind it goes out together
+        assertTrue("writes: " + slow.writes.get(), slow.writes.get() < savers);
+        assertTrue(slow.writes.get() >= 1);
+    }
+
+    @Test
+    public void maxDelayShouldMergeSavesArrivingWithinIt() throws Exception {
+        SlowPersistence slow = new SlowPersistence(0);
+        GroupCommitPersistenceService service = new GroupCommitPersistenceService(slow, 300);
+
+        Thread first = new Thread(() -> service.save(new VaultHeader(), new HashMap<>()));
+        first.start();
+        Thread.sleep(50);
+        VaultHeader latest = new VaultHeader();
+        service.save(latest, new HashMap<>());
+        first.join();
+
+        assertEquals(1, slow.writes.get());
+        assertSame(latest, slow.lastHeader);
+    }
+
+    @Test
+    public void failedWriteShouldBeReportedToEverySaveInTheBatch() throws Exception {
+        IPersistenceService failing = mock(IPersistenceService.class);
+        doThrow(new RuntimeException("disk full")).when(failing).save(any(), any());
+        GroupCommitPersistenceService service = new GroupCommitPersistenceService(failing, 100);
+
+        AtomicInteger failures = new AtomicInteger();
+        Runnable save = () -> {
+            try {
+                service.save(new VaultHeader(), new HashMap<>());
+            } catch (RuntimeException e) {
+                assertEquals("disk full", e.getMessage());
+                failures.incrementAndGet();
+            }
+        };
+        Thread other = new Thread(save);
+        other.start();
+        save.run();
+        other.join();
+
+        assertEquals(2, failures.get());
+    }
+
+    @Test
+    public void changeNotificationsShouldReachDelegate() {
+        IPersistenceService delegate = mock(IPersistenceService.class);
+        GroupCommitPersistenceService service = new GroupCommitPersistenceService(delegate, 0);
+        PasswordEntry entry = new PasswordEntry("gmail", "user", new byte[]{1});
+
+        service.recordPut(entry);
+        service.recordRemove("gmail");
+        service.recordClear();
+        service.load();
+
+        verify(delegate).recordPut(entry);
+        verify(delegate).recordRemove("gmail");
+        verify(delegate).recordClear();
+        verify(delegate).load();
+    }
+
+    private static class SlowPersistence implements IPersistenceService {
+        final AtomicInteger writes = new AtomicInteger();
+        final long millis;
+        volatile VaultHeader lastHeader;
+
+        SlowPersistence(long millis) {
+            this.millis = millis;
+        }
+
+        public void save(VaultHeader header, Map<String, PasswordEntry> entries) {
+            writes.incrementAndGet();
+            lastHeader = header;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public LoadedData load() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import interfaces.IPersistenceService;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import persistence.JournaledPersistenceService;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class JournaledPersistenceServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File vaultFile;
+    private File logFile;
+
+    @Before
+    public void setUp() {
+        vaultFile = new File(folder.getRoot(), "passwords.dat");
+        logFile = new File(folder.getRoot(), "passwords.dat.wal");
+    }
+
+    @Test
+    public void saveAppendsChangesAndLoadReplaysThem() {
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath());
+        assertNull(journal.load());
+
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        VaultHeader header = header(new byte[]{1, 2, 3});
+        put(journal, entries, new PasswordEntry("gmail", "user1", new byte[]{1}));
+        put(journal, entries, new PasswordEntry("github", "user2", new byte[]{2}));
+        journal.save(header, entries);
+
+        put(journal, entries, new PasswordEntry("gmail", "user1", new byte[]{9}));
+        entries.remove("github");
+        journal.recordRemove("github");
+        journal.save(header, entries);
+
+        assertFalse(vaultFile.exists());
+        assertTrue(logFile.length() > 0);
+
+        IPersistenceService.LoadedData data = new JournaledPersistenceService(vaultFile.getPath()).load();
+        assertNotNull(data);
+        assertArrayEquals(new byte[]{1, 2, 3}, data.header.getSalt());
+        assertEquals(KdfParameters.pbkdf2(54000), data.header.getKdfParameters());
+        assertEquals(1, data.entries.size());
+        assertArrayEquals(new byte[]{9}, data.entries.get("gmail").getEncryptedPassword());
+    }
+
+    @Test
+    public void unsavedChangesAreNotReplayed() {
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath());
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(journal, entries, new PasswordEntry("gmail", "user1", new byte[]{1}));
+        journal.save(header(new byte[]{1}), entries);
+
+        put(journal, entries, new PasswordEntry("github", "user2", new byte[]{2}));
+
+        IPersistenceService.LoadedData data = new JournaledPersistenceService(vaultFile.getPath()).load();
+        assertEquals(1, data.entries.size());
+        assertTrue(data.entries.containsKey("gmail"));
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLogStaysAppendable() throws Exception {
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath());
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(journal, entries, new PasswordEntry("gmail", "user1", new byte[]{1}));
+        journal.save(header(new byte[]{1}), entries);
+        long intactLength = logFile.length();
+
+        // half-written frame: a length and checksum with too few payload bytes behind them
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write(new byte[]{0, 0, 1, 0, 12, 34, 56, 78, 1, 2, 3});
+        }
+
+        JournaledPersistenceService reopened = new JournaledPersistenceService(vaultFile.getPath());
+        IPersistenceService.LoadedData data = reopened.load();
+        assertEquals(1, data.entries.size());
+        assertEquals(intactLength, logFile.length());
+
+        put(reopened, data.entries, new PasswordEntry("github", "user2", new byte[]{2}));
+        reopened.save(data.header, data.entries);
+
+        assertEquals(2, new JournaledPersistenceService(vaultFile.getPath()).load().entries.size());
+    }
+
+    @Test
+    public void compactionFoldsLogIntoSnapshot() {
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath(), 1);
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            put(journal, entries, new PasswordEntry("account" + i, "user" + i, new byte[]{(byte) i}));
+        }
+        journal.save(header(new byte[]{1}), entries);
+        journal.awaitCompaction();
+
+        assertTrue(vaultFile.exists());
+        assertFalse(new File(folder.getRoot(), "passwords.dat.wal.compacting").exists());
+        assertEquals(0, logFile.length());
+
+        // changes after the compaction land in the fresh log
+        entries.clear();
+        journal.recordClear();
+        put(journal, entries, new PasswordEntry("only", "user", new byte[]{7}));
+        journal.save(header(new byte[]{2}), entries);
+        journal.awaitCompaction();
+
+        IPersistenceService.LoadedData data = new JournaledPersistenceService(vaultFile.getPath()).load();
+        assertArrayEquals(new byte[]{2}, data.header.getSalt());
+        assertEquals(1, data.entries.size());
+        assertTrue(data.entries.containsKey("only"));
+    }
+
+    @Test
+    public void checkpointOfFreshVaultWritesEmptySnapshot() {
+        new JournaledPersistenceService(vaultFile.getPath()).checkpoint();
+        assertFalse(vaultFile.exists());
+
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath());
+        assertNull(journal.load());
+        journal.checkpoint();
+
+        assertTrue(vaultFile.exists());
+        assertFalse(logFile.exists());
+        assertTrue(new JournaledPersistenceService(vaultFile.getPath()).load().entries.isEmpty());
+    }
+
+    @Test
+    public void corruptSnapshotFailsToLoadAndKeepsFiles() throws Exception {
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath());
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        put(journal, entries, new PasswordEntry("gmail", "user", new byte[]{1}));
+        journal.save(header(new byte[]{1}), entries);
+        try (FileOutputStream out = new FileOutputStream(vaultFile)) {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        }
+        byte[] log = Files.readAllBytes(logFile.toPath());
+
+        try {
+            new JournaledPersistenceService(vaultFile.getPath()).load();
+            fail("a corrupt snapshot should not load as an empty vault");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getMessage().startsWith("Error loading data"));
+        }
+        assertEquals(8, vaultFile.length());
+        assertArrayEquals(log, Files.readAllBytes(logFile.toPath()));
+    }
+
+    private static void put(JournaledPersistenceService journal, HashMap<String, PasswordEntry> entries, PasswordEntry entry) {
+        entries.put(entry.getAccountName(), entry);
+        journal.recordPut(entry);
+    }
+
+    private static VaultHeader header(byte[] salt) {
+        VaultHeader header = new VaultHeader();
+        header.setSalt(salt);
+        header.setKeyCheck(new byte[]{5, 5});
+        header.setKdfParameters(KdfParameters.pbkdf2(54000));
+        return header;
+    }
+}
@@ -0,0 +1,200 @@
+import interfaces.IPasswordRepository;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import persistence.PersistenceService;
+import repository.CompactPasswordRepository;
+import repository.OffHeapPasswordRepository;
+import repository.PasswordRepository;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+/** Behaviour every repository that keeps the whole vault in memory must share. */
+@RunWith(Parameterized.class)
+public class MapBackedPasswordRepositoryTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> repositories() {
+        return Arrays.asList(
+                new Object[]{"HashMap", (Function<String, IPasswordRepository>) fileName -> new PasswordRepository(new PersistenceService(fileName))},
+                new Object[]{"Compact", (Function<String, IPasswordRepository>) CompactPasswordRepository::new},
+                new Object[]{"OffHeap", (Function<String, IPasswordRepository>) OffHeapPasswordRepository::new});
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Function<String, IPasswordRepository> open;
+    private File vaultFile;
+
+    public MapBackedPasswordRepositoryTest(String name, Function<String, IPasswordRepository> open) {
+        this.open = open;
+    }
+
+    @Before
+    public void setUp() {
+        vaultFile = new File(folder.getRoot(), "passwords.dat");
+    }
+
+    @Test
+    public void save_shouldRoundTripEntriesAndHeader() {
+        writeVault(3);
+        IPasswordRepository repository = open.apply(vaultFile.getPath());
+
+        assertArrayEquals(new byte[]{1, 2, 3}, repository.getSalt());
+        assertEquals(3, repository.getEntries().size());
+        assertTrue(repository.update("account0", "changed", new byte[]{9}));
+        assertTrue(repository.remove("account1"));
+        assertFalse(repository.add(new PasswordEntry("account2", "dup", new byte[]{7})));
+        assertTrue(repository.add(new PasswordEntry("k\u00f6ln", null, null)));
+        repository.save();
+
+        IPasswordRepository reopened = open.apply(vaultFile.getPath());
+        Map<String, PasswordEntry> entries = reopened.getEntries();
+        assertEquals(3, entries.size());
+        assertEquals("changed", entries.get("account0").getUsername());
+        assertArrayEquals(new byte[]{9}, entries.get("account0").getEncryptedPassword());
+        assertNull(entries.get("account1"));
+        assertNull(entries.get("k\u00f6ln").getUsername());
+        assertNull(entries.get("k\u00f6ln").getEncryptedPassword());
+        assertEquals(KdfParameters.pbkdf2(54000), reopened.getKdfParameters());
+    }
+
+    @Test
+    public void find_shouldMatchSubstringsIncludingNonAscii() {
+        IPasswordRepository repository = open.apply(vaultFile.getPath());
+        repository.add(new PasswordEntry("gmail", "anna", new byte[]{1}));
+        repository.add(new PasswordEntry("M\u00fcller bank", "anna", new byte[]{2}));
+        repository.add(new PasswordEntry("github", "ben", new byte[]{3}));
+
+        assertEquals(1, repository.find("\u00fcl").size());
+        assertEquals(2, repository.find("g").size());
+        assertTrue(repository.find("gmailx").isEmpty());
+
+        List<PasswordEntry> annas = repository.findByUsername("anna");
+        assertEquals(Arrays.asList("M\u00fcller bank", "gmail"), Arrays.asList(annas.get(0).getAccountName(), annas.get(1).getAccountName()));
+        repository.update("gmail", "ben", new byte[]{1});
+        assertEquals(1, repository.findByUsername("anna").size());
+        repository.remove("M\u00fcller bank");
+        assertTrue(repository.findByUsername("anna").isEmpty());
+        assertEquals(2, repository.findByUsername("ben").size());
+    }
+
+    @Test
+    public void randomChanges_shouldMatchHashMap() {
+        IPasswordRepository repository = open.apply(vaultFile.getPath());
+        HashMap<String, PasswordEntry> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        // enough churn to grow the storage and to reuse or compact the space of removed entries
+        for (int i = 0; i < 60000; i++) {
+            String account = "account" + random.nextInt(5000);
+            String username = "user" + random.nextInt(20);
+            byte[] password = new byte[random.nextInt(200)];
+            random.nextBytes(password);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(!expected.containsKey(account), repository.add(new PasswordEntry(account, username, password)));
+                    expected.putIfAbsent(account, new PasswordEntry(account, username, password));
+                    break;
+                case 1:
+                    assertEquals(expected.containsKey(account), repository.update(account, username, password));
+                    expected.computeIfPresent(account, (name, old) -> new PasswordEntry(name, username, password));
+                    break;
+                default:
+                    assertEquals(expected.remove(account) != null, repository.remove(account));
+            }
+        }
+
+        Map<String, PasswordEntry> entries = repository.getEntries();
+        assertEquals(expected.size(), entries.size());
+        for (PasswordEntry entry : entries.values()) {
+            PasswordEntry other = expected.get(entry.getAccountName());
+            assertEquals(other.getUsername(), entry.getUsername());
+            assertArrayEquals(other.getEncryptedPassword(), entry.getEncryptedPassword());
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(expected.containsKey("account" + i), entries.containsKey("account" + i));
+        }
+    }
+
+    @Test
+    public void cursor_ordered_shouldPageInAccountOrder() {
+        IPasswordRepository repository = open.apply(vaultFile.getPath());
+        for (int i = 0; i < 30; i++) {
+            repository.add(new PasswordEntry(String.format("account%02d", (i * 7) % 30), "user", new byte[]{1}));
+        }
+
+        EntryCursor cursor = repository.cursor(EntryQuery.all().pageSize(4));
+        List<String> names = new ArrayList<>();
+        for (List<PasswordEntry> page = cursor.nextPage(); !page.isEmpty(); page = cursor.nextPage()) {
+            assertTrue(page.size() <= 4);
+            page.forEach(entry -> names.add(entry.getAccountName()));
+        }
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(30, names.size());
+        assertEquals(sorted, names);
+
+        EntryCursor resumed = repository.cursor(EntryQuery.all().after("account25"));
+        assertEquals("account26", resumed.next().getAccountName());
+    }
+
+    @Test
+    public void dump_shouldRemoveAllEntries() {
+        writeVault(3);
+        IPasswordRepository repository = open.apply(vaultFile.getPath());
+
+        repository.dump();
+
+        assertTrue(repository.getEntries().isEmpty());
+        assertTrue(repository.find("account").isEmpty());
+        assertEquals("", repository.getEncryptedMasterPassword());
+        assertTrue(repository.add(new PasswordEntry("account0", "user", new byte[]{1})));
+    }
+
+    @Test
+    public void open_shouldRejectUnreadableVaultAndLeaveItAlone() throws Exception {
+        byte[] garbage = {1, 2, 3, 4, 5, 6, 7, 8};
+        Files.write(vaultFile.toPath(), garbage);
+
+        try {
+            open.apply(vaultFile.getPath());
+            fail("an unreadable vault should not open as an empty one");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getMessage().startsWith("Error loading data"));
+        }
+        assertArrayEquals(garbage, Files.readAllBytes(vaultFile.toPath()));
+    }
+
+    private void writeVault(int count) {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("account" + i, new PasswordEntry("account" + i, "user" + i, new byte[]{(byte) i}));
+        }
+        VaultHeader header = new VaultHeader();
+        header.setSalt(new byte[]{1, 2, 3});
+        header.setKdfParameters(KdfParameters.pbkdf2(54000));
+        new PersistenceService(vaultFile.getPath()).save(header, entries);
+    }
+}
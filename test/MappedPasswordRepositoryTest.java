@@ -0,0 +1,198 @@
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import persistence.JournaledPersistenceService;
+import persistence.MappedVault;
+import persistence.PersistenceService;
+import repository.MappedPasswordRepository;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappedPasswordRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File vaultFile;
+
+    @Before
+    public void setUp() {
+        vaultFile = new File(folder.getRoot(), "passwords.dat");
+    }
+
+    @Test
+    public void open_shouldReadHeaderAndDecodeEntriesOnDemand() {
+        writeVault(3);
+
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+
+        assertArrayEquals(new byte[]{1, 2, 3}, repository.getSalt());
+        assertEquals(KdfParameters.pbkdf2(54000), repository.getKdfParameters());
+        assertEquals(3, repository.getEntries().size());
+
+        List<PasswordEntry> found = repository.find("account1");
+        assertEquals(1, found.size());
+        assertEquals("user1", found.get(0).getUsername());
+        assertArrayEquals(new byte[]{1}, found.get(0).getEncryptedPassword());
+    }
+
+    @Test
+    public void changes_shouldOverlayMappedFileUntilSaved() {
+        writeVault(3);
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+
+        assertTrue(repository.update("account0", "changed", new byte[]{9}));
+        assertTrue(repository.remove("account1"));
+        assertFalse(repository.remove("account1"));
+        assertTrue(repository.add(new PasswordEntry("new", "user", new byte[]{7})));
+        assertFalse(repository.add(new PasswordEntry("account2", "dup", new byte[]{7})));
+        assertTrue(repository.add(new PasswordEntry("account1", "back", new byte[]{8})));
+
+        Map<String, PasswordEntry> entries = repository.getEntries();
+        assertEquals(4, entries.size());
+        assertEquals(4, entries.values().size());
+        assertEquals("changed", entries.get("account0").getUsername());
+        assertEquals("back", entries.get("account1").getUsername());
+
+        repository.save();
+        MappedPasswordRepository reopened = new MappedPasswordRepository(vaultFile.getPath());
+
+        assertEquals(4, reopened.getEntries().size());
+        assertEquals("changed", reopened.getEntries().get("account0").getUsername());
+        assertArrayEquals(new byte[]{8}, reopened.getEntries().get("account1").getEncryptedPassword());
+        assertArrayEquals(new byte[]{7}, reopened.getEntries().get("new").getEncryptedPassword());
+        assertArrayEquals(new byte[]{1, 2, 3}, reopened.getSalt());
+    }
+
+    @Test
+    public void save_failing_shouldKeepMappedEntriesReadable() throws Exception {
+        writeVault(3);
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+        repository.update("account0", "changed", new byte[]{9});
+
+        // a directory where the new file would be written makes the save fail
+        File blocker = new File(folder.getRoot(), "passwords.dat.tmp");
+        assertTrue(new File(blocker, "file").mkdirs());
+        try {
+            repository.save();
+            fail("save should fail");
+        } catch (RuntimeException expected) {
+            // the old file stays mapped
+        }
+
+        assertEquals("user1", repository.getEntries().get("account1").getUsername());
+        assertEquals("changed", repository.getEntries().get("account0").getUsername());
+        assertTrue(new File(blocker, "file").delete() && blocker.delete());
+        repository.save();
+        assertEquals("changed", new MappedPasswordRepository(vaultFile.getPath()).getEntries().get("account0").getUsername());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedVault_shouldRefuseReads() throws Exception {
+        writeVault(3);
+        MappedVault vault = MappedVault.open(vaultFile.toPath());
+        vault.close();
+
+        vault.read("account0");
+    }
+
+    @Test
+    public void open_shouldBuildIndexForVersion1File() throws Exception {
+        writeVault(5);
+
+        // strip the header flags, the index and the footer and mark the file as version 1
+        byte[] bytes = Files.readAllBytes(vaultFile.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int indexOffset = (int) buffer.getLong(bytes.length - 12);
+        buffer.position(indexOffset + 4);
+        int firstEntry = Integer.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            buffer.position(buffer.position() + 4 + buffer.getInt());
+            firstEntry = Math.min(firstEntry, (int) buffer.getLong());
+        }
+        int flags = firstEntry - 5; // the flags byte, then the entry count
+        byte[] version1 = new byte[indexOffset - 1];
+        System.arraycopy(bytes, 0, version1, 0, flags);
+        System.arraycopy(bytes, flags + 1, version1, flags, indexOffset - flags - 1);
+        ByteBuffer.wrap(version1).putShort(4, (short) 1);
+        Files.write(vaultFile.toPath(), version1);
+
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+
+        assertEquals(5, repository.getEntries().size());
+        assertEquals("user4", repository.getEntries().get("account4").getUsername());
+    }
+
+    @Test
+    public void open_shouldMigrateSerializedVault() throws Exception {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("gmail", new PasswordEntry("gmail", "user1", new byte[]{5}));
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(vaultFile))) {
+            oos.writeObject(new byte[]{1, 2, 3});
+            oos.writeObject("encrypted123");
+            oos.writeObject(entries);
+        }
+
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+
+        assertEquals("encrypted123", repository.getEncryptedMasterPassword());
+        assertArrayEquals(new byte[]{5}, repository.getEntries().get("gmail").getEncryptedPassword());
+    }
+
+    @Test
+    public void open_shouldSeeJournalAfterCheckpoint() {
+        JournaledPersistenceService journal = new JournaledPersistenceService(vaultFile.getPath());
+        journal.load();
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        PasswordEntry entry = new PasswordEntry("gmail", "user1", new byte[]{5});
+        entries.put("gmail", entry);
+        journal.recordPut(entry);
+        journal.save(header(), entries);
+
+        new JournaledPersistenceService(vaultFile.getPath()).checkpoint();
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+
+        assertFalse(new File(folder.getRoot(), "passwords.dat.wal").exists());
+        assertEquals(1, repository.getEntries().size());
+    }
+
+    @Test
+    public void dump_shouldHideAllStoredEntries() {
+        writeVault(3);
+        MappedPasswordRepository repository = new MappedPasswordRepository(vaultFile.getPath());
+
+        repository.dump();
+
+        assertTrue(repository.getEntries().isEmpty());
+        assertTrue(repository.find("account").isEmpty());
+        assertEquals("", repository.getEncryptedMasterPassword());
+    }
+
+    private void writeVault(int count) {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("account" + i, new PasswordEntry("account" + i, "user" + i, new byte[]{(byte) i}));
+        }
+        new PersistenceService(vaultFile.getPath()).save(header(), entries);
+    }
+
+    private static VaultHeader header() {
+        VaultHeader header = new VaultHeader();
+        header.setSalt(new byte[]{1, 2, 3});
+        header.setKdfParameters(KdfParameters.pbkdf2(54000));
+        return header;
+    }
+}
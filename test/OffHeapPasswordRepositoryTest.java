@@ -0,0 +1,65 @@
+import model.PasswordEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import repository.OffHeapPasswordRepository;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class OffHeapPasswordRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File vaultFile;
+
+    @Before
+    public void setUp() {
+        vaultFile = new File(folder.getRoot(), "passwords.dat");
+    }
+
+    @Test
+    public void close_shouldMakeRepositoryUnusable() {
+        OffHeapPasswordRepository repository = new OffHeapPasswordRepository(vaultFile.getPath());
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+
+        repository.close();
+        repository.close();
+
+        try {
+            repository.getEntries().get("gmail");
+            fail("closed store should not be readable");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void changes_shouldReuseFreedBlocksInsteadOfGrowing() {
+        OffHeapPasswordRepository repository = new OffHeapPasswordRepository(vaultFile.getPath());
+        for (int i = 0; i < 1000; i++) {
+            repository.add(new PasswordEntry("account" + i, "user", new byte[100]));
+        }
+        long reserved = repository.getReservedBytes();
+
+        // 100,000 replaced records of 128 bytes would fill three segments if nothing were reused
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 1000; i++) {
+                repository.update("account" + i, "user", new byte[90 + round % 10]);
+            }
+            repository.remove("account" + round);
+            repository.add(new PasswordEntry("account" + round, "user", new byte[100]));
+        }
+
+        assertEquals(reserved, repository.getReservedBytes());
+        assertEquals(1000, repository.getEntries().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_shouldRejectEntryLargerThanSegment() {
+        OffHeapPasswordRepository repository = new OffHeapPasswordRepository(vaultFile.getPath());
+        repository.add(new PasswordEntry("huge", "user", new byte[5 << 20]));
+    }
+}
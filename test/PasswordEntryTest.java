@@ -1,21 +1,27 @@
 import model.PasswordEntry;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import static org.junit.Assert.*;
 
 public class PasswordEntryTest {
 
     @Test
     public void testConstructorAndGetters() {
-        PasswordEntry entry = new PasswordEntry("Gmail", "user123", "encryptedPass");
+        PasswordEntry entry = new PasswordEntry("Gmail", "user123", "encryptedPass".getBytes());
 
         assertEquals("Gmail", entry.getAccountName());
         assertEquals("user123", entry.getUsername());
-        assertEquals("encryptedPass", entry.getEncryptedPassword());
+        assertArrayEquals("encryptedPass".getBytes(), entry.getEncryptedPassword());
     }
 
     @Test
     public void testSetUsername() {
-        PasswordEntry entry = new PasswordEntry("Gmail", "user123", "encryptedPass");
+        PasswordEntry entry = new PasswordEntry("Gmail", "user123", "encryptedPass".getBytes());
         entry.setUsername("newUser");
 
         assertEquals("newUser", entry.getUsername());
@@ -23,18 +29,37 @@ public class PasswordEntryTest {
 
     @Test
     public void testSetEncryptedPassword() {
-        PasswordEntry entry = new PasswordEntry("Gmail", "user123", "encryptedPass");
-        entry.setEncryptedPassword("newEncrypted");
+        PasswordEntry entry = new PasswordEntry("Gmail", "user123", "encryptedPass".getBytes());
+        entry.setEncryptedPassword("newEncrypted".getBytes());
 
-        assertEquals("newEncrypted", entry.getEncryptedPassword());
+        assertArrayEquals("newEncrypted".getBytes(), entry.getEncryptedPassword());
     }
 
     @Test
     public void testAccountNameUnchanged() {
-        PasswordEntry entry = new PasswordEntry("GitHub", "coder", "abc123");
+        PasswordEntry entry = new PasswordEntry("GitHub", "coder", "abc123".getBytes());
         entry.setUsername("updatedUser");
 
         // account name should remain unchanged
         assertEquals("GitHub", entry.getAccountName());
     }
+
+    @Test
+    public void testSerializationRoundTripKeepsRawCiphertext() throws Exception {
+        byte[] cipherText = new byte[]{0, 1, 2, (byte) 0xff, 42};
+        PasswordEntry entry = new PasswordEntry("GitHub", "coder", cipherText);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(entry);
+        }
+        PasswordEntry copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (PasswordEntry) in.readObject();
+        }
+
+        assertEquals("GitHub", copy.getAccountName());
+        assertEquals("coder", copy.getUsername());
+        assertArrayEquals(cipherText, copy.getEncryptedPassword());
+    }
 }
@@ -1,19 +1,29 @@
+import crypto.CryptoService;
 import interfaces.ICryptoService;
 import interfaces.IPasswordRepository;
+import interfaces.IPersistenceService;
 import manager.PasswordManager;
+import model.EntryQuery;
+import model.KdfParameters;
 import model.PasswordEntry;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import repository.PasswordRepository;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
 
 import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 public class PasswordManagerTest {
@@ -28,6 +38,7 @@ public class PasswordManagerTest {
     public void setUp() {
         crypto = mock(ICryptoService.class);
         repository = mock(IPasswordRepository.class);
+        when(repository.isEntriesAuthenticated()).thenReturn(true);
         manager = new PasswordManager(crypto, repository);
         secretKey = new SecretKeySpec(new byte[16], "AES");
     }
@@ -36,8 +47,8 @@ public class PasswordManagerTest {
     public void initialize_noMasterPassword_shouldSetMasterPassword() {
         when(repository.getEncryptedMasterPassword()).thenReturn(null);
         when(crypto.generateSalt()).thenReturn(new byte[]{1,2,3});
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        when(crypto.encrypt(anyString(), any())).thenReturn("encrypted");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.computeKeyCheck(secretKey)).thenReturn(new byte[]{42});
 
         System.setIn(new ByteArrayInputStream("master123\nmaster123\n".getBytes()));
 
@@ -45,7 +56,10 @@ public class PasswordManagerTest {
 
         assertTrue(result);
         verify(repository).setSalt(any());
-        verify(repository).setEncryptedMasterPassword("encrypted");
+        verify(repository).setKeyCheck(aryEq(new byte[]{42}));
+        verify(repository).setEncryptedMasterPassword(null);
+        verify(repository).setEntriesAuthenticated(true);
+        verify(crypto, never()).encrypt(anyString(), any());
         verify(repository).save();
     }
 
@@ -53,8 +67,8 @@ public class PasswordManagerTest {
     public void authenticate_correctPassword_shouldReturnTrue() {
         when(repository.getSalt()).thenReturn(new byte[]{1});
         when(repository.getEncryptedMasterPassword()).thenReturn("encrypted");
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        when(crypto.encrypt(anyString(), any())).thenReturn("encrypted");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.decrypt("encrypted", secretKey)).thenReturn("master123");
 
         System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
 
@@ -101,8 +115,8 @@ public class PasswordManagerTest {
     public void authenticate_wrongPasswordThreeTimes_shouldReturnFalse() {
         when(repository.getSalt()).thenReturn(new byte[]{1});
         when(repository.getEncryptedMasterPassword()).thenReturn("correct");
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        when(crypto.encrypt(anyString(), any())).thenReturn("wrong");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.decrypt("correct", secretKey)).thenThrow(new RuntimeException("Decryption error"));
 
         System.setIn(new ByteArrayInputStream(
                 "a\nb\nc\n".getBytes()
@@ -115,9 +129,9 @@ public class PasswordManagerTest {
 
     @Test
     public void addPassword_newAccount_shouldEncryptAndSave() {
-        // repository.find returns a List; return empty list to indicate no existing account
-        when(repository.find("gmail")).thenReturn(new java.util.ArrayList<>());
-        when(crypto.encrypt(eq("pass"), any())).thenReturn("encrypted");
+        // repository.get returns null for an account that does not exist yet
+        when(repository.get("gmail")).thenReturn(null);
+        when(crypto.encrypt(aryEq("pass".getBytes()), any())).thenReturn("encrypted".getBytes());
 
         System.setIn(new ByteArrayInputStream(
                 "gmail\nuser\npass\n".getBytes()
@@ -131,16 +145,31 @@ public class PasswordManagerTest {
 
         verify(repository).add(captor.capture());
         verify(repository).save();
+        verify(repository, never()).find(anyString());
 
         PasswordEntry entry = captor.getValue();
         assertEquals("gmail", entry.getAccountName());
         assertEquals("user", entry.getUsername());
-        assertEquals("encrypted", entry.getEncryptedPassword());
+        assertArrayEquals("encrypted".getBytes(), entry.getEncryptedPassword());
+    }
+
+    @Test
+    public void addPassword_entryTooLarge_shouldReportAndNotSave() {
+        when(repository.get("gmail")).thenReturn(null);
+        when(crypto.encrypt(aryEq("pass".getBytes()), any())).thenReturn("encrypted".getBytes());
+        when(repository.add(any())).thenThrow(new IllegalArgumentException("Entry too large for a page: gmail"));
+
+        System.setIn(new ByteArrayInputStream("gmail\nuser\npass\n".getBytes()));
+
+        manager.secretKey = secretKey;
+        manager.addPassword(new Scanner(System.in));
+
+        verify(repository, never()).save();
     }
 
     @Test
     public void addPassword_shouldNotAdd_whenInputInvalid() {
-        when(repository.find("gmail")).thenReturn(null);
+        when(repository.get("gmail")).thenReturn(null);
 
         System.setIn(new ByteArrayInputStream(
                 "gmail\n\npass\n".getBytes() // empty username
@@ -168,16 +197,17 @@ public class PasswordManagerTest {
     public void viewPasswords_shouldDecryptAndPrint() {
         HashMap<String, PasswordEntry> map = new HashMap<>();
         map.put("gmail",
-                new PasswordEntry("gmail", "user", "encrypted"));
+                new PasswordEntry("gmail", "user", "encrypted".getBytes()));
 
         when(repository.getEntries()).thenReturn(map);
-        when(crypto.decrypt("encrypted", secretKey)).thenReturn("plain");
+        when(repository.cursor(any())).thenCallRealMethod();
+        when(crypto.decrypt(aryEq("encrypted".getBytes()), eq(secretKey))).thenReturn("plain".getBytes());
 
         manager.secretKey = secretKey;
 
         manager.viewPasswords();
 
-        verify(crypto).decrypt("encrypted", secretKey);
+        verify(crypto).decrypt(aryEq("encrypted".getBytes()), eq(secretKey));
     }
 
     @Test
@@ -185,9 +215,9 @@ public class PasswordManagerTest {
         // first attempt wrong, second attempt correct
         when(repository.getSalt()).thenReturn(new byte[]{1});
         when(repository.getEncryptedMasterPassword()).thenReturn("encrypted");
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        // first call to encrypt returns "wrong", second returns "encrypted"
-        when(crypto.encrypt(anyString(), any())).thenReturn("wrong", "encrypted");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        // first attempt does not match the stored master password, second does
+        when(crypto.decrypt("encrypted", secretKey)).thenReturn("master123");
 
         System.setIn(new ByteArrayInputStream("firstTry\nmaster123\n".getBytes()));
 
@@ -195,15 +225,13 @@ public class PasswordManagerTest {
 
         assertTrue(result);
         // deriveKey should have been called at least twice
-        verify(crypto, atLeast(2)).deriveKey(anyString(), any());
+        verify(crypto, atLeast(2)).deriveKey(anyString(), any(), any());
     }
 
     @Test
     public void addPassword_existingAccount_shouldNotAddAndNotSave() {
-        // repository.find returns a list; return a non-empty list to indicate existing account
-        java.util.List<model.PasswordEntry> existing = new java.util.ArrayList<>();
-        existing.add(new PasswordEntry("gmail", "existing", "enc"));
-        when(repository.find("gmail")).thenReturn(existing);
+        // repository.get returns the entry of an existing account
+        when(repository.get("gmail")).thenReturn(new PasswordEntry("gmail", "existing", "enc".getBytes()));
 
         System.setIn(new ByteArrayInputStream(
                 "gmail\nuser\npass\n".getBytes()
@@ -220,18 +248,18 @@ public class PasswordManagerTest {
     @Test
     public void updateEntry_existingAccount_shouldEncryptAndUpdate() {
         java.util.List<model.PasswordEntry> existing = new java.util.ArrayList<>();
-        existing.add(new PasswordEntry("gmail", "existing", "enc"));
+        existing.add(new PasswordEntry("gmail", "existing", "enc".getBytes()));
         when(repository.find("gmail")).thenReturn(existing);
-        when(crypto.encrypt(eq("newpass"), any())).thenReturn("newenc");
-        when(repository.update(eq("gmail"), eq("newuser"), eq("newenc"))).thenReturn(true);
+        when(crypto.encrypt(aryEq("newpass".getBytes()), any())).thenReturn("newenc".getBytes());
+        when(repository.update(eq("gmail"), eq("newuser"), aryEq("newenc".getBytes()))).thenReturn(true);
 
         System.setIn(new ByteArrayInputStream("gmail\nnewuser\nnewpass\n".getBytes()));
 
         manager.secretKey = secretKey;
         manager.updateEntry(new Scanner(System.in));
 
-        verify(crypto).encrypt("newpass", secretKey);
-        verify(repository).update("gmail", "newuser", "newenc");
+        verify(crypto).encrypt(aryEq("newpass".getBytes()), eq(secretKey));
+        verify(repository).update(eq("gmail"), eq("newuser"), aryEq("newenc".getBytes()));
     }
 
     @Test
@@ -247,15 +275,49 @@ public class PasswordManagerTest {
     }
 
     @Test
-    public void updateMasterPassword_shouldReimportEntriesAndSave() {
-        Map<String, PasswordEntry> entries = new HashMap<>();
-        entries.put("a", new PasswordEntry("a", "u", "encA"));
-        entries.put("b", new PasswordEntry("b", "v", "encB"));
+    public void findByUsername_shouldPrintAccountNamesOnly() {
+        when(repository.findByUsername("me@example.com")).thenReturn(java.util.Arrays.asList(
+                new PasswordEntry("github", "me@example.com", "enc1".getBytes()),
+                new PasswordEntry("gmail", "me@example.com", "enc2".getBytes())));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(out));
+        try {
+            manager.findByUsername(new Scanner(new ByteArrayInputStream("me@example.com\n".getBytes())));
+        } finally {
+            System.setOut(original);
+        }
+
+        assertTrue(out.toString().contains("github"));
+        assertTrue(out.toString().contains("gmail"));
+        verify(crypto, never()).decrypt(any(byte[].class), any());
+    }
 
-        when(repository.getEntries()).thenReturn(entries);
+    @Test
+    public void searchPassword_notFound_shouldSuggestSimilarAccounts() {
+        when(repository.find("gmial")).thenReturn(new java.util.ArrayList<>());
+        when(repository.fuzzyFind("gmial", 2)).thenReturn(java.util.Collections.singletonList(
+                new PasswordEntry("gmail", "user", "enc".getBytes())));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(out));
+        try {
+            manager.searchPassword(new Scanner(new ByteArrayInputStream("gmial\n".getBytes())));
+        } finally {
+            System.setOut(original);
+        }
+
+        assertTrue(out.toString().contains("Did you mean: gmail?"));
+        verify(crypto, never()).decrypt(any(byte[].class), any());
+    }
+
+    @Test
+    public void updateMasterPassword_shouldRewrapDataKeyWithoutTouchingEntries() {
+        SecretKey newMasterKey = new SecretKeySpec(new byte[16], "AES");
         when(crypto.generateSalt()).thenReturn(new byte[]{9});
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(newMasterKey);
         when(crypto.encrypt(anyString(), any())).thenReturn("newMasterEnc");
+        when(crypto.wrapKey(secretKey, newMasterKey)).thenReturn(new byte[]{7});
 
         // setMasterPassword input: master, master
         System.setIn(new ByteArrayInputStream("newmaster\nnewmaster\n".getBytes()));
@@ -264,11 +326,157 @@ public class PasswordManagerTest {
 
         manager.updateMasterPassword();
 
-        // dump should be called to clear repository before re-import
-        verify(repository).dump();
-        // repository.add should be called for each former entry with new master password stored
-        verify(repository, atLeast(2)).add(any(PasswordEntry.class));
-        verify(repository, times(2)).save();
+        // the data key is kept and only re-wrapped under the new master key
+        assertSame(secretKey, manager.secretKey);
+        verify(repository).setWrappedKey(aryEq(new byte[]{7}));
+        verify(repository, never()).getEntries();
+        verify(repository, never()).dump();
+        verify(repository, never()).add(any(PasswordEntry.class));
+        verify(repository, never()).update(anyString(), anyString(), any(byte[].class));
+        verify(crypto, never()).generateDataKey();
+        verify(repository).save();
+    }
+
+    @Test
+    public void rotateDataKey_shouldReEncryptEntriesAndWrapNewKey() {
+        SecretKey newKey = new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+        HashMap<String, PasswordEntry> map = new HashMap<>();
+        map.put("gmail", new PasswordEntry("gmail", "user", "old".getBytes()));
+
+        when(repository.getEntries()).thenReturn(map);
+        when(crypto.generateDataKey()).thenReturn(newKey);
+        when(crypto.decrypt(aryEq("old".getBytes()), eq(secretKey))).thenReturn("plain".getBytes());
+        when(crypto.encrypt(aryEq("plain".getBytes()), eq(newKey))).thenReturn("new".getBytes());
+        when(crypto.wrapKey(eq(newKey), any())).thenReturn(new byte[]{5});
+        // the engine applies each batch through the bulk method, which calls update per entry
+        when(repository.updateAll(any())).thenCallRealMethod();
+
+        manager.secretKey = secretKey;
+        manager.rotateDataKey();
+
+        assertSame(newKey, manager.secretKey);
+        verify(repository).update(eq("gmail"), eq("user"), aryEq("new".getBytes()));
+        verify(repository).setWrappedKey(aryEq(new byte[]{5}));
+        verify(repository).setEntriesAuthenticated(true);
+        verify(repository).save();
+    }
+
+    @Test
+    public void rotateDataKey_shouldKeepOldKeyWhenAnEntryCannotBeDecrypted() {
+        SecretKey newKey = new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+        HashMap<String, PasswordEntry> map = new HashMap<>();
+        map.put("broken", new PasswordEntry("broken", "user", "garbage".getBytes()));
+
+        when(repository.getEntries()).thenReturn(map);
+        when(crypto.generateDataKey()).thenReturn(newKey);
+        when(crypto.decrypt(aryEq("garbage".getBytes()), any(SecretKey.class))).thenThrow(new RuntimeException("bad tag"));
+
+        manager.secretKey = secretKey;
+        manager.rotateDataKey();
+
+        assertSame(secretKey, manager.secretKey);
+        verify(repository, never()).setWrappedKey(any());
+        verify(repository, never()).setEntriesAuthenticated(true);
+        verify(repository, never()).save();
+    }
+
+    @Test
+    public void authenticate_withKeyCheck_shouldVerifyAndUnwrapDataKey() {
+        SecretKey masterKey = new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+        when(repository.getSalt()).thenReturn(new byte[]{1});
+        when(repository.getKeyCheck()).thenReturn(new byte[]{42});
+        when(repository.getWrappedKey()).thenReturn(new byte[]{7});
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(masterKey);
+        when(crypto.verifyKeyCheck(eq(masterKey), aryEq(new byte[]{42}))).thenReturn(true);
+        when(crypto.unwrapKey(aryEq(new byte[]{7}), eq(masterKey))).thenReturn(secretKey);
+
+        System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
+
+        assertTrue(manager.authenticate());
+        assertSame(secretKey, manager.secretKey);
+        verify(crypto, never()).decrypt(anyString(), any());
+        verify(repository, never()).save();
+    }
+
+    @Test
+    public void authenticate_withKeyCheck_wrongPassword_shouldOnlyDeriveKey() {
+        when(repository.getSalt()).thenReturn(new byte[]{1});
+        when(repository.getKeyCheck()).thenReturn(new byte[]{42});
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.verifyKeyCheck(any(), any())).thenReturn(false);
+
+        System.setIn(new ByteArrayInputStream("a\nb\nc\n".getBytes()));
+
+        assertFalse(manager.authenticate());
+        verify(crypto, times(3)).deriveKey(anyString(), any(), any());
+        verify(crypto, never()).decrypt(anyString(), any());
+        verify(crypto, never()).encrypt(anyString(), any());
+        verify(crypto, never()).unwrapKey(any(), any());
+        verify(repository, never()).save();
+    }
+
+    @Test
+    public void setMasterPassword_shouldStoreCalibratedKdfParametersAndDeriveWithThem() {
+        KdfParameters kdf = KdfParameters.pbkdf2(300000);
+        when(crypto.calibrateKdf(anyLong())).thenReturn(kdf);
+        when(crypto.generateSalt()).thenReturn(new byte[]{9});
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+
+        System.setIn(new ByteArrayInputStream("newmaster\nnewmaster\n".getBytes()));
+
+        manager.setMasterPassword();
+
+        verify(repository).setKdfParameters(kdf);
+        verify(crypto).deriveKey(eq("newmaster"), aryEq(new byte[]{9}), eq(kdf));
+    }
+
+    @Test
+    public void authenticate_shouldDeriveKeyWithStoredKdfParameters() {
+        KdfParameters kdf = KdfParameters.pbkdf2(300000);
+        when(repository.getSalt()).thenReturn(new byte[]{1});
+        when(repository.getKdfParameters()).thenReturn(kdf);
+        when(repository.getKeyCheck()).thenReturn(new byte[]{42});
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.verifyKeyCheck(any(), any())).thenReturn(true);
+
+        System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
+
+        assertTrue(manager.authenticate());
+        verify(crypto).deriveKey(eq("master123"), aryEq(new byte[]{1}), eq(kdf));
+    }
+
+    @Test
+    public void authenticate_legacyVault_shouldUpgradeToKeyCheck() {
+        when(repository.getSalt()).thenReturn(new byte[]{1});
+        when(repository.getEncryptedMasterPassword()).thenReturn("encrypted");
+        when(repository.getWrappedKey()).thenReturn(new byte[]{7});
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.decrypt("encrypted", secretKey)).thenReturn("master123");
+        when(crypto.computeKeyCheck(secretKey)).thenReturn(new byte[]{42});
+
+        System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
+
+        assertTrue(manager.authenticate());
+        verify(repository).setKeyCheck(aryEq(new byte[]{42}));
+        verify(repository).setEncryptedMasterPassword(null);
+        verify(repository).save();
+    }
+
+    @Test
+    public void authenticate_legacyVaultWithoutWrappedKey_shouldAdoptMasterKeyAsDataKey() {
+        when(repository.getSalt()).thenReturn(new byte[]{1});
+        when(repository.getEncryptedMasterPassword()).thenReturn("encrypted");
+        when(repository.getWrappedKey()).thenReturn(null);
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.decrypt("encrypted", secretKey)).thenReturn("master123");
+        when(crypto.wrapKey(secretKey, secretKey)).thenReturn(new byte[]{8});
+
+        System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
+
+        assertTrue(manager.authenticate());
+        assertSame(secretKey, manager.secretKey);
+        verify(repository).setWrappedKey(aryEq(new byte[]{8}));
+        verify(repository).save();
     }
 
     @Test
@@ -284,14 +492,30 @@ public class PasswordManagerTest {
         verify(repository, never()).add(any());
     }
 
+    @Test
+    public void viewPasswords_shouldAskForOrderOnlyWhereItIsKept() {
+        when(repository.getEntries()).thenReturn(new HashMap<>());
+        when(repository.cursor(any())).thenCallRealMethod();
+        ArgumentCaptor<EntryQuery> query = ArgumentCaptor.forClass(EntryQuery.class);
+
+        manager.viewPasswords();
+        when(repository.isAccountOrdered()).thenReturn(true);
+        manager.viewPasswords();
+
+        verify(repository, times(2)).cursor(query.capture());
+        assertFalse(query.getAllValues().get(0).isOrdered());
+        assertTrue(query.getAllValues().get(1).isOrdered());
+    }
+
     @Test
     public void viewPasswords_emptyRepository_shouldNotCallDecrypt() {
         when(repository.getEntries()).thenReturn(new HashMap<>());
+        when(repository.cursor(any())).thenCallRealMethod();
 
         manager.secretKey = secretKey;
         manager.viewPasswords();
 
-        verify(crypto, never()).decrypt(anyString(), any());
+        verify(crypto, never()).decrypt(any(byte[].class), any());
     }
 
     @Test
@@ -300,8 +524,8 @@ public class PasswordManagerTest {
         when(repository.getEncryptedMasterPassword()).thenReturn(null);
         // mocks needed by setMasterPassword
         when(crypto.generateSalt()).thenReturn(new byte[]{1});
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        when(crypto.encrypt(anyString(), any())).thenReturn("encryptedMaster");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        when(crypto.computeKeyCheck(secretKey)).thenReturn(new byte[]{42});
 
         // provide matching master password + confirmation
         System.setIn(new ByteArrayInputStream("newmaster\nnewmaster\n".getBytes()));
@@ -310,7 +534,7 @@ public class PasswordManagerTest {
 
         // initialize should succeed (set master password)
         assertTrue(result);
-        verify(repository).setEncryptedMasterPassword("encryptedMaster");
+        verify(repository).setKeyCheck(aryEq(new byte[]{42}));
         verify(repository).save();
     }
 
@@ -331,7 +555,7 @@ public class PasswordManagerTest {
     @Test
     public void addPassword_nullSecretKey_shouldCallEncryptAndAttemptAdd() {
         when(repository.find("site")).thenReturn(null);
-        when(crypto.encrypt(eq("pass"), any())).thenReturn("encrypted");
+        when(crypto.encrypt(aryEq("pass".getBytes()), any())).thenReturn("encrypted".getBytes());
         when(repository.add(any(PasswordEntry.class))).thenReturn(true);
 
         System.setIn(new ByteArrayInputStream("site\nuser\npass\n".getBytes()));
@@ -340,7 +564,7 @@ public class PasswordManagerTest {
         manager.addPassword(new Scanner(System.in));
 
         // current implementation will call encrypt even if secretKey is null
-        verify(crypto).encrypt(eq("pass"), isNull());
+        verify(crypto).encrypt(aryEq("pass".getBytes()), isNull());
         // repository.add is attempted and save is called
         verify(repository).add(any(PasswordEntry.class));
         verify(repository).save();
@@ -355,35 +579,35 @@ public class PasswordManagerTest {
         manager.secretKey = secretKey;
         manager.updateEntry(new Scanner(System.in));
 
-        verify(crypto, never()).encrypt(anyString(), any());
-        verify(repository, never()).update(anyString(), anyString(), anyString());
+        verify(crypto, never()).encrypt(any(byte[].class), any());
+        verify(repository, never()).update(anyString(), anyString(), any(byte[].class));
     }
 
     @Test
     public void authenticate_withNoSalt_shouldFollowCryptoBehavior() {
         when(repository.getSalt()).thenReturn(null);
         when(repository.getEncryptedMasterPassword()).thenReturn("encrypted");
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        // make crypto.encrypt produce the same encrypted value so authenticate returns true
-        when(crypto.encrypt(anyString(), any())).thenReturn("encrypted");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(secretKey);
+        // make crypto.decrypt return the entered password so authenticate returns true
+        when(crypto.decrypt("encrypted", secretKey)).thenReturn("master123");
 
         System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
 
         boolean result = manager.authenticate();
 
-        // authentication succeeds because crypto.encrypt produced "encrypted"
+        // authentication succeeds because crypto.decrypt produced the entered password
         assertTrue(result);
-        verify(crypto).deriveKey(anyString(), isNull());
-        verify(crypto).encrypt(anyString(), any());
+        verify(crypto).deriveKey(anyString(), isNull(), any());
+        verify(crypto).decrypt("encrypted", secretKey);
     }
 
     @Test
     public void searchPassword_existingAccount_shouldReturnEntry() {
-        PasswordEntry entry = new PasswordEntry("acct", "u", "enc");
+        PasswordEntry entry = new PasswordEntry("acct", "u", "enc".getBytes());
         java.util.List<PasswordEntry> results = new java.util.ArrayList<>();
         results.add(entry);
         when(repository.find("acct")).thenReturn(results);
-        when(crypto.decrypt("enc", secretKey)).thenReturn("plain");
+        when(crypto.decrypt(aryEq("enc".getBytes()), eq(secretKey))).thenReturn("plain".getBytes());
 
         System.setIn(new ByteArrayInputStream("acct\n".getBytes()));
 
@@ -391,7 +615,7 @@ public class PasswordManagerTest {
         manager.searchPassword(new Scanner(System.in));
 
         verify(repository).find("acct");
-        verify(crypto).decrypt("enc", secretKey);
+        verify(crypto).decrypt(aryEq("enc".getBytes()), eq(secretKey));
     }
 
     @Test
@@ -406,21 +630,88 @@ public class PasswordManagerTest {
     }
 
     @Test
-    public void updateMasterPassword_noEntries_shouldSetMasterAndSaveTwice() {
-        when(repository.getEntries()).thenReturn(new HashMap<>());
+    public void initialize_noMasterPassword_shouldGenerateAndWrapDataKey() {
+        SecretKey masterKey = new SecretKeySpec(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES");
+        when(repository.getEncryptedMasterPassword()).thenReturn(null);
         when(crypto.generateSalt()).thenReturn(new byte[]{9});
-        when(crypto.deriveKey(anyString(), any())).thenReturn(secretKey);
-        when(crypto.encrypt(anyString(), any())).thenReturn("newMasterEnc");
+        when(crypto.deriveKey(anyString(), any(), any())).thenReturn(masterKey);
+        when(crypto.generateDataKey()).thenReturn(secretKey);
+        when(crypto.wrapKey(secretKey, masterKey)).thenReturn(new byte[]{7});
 
         System.setIn(new ByteArrayInputStream("newmaster\nnewmaster\n".getBytes()));
 
-        manager.secretKey = secretKey;
+        assertTrue(manager.initialize());
 
-        manager.updateMasterPassword();
+        assertSame(secretKey, manager.secretKey);
+        verify(repository).setWrappedKey(aryEq(new byte[]{7}));
+        verify(repository).save();
+    }
 
-        // setMasterPassword calls repository.save() once; updateMasterPassword calls save() again at end
-        verify(repository, times(2)).save();
-        verify(repository).dump();
+    @Test
+    public void authenticate_legacyVault_shouldMigrateEcbValuesThatStartLikeAesGcm() {
+        CryptoService realCrypto = new CryptoService();
+        ICryptoService legacy = realCrypto.legacyEcb();
+        byte[] salt = {1, 2, 3};
+        KdfParameters kdf = KdfParameters.pbkdf2(1000);
+
+        // about one ECB value in 256 starts with the AES-GCM version byte; the first block must vary
+        String master = null;
+        SecretKey key = null;
+        for (int i = 0; master == null; i++) {
+            String candidate = String.format("master-password-%04d", i);
+            SecretKey candidateKey = realCrypto.deriveKey(candidate, salt, kdf);
+            if (Base64.getDecoder().decode(legacy.encrypt(candidate, candidateKey))[0] == 1) {
+                master = candidate;
+                key = candidateKey;
+            }
+        }
+        String password = null;
+        for (int i = 0; password == null; i++) {
+            String candidate = String.format("%04d-entry-password", i);
+            if (legacy.encrypt(candidate.getBytes(StandardCharsets.UTF_8), key)[0] == 1) {
+                password = candidate;
+            }
+        }
+
+        IPersistenceService persistence = mock(IPersistenceService.class);
+        PasswordRepository vault = new PasswordRepository(persistence);
+        vault.setSalt(salt);
+        vault.setKdfParameters(kdf);
+        vault.setEncryptedMasterPassword(legacy.encrypt(master, key));
+        vault.add(new PasswordEntry("gmail", "user", legacy.encrypt(password.getBytes(StandardCharsets.UTF_8), key)));
+        vault.add(new PasswordEntry("github", "user", legacy.encrypt("short".getBytes(StandardCharsets.UTF_8), key)));
+        PasswordManager legacyManager = new PasswordManager(realCrypto, vault);
+
+        System.setIn(new ByteArrayInputStream((master + "\n").getBytes()));
+
+        assertTrue(legacyManager.authenticate());
+        assertTrue(vault.isEntriesAuthenticated());
+        assertEquals(password, new String(realCrypto.decrypt(vault.get("gmail").getEncryptedPassword(), legacyManager.secretKey), StandardCharsets.UTF_8));
+        assertEquals("short", new String(realCrypto.decrypt(vault.get("github").getEncryptedPassword(), legacyManager.secretKey), StandardCharsets.UTF_8));
+        verify(persistence).save(any(), any());
     }
 
+    @Test
+    public void authenticate_legacyVaultWithUnreadableEntry_shouldKeepItAllEcb() {
+        CryptoService realCrypto = new CryptoService();
+        ICryptoService legacy = realCrypto.legacyEcb();
+        byte[] salt = {1, 2, 3};
+        KdfParameters kdf = KdfParameters.pbkdf2(1000);
+        SecretKey key = realCrypto.deriveKey("master123", salt, kdf);
+        byte[] good = legacy.encrypt("pass".getBytes(StandardCharsets.UTF_8), key);
+
+        PasswordRepository vault = new PasswordRepository(mock(IPersistenceService.class));
+        vault.setSalt(salt);
+        vault.setKdfParameters(kdf);
+        vault.setEncryptedMasterPassword(legacy.encrypt("master123", key));
+        vault.add(new PasswordEntry("good", "user", good));
+        vault.add(new PasswordEntry("broken", "user", new byte[]{1, 2, 3}));
+        PasswordManager legacyManager = new PasswordManager(realCrypto, vault);
+
+        System.setIn(new ByteArrayInputStream("master123\n".getBytes()));
+
+        assertTrue(legacyManager.authenticate());
+        assertFalse(vault.isEntriesAuthenticated());
+        assertArrayEquals(good, vault.get("good").getEncryptedPassword());
+    }
 }
@@ -1,12 +1,22 @@
+import interfaces.IPasswordRepository;
 import interfaces.IPersistenceService;
+import model.EntryCursor;
+import model.EntryQuery;
 import model.PasswordEntry;
+import model.VaultHeader;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import persistence.PersistenceService;
 import repository.PasswordRepository;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
 import static org.junit.Assert.*;
         import static org.mockito.Mockito.*;
@@ -27,10 +37,15 @@ public class PasswordRepositoryTest {
         String encryptedMaster = "encryptedMaster";
 
         HashMap<String, PasswordEntry> entries = new HashMap<>();
-        entries.put("gmail", new PasswordEntry("gmail", "user", "encPass"));
+        entries.put("gmail", new PasswordEntry("gmail", "user", "encPass".getBytes()));
+
+        VaultHeader header = new VaultHeader();
+        header.setSalt(salt);
+        header.setEncryptedMasterPassword(encryptedMaster);
+        header.setWrappedKey(new byte[]{4, 5});
 
         PersistenceService.LoadedData data =
-                new PersistenceService.LoadedData(salt, encryptedMaster, entries);
+                new PersistenceService.LoadedData(header, entries);
 
         when(persistence.load()).thenReturn(data);
 
@@ -38,6 +53,7 @@ public class PasswordRepositoryTest {
 
         assertArrayEquals(salt, repository.getSalt());
         assertEquals(encryptedMaster, repository.getEncryptedMasterPassword());
+        assertArrayEquals(new byte[]{4, 5}, repository.getWrappedKey());
         assertEquals(1, repository.getEntries().size());
     }
 
@@ -58,7 +74,7 @@ public class PasswordRepositoryTest {
         when(persistence.load()).thenReturn(null);
         repository = new PasswordRepository(persistence);
 
-        PasswordEntry entry = new PasswordEntry("gmail", "user", "enc");
+        PasswordEntry entry = new PasswordEntry("gmail", "user", "enc".getBytes());
 
         boolean result = repository.add(entry);
 
@@ -72,8 +88,8 @@ public class PasswordRepositoryTest {
         when(persistence.load()).thenReturn(null);
         repository = new PasswordRepository(persistence);
 
-        PasswordEntry entry1 = new PasswordEntry("gmail", "user1", "enc1");
-        PasswordEntry entry2 = new PasswordEntry("gmail", "user2", "enc2");
+        PasswordEntry entry1 = new PasswordEntry("gmail", "user1", "enc1".getBytes());
+        PasswordEntry entry2 = new PasswordEntry("gmail", "user2", "enc2".getBytes());
 
         assertTrue(repository.add(entry1));
         assertFalse(repository.add(entry2));
@@ -84,7 +100,7 @@ public class PasswordRepositoryTest {
         when(persistence.load()).thenReturn(null);
         repository = new PasswordRepository(persistence);
 
-        repository.add(new PasswordEntry("gmail", "user", "enc"));
+        repository.add(new PasswordEntry("gmail", "user", "enc".getBytes()));
 
         boolean removed = repository.remove("gmail");
 
@@ -107,15 +123,15 @@ public class PasswordRepositoryTest {
         when(persistence.load()).thenReturn(null);
         repository = new PasswordRepository(persistence);
 
-        repository.add(new PasswordEntry("gmail", "oldUser", "oldEnc"));
+        repository.add(new PasswordEntry("gmail", "oldUser", "oldEnc".getBytes()));
 
-        boolean updated = repository.update("gmail", "newUser", "newEnc");
+        boolean updated = repository.update("gmail", "newUser", "newEnc".getBytes());
 
         assertTrue(updated);
 
         PasswordEntry updatedEntry = repository.find("gmail").get(0);
         assertEquals("newUser", updatedEntry.getUsername());
-        assertEquals("newEnc", updatedEntry.getEncryptedPassword());
+        assertArrayEquals("newEnc".getBytes(), updatedEntry.getEncryptedPassword());
     }
 
     @Test
@@ -123,7 +139,7 @@ public class PasswordRepositoryTest {
         when(persistence.load()).thenReturn(null);
         repository = new PasswordRepository(persistence);
 
-        assertFalse(repository.update("missing", "user", "enc"));
+        assertFalse(repository.update("missing", "user", "enc".getBytes()));
     }
 
     @Test
@@ -136,19 +152,328 @@ public class PasswordRepositoryTest {
 
         repository.setSalt(salt);
         repository.setEncryptedMasterPassword(encryptedMaster);
+        repository.setWrappedKey(new byte[]{7});
 
-        repository.add(new PasswordEntry("gmail", "user", "enc"));
+        repository.add(new PasswordEntry("gmail", "user", "enc".getBytes()));
 
         repository.save();
 
+        ArgumentCaptor<VaultHeader> headerCaptor = ArgumentCaptor.forClass(VaultHeader.class);
         ArgumentCaptor<HashMap> entriesCaptor = ArgumentCaptor.forClass(HashMap.class);
 
         verify(persistence).save(
-                eq(salt),
-                eq(encryptedMaster),
+                headerCaptor.capture(),
                 entriesCaptor.capture()
         );
 
+        assertArrayEquals(salt, headerCaptor.getValue().getSalt());
+        assertEquals(encryptedMaster, headerCaptor.getValue().getEncryptedMasterPassword());
+        assertArrayEquals(new byte[]{7}, headerCaptor.getValue().getWrappedKey());
         assertEquals(1, entriesCaptor.getValue().size());
     }
+
+    @Test
+    public void mutations_shouldBeReportedToPersistenceOnlyWhenTheyApply() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+
+        PasswordEntry entry = new PasswordEntry("gmail", "user", "enc".getBytes());
+        repository.add(entry);
+        repository.add(new PasswordEntry("gmail", "other", "enc".getBytes()));
+        repository.update("gmail", "user", "enc2".getBytes());
+        repository.update("missing", "user", "enc2".getBytes());
+        repository.remove("gmail");
+        repository.remove("gmail");
+        repository.dump();
+
+        verify(persistence).recordPut(entry);
+        verify(persistence, times(2)).recordPut(any(PasswordEntry.class));
+        verify(persistence).recordRemove("gmail");
+        verify(persistence).recordClear();
+    }
+
+    @Test
+    public void find_shouldMatchSubstringsOfLoadedAndAddedAccounts() {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("gmail", new PasswordEntry("gmail", "user", "enc".getBytes()));
+        entries.put("abc-xyz-bcd", new PasswordEntry("abc-xyz-bcd", "user", "enc".getBytes()));
+        when(persistence.load()).thenReturn(new PersistenceService.LoadedData(new VaultHeader(), entries));
+        repository = new PasswordRepository(persistence);
+        repository.add(new PasswordEntry("hotmail", "user", "enc".getBytes()));
+        repository.add(new PasswordEntry("github", "user", "enc".getBytes()));
+
+        assertEquals(2, repository.find("mail").size());
+        assertEquals(2, repository.find("ma").size());
+        assertEquals(4, repository.find("").size());
+        assertEquals("github", repository.find("thu").get(0).getAccountName());
+        // holds both trigrams of the query, but not the query itself
+        assertTrue(repository.find("abcd").isEmpty());
+
+        repository.remove("gmail");
+        assertEquals("hotmail", repository.find("mail").get(0).getAccountName());
+        assertEquals(1, repository.find("mail").size());
+
+        repository.dump();
+        assertTrue(repository.find("mail").isEmpty());
+        assertTrue(repository.find("ma").isEmpty());
+    }
+
+    @Test
+    public void find_shouldMatchScanInAddOrderThroughChurn() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        // in the order the accounts were last added, which find keeps
+        LinkedHashSet<String> added = new LinkedHashSet<>();
+        Random random = new Random(5);
+
+        // mostly removals in some rounds, so the index is rebuilt several times on the way
+        for (int round = 0; round < 20; round++) {
+            int adds = round % 2 == 0 ? 400 : 50;
+            for (int i = 0; i < 500; i++) {
+                String account = "acct" + random.nextInt(600);
+                if (i < adds) {
+                    if (repository.add(new PasswordEntry(account, "user", "enc".getBytes()))) {
+                        added.add(account);
+                    }
+                } else if (repository.remove(account)) {
+                    added.remove(account);
+                }
+            }
+            for (String query : new String[]{"", "1", "12", "ct5", "acct3", "59"}) {
+                List<String> expected = new ArrayList<>();
+                for (String account : added) {
+                    if (account.contains(query)) {
+                        expected.add(account);
+                    }
+                }
+                assertEquals(expected, names(repository.find(query)));
+            }
+        }
+    }
+
+    @Test
+    public void fuzzyFind_shouldRankAccountsByEditDistance() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        for (String name : new String[]{"gmail", "hotmail", "github", "gitlab", "mail"}) {
+            repository.add(new PasswordEntry(name, "user", "enc".getBytes()));
+        }
+
+        List<PasswordEntry> found = repository.fuzzyFind("gmial", 2);
+        assertEquals(1, found.size());
+        assertEquals("gmail", found.get(0).getAccountName());
+
+        // closest first, ties by name
+        assertEquals(Arrays.asList("github", "gitlab"), names(repository.fuzzyFind("githb", 2)));
+        assertEquals(Arrays.asList("github", "gitlab"), names(repository.fuzzyFind("githab", 1)));
+
+        repository.remove("gmail");
+        assertTrue(repository.fuzzyFind("gmial", 2).isEmpty());
+        assertTrue(repository.fuzzyFind("zzzzzz", 2).isEmpty());
+    }
+
+    @Test
+    public void fuzzyFind_shouldMatchLinearScanAfterManyRemovals() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            repository.add(new PasswordEntry("acct" + random.nextInt(5000), "user", "enc".getBytes()));
+            if (i % 3 == 0) {
+                repository.remove("acct" + random.nextInt(5000));
+            }
+        }
+        IPasswordRepository scanning = mock(IPasswordRepository.class, CALLS_REAL_METHODS);
+        doReturn(repository.getEntries()).when(scanning).getEntries();
+
+        for (String query : new String[]{"acct12", "acc4999", "act100", "acct2500"}) {
+            assertEquals(names(scanning.fuzzyFind(query, 2)), names(repository.fuzzyFind(query, 2)));
+        }
+    }
+
+    @Test
+    public void findByUsername_shouldFollowAddUpdateRemoveAndDump() {
+        HashMap<String, PasswordEntry> loaded = new HashMap<>();
+        loaded.put("gmail", new PasswordEntry("gmail", "me@example.com", "enc".getBytes()));
+        loaded.put("legacy", new PasswordEntry("legacy", null, "enc".getBytes()));
+        when(persistence.load()).thenReturn(new PersistenceService.LoadedData(new VaultHeader(), loaded));
+        repository = new PasswordRepository(persistence);
+
+        repository.add(new PasswordEntry("github", "me@example.com", "enc".getBytes()));
+        repository.add(new PasswordEntry("bank", "other", "enc".getBytes()));
+        assertEquals(Arrays.asList("github", "gmail"), names(repository.findByUsername("me@example.com")));
+
+        repository.update("bank", "me@example.com", "enc".getBytes());
+        repository.update("gmail", "new@example.com", "enc".getBytes());
+        assertEquals(Arrays.asList("bank", "github"), names(repository.findByUsername("me@example.com")));
+        assertTrue(repository.findByUsername("other").isEmpty());
+
+        repository.remove("github");
+        assertEquals(Arrays.asList("bank"), names(repository.findByUsername("me@example.com")));
+        assertTrue(repository.findByUsername(null).isEmpty());
+
+        repository.dump();
+        assertTrue(repository.findByUsername("me@example.com").isEmpty());
+        assertTrue(repository.findByUsername("new@example.com").isEmpty());
+    }
+
+    @Test
+    public void prefixAndRange_shouldMatchLinearScan() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        Random random = new Random(5);
+        String[] prefixes = {"aws-", "aws", "azure-", "b", "gcp-"};
+        for (int i = 0; i < 2000; i++) {
+            repository.add(new PasswordEntry(prefixes[random.nextInt(prefixes.length)] + random.nextInt(500), "user", "enc".getBytes()));
+            if (i % 4 == 0) {
+                repository.remove(prefixes[random.nextInt(prefixes.length)] + random.nextInt(500));
+            }
+        }
+        IPasswordRepository scanning = mock(IPasswordRepository.class, CALLS_REAL_METHODS);
+        doReturn(repository.getEntries()).when(scanning).getEntries();
+
+        for (String prefix : new String[]{"aws-", "aws", "a", "azure-1", "c", ""}) {
+            assertEquals(names(scanning.findByPrefix(prefix)), names(repository.findByPrefix(prefix)));
+        }
+        String[][] ranges = {{"aws-1", "aws-2"}, {null, "b"}, {"azure-", null}, {null, null}, {"b", "aws"}, {"b1", "b1"}};
+        for (String[] range : ranges) {
+            assertEquals(names(scanning.findRange(range[0], range[1])), names(repository.findRange(range[0], range[1])));
+        }
+        assertEquals(names(scanning.findRange(null, null)), names(repository.findRange(null, null)));
+        assertEquals(repository.getEntries().size(), repository.findRange(null, null).size());
+    }
+
+    @Test
+    public void cursor_shouldListInOrderAfterChangesAndDump() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        for (String name : new String[]{"delta", "alpha", "charlie", "bravo"}) {
+            repository.add(new PasswordEntry(name, "user", "enc".getBytes()));
+        }
+        repository.remove("charlie");
+
+        EntryCursor cursor = repository.cursor(EntryQuery.all().pageSize(2));
+        assertEquals(Arrays.asList("alpha", "bravo"), names(cursor.nextPage()));
+        assertEquals(Arrays.asList("delta"), names(cursor.nextPage()));
+        assertEquals(Arrays.asList("delta"), names(repository.findByPrefix("d")));
+
+        repository.dump();
+        assertFalse(repository.cursor(EntryQuery.all()).hasNext());
+        assertTrue(repository.findRange(null, null).isEmpty());
+    }
+
+    private static List<String> names(List<PasswordEntry> entries) {
+        List<String> names = new ArrayList<>();
+        entries.forEach(entry -> names.add(entry.getAccountName()));
+        return names;
+    }
+
+    @Test
+    public void bulkChanges_shouldReportHowManyTookEffect() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+
+        assertEquals(2, repository.addAll(Arrays.asList(
+                new PasswordEntry("gmail", "user", new byte[]{1}),
+                new PasswordEntry("github", "user", new byte[]{2}),
+                new PasswordEntry("gmail", "dup", new byte[]{3}))));
+        assertEquals(1, repository.updateAll(Arrays.asList(
+                new PasswordEntry("gmail", "changed", new byte[]{4}),
+                new PasswordEntry("missing", "x", new byte[]{5}))));
+        assertEquals(1, repository.removeAll(Arrays.asList("github", "missing")));
+
+        assertEquals(1, repository.getEntries().size());
+        assertEquals("changed", repository.getEntries().get("gmail").getUsername());
+        verify(persistence, never()).save(any(), any());
+    }
+
+    @Test
+    public void batch_shouldApplyAllChangesAndSaveOnce() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        repository.add(new PasswordEntry("old", "user", new byte[]{1}));
+
+        int applied = repository.batch(batch -> {
+            for (int i = 0; i < 100; i++) {
+                batch.add(new PasswordEntry("account" + i, "user", new byte[]{(byte) i}));
+            }
+            batch.remove("old").update("account0", "first", new byte[]{9});
+        });
+
+        assertEquals(102, applied);
+        assertEquals(100, repository.getEntries().size());
+        assertEquals("first", repository.getEntries().get("account0").getUsername());
+        verify(persistence, times(1)).save(any(), any());
+    }
+
+    @Test
+    public void batch_shouldApplyNothingWhenCollectingFails() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+
+        try {
+            repository.batch(batch -> {
+                batch.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+                throw new IllegalStateException("interrupted");
+            });
+            fail("exception should propagate");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertTrue(repository.getEntries().isEmpty());
+        verify(persistence, never()).save(any(), any());
+        verify(persistence, never()).recordPut(any());
+    }
+
+    @Test
+    public void batch_shouldUndoAppliedChangesWhenAChangeFails() {
+        when(persistence.load()).thenReturn(null);
+        repository = spy(new PasswordRepository(persistence));
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+        repository.add(new PasswordEntry("old", "user", new byte[]{2}));
+        doThrow(new IllegalArgumentException("Entry too large")).when(repository)
+                .add(argThat(entry -> entry.getAccountName().equals("huge")));
+
+        try {
+            repository.batch(batch -> batch
+                    .update("gmail", "changed", new byte[]{9})
+                    .remove("old")
+                    .add(new PasswordEntry("new", "user", new byte[]{3}))
+                    .add(new PasswordEntry("huge", "user", new byte[]{4})));
+            fail("exception should propagate");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(new TreeSet<>(Arrays.asList("gmail", "old")), new TreeSet<>(repository.getEntries().keySet()));
+        assertEquals("user", repository.getEntries().get("gmail").getUsername());
+        assertArrayEquals(new byte[]{2}, repository.getEntries().get("old").getEncryptedPassword());
+        verify(persistence, never()).save(any(), any());
+    }
+    @Test
+    public void cursor_shouldPageInOrderAndResumeAfterPosition() {
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+        for (int i = 0; i < 25; i++) {
+            repository.add(new PasswordEntry(String.format("account%02d", i), i % 2 == 0 ? "even" : "odd", new byte[]{1}));
+        }
+
+        EntryQuery evens = EntryQuery.all().where(entry -> "even".equals(entry.getUsername())).pageSize(5);
+        EntryCursor cursor = repository.cursor(evens);
+        List<PasswordEntry> first = cursor.nextPage();
+        assertEquals(Arrays.asList("account00", "account02", "account04", "account06", "account08"), names(first));
+
+        // a new cursor carries on from where the first one stopped
+        EntryCursor resumed = repository.cursor(evens.after(cursor.position()));
+        List<String> rest = new ArrayList<>();
+        resumed.forEachRemaining(entry -> rest.add(entry.getAccountName()));
+        assertEquals(Arrays.asList("account10", "account12", "account14", "account16", "account18",
+                "account20", "account22", "account24"), rest);
+        assertTrue(resumed.nextPage().isEmpty());
+
+        int unordered = 0;
+        for (EntryCursor all = repository.cursor(EntryQuery.all().unordered().pageSize(7)); all.hasNext(); all.next()) {
+            unordered++;
+        }
+        assertEquals(25, unordered);
+    }
 }
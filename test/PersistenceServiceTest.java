@@ -2,10 +2,18 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
 import java.util.HashMap;
 
+import model.KdfParameters;
 import model.PasswordEntry;
+import model.VaultHeader;
 import persistence.PersistenceService;
 import interfaces.IPersistenceService;
 
@@ -34,24 +42,219 @@ public class PersistenceServiceTest {
         String encryptedMaster = "encrypted123";
 
         HashMap<String, PasswordEntry> entries = new HashMap<>();
-        entries.put("gmail", new PasswordEntry("gmail", "user1", "enc-pass-1"));
-        entries.put("facebook", new PasswordEntry("facebook", "user2", "enc-pass-2"));
+        entries.put("gmail", new PasswordEntry("gmail", "user1", "enc-pass-1".getBytes()));
+        entries.put("facebook", new PasswordEntry("facebook", "user2", "enc-pass-2".getBytes()));
+
+        VaultHeader header = new VaultHeader();
+        header.setSalt(salt);
+        header.setEncryptedMasterPassword(encryptedMaster);
+        header.setWrappedKey(new byte[]{4, 5, 6});
+        header.setKeyCheck(new byte[]{7, 8});
+        header.setKdfParameters(KdfParameters.pbkdf2(123000));
+        header.setEntriesAuthenticated(true);
 
         // Save
-        persistenceService.save(salt, encryptedMaster, entries);
+        persistenceService.save(header, entries);
 
         // Load
         IPersistenceService.LoadedData data = persistenceService.load();
 
         assertNotNull(data);
-        assertArrayEquals(salt, data.salt);
-        assertEquals(encryptedMaster, data.encryptedMasterPassword);
+        assertArrayEquals(salt, data.header.getSalt());
+        assertEquals(encryptedMaster, data.header.getEncryptedMasterPassword());
+        assertArrayEquals(new byte[]{4, 5, 6}, data.header.getWrappedKey());
+        assertArrayEquals(new byte[]{7, 8}, data.header.getKeyCheck());
+        assertEquals(KdfParameters.pbkdf2(123000), data.header.getKdfParameters());
+        assertTrue(data.header.isEntriesAuthenticated());
 
         assertEquals(2, data.entries.size());
         assertTrue(data.entries.containsKey("gmail"));
         assertTrue(data.entries.containsKey("facebook"));
     }
 
+    @Test
+    public void testLoadFileWithoutWrappedKey() throws Exception {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("gmail", new PasswordEntry("gmail", "user1", "enc-pass-1".getBytes()));
+
+        // layout written before the wrapped data key was stored
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+            oos.writeObject(new byte[]{1, 2, 3});
+            oos.writeObject("encrypted123");
+            oos.writeObject(entries);
+        }
+
+        IPersistenceService.LoadedData data = persistenceService.load();
+
+        assertNotNull(data);
+        assertArrayEquals(new byte[]{1, 2, 3}, data.header.getSalt());
+        assertEquals("encrypted123", data.header.getEncryptedMasterPassword());
+        assertNull(data.header.getWrappedKey());
+        assertNull(data.header.getKeyCheck());
+        assertNull(data.header.getKdfParameters());
+        assertEquals(1, data.entries.size());
+    }
+
+    @Test
+    public void testSaveWritesVersionedBinaryFormat() throws Exception {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("gmail", new PasswordEntry("gmail", "user1", "enc-pass-1".getBytes()));
+
+        persistenceService.save(new VaultHeader(), entries);
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(tempFile))) {
+            assertEquals(0x504D5631, in.readInt());
+            assertEquals(3, in.readShort());
+        }
+    }
+
+    @Test
+    public void testLoadVersion2FileMayHoldLegacyEntries() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+            out.writeInt(0x504D5631);
+            out.writeShort(2);
+            for (int i = 0; i < 5; i++) {
+                out.writeInt(-1); // salt, master password, wrapped key, key check, kdf
+            }
+            out.writeInt(0);
+        }
+
+        IPersistenceService.LoadedData data = persistenceService.load();
+
+        assertTrue(data.entries.isEmpty());
+        assertFalse(data.header.isEntriesAuthenticated());
+    }
+
+    @Test
+    public void testLoadRejectsEntryCountLargerThanFile() throws Exception {
+        writeVersion2File(100_000_000, 0, -1, -1); // one empty entry, then the file ends
+
+        assertLoadFailsAndKeepsFile();
+    }
+
+    @Test
+    public void testLoadRejectsValueLengthLargerThanFile() throws Exception {
+        writeVersion2File(1, 0x7FFFFFF0);
+
+        assertLoadFailsAndKeepsFile();
+    }
+
+    @Test
+    public void testLoadFailsOnUnreadableFile() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        }
+
+        assertLoadFailsAndKeepsFile();
+    }
+
+    private void assertLoadFailsAndKeepsFile() throws Exception {
+        byte[] before = Files.readAllBytes(tempFile.toPath());
+        try {
+            persistenceService.load();
+            fail("an unreadable vault should not load as a fresh one");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getMessage().startsWith("Error loading data"));
+        }
+        assertArrayEquals(before, Files.readAllBytes(tempFile.toPath()));
+    }
+
+    private void writeVersion2File(int... ints) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+            out.writeInt(0x504D5631);
+            out.writeShort(2);
+            for (int i = 0; i < 5; i++) {
+                out.writeInt(-1);
+            }
+            for (int value : ints) {
+                out.writeInt(value);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveAndLoadNullFieldsAndLargeValues() {
+        VaultHeader header = new VaultHeader();
+        header.setSalt(new byte[]{1});
+        header.setKdfParameters(KdfParameters.scrypt(16384, 8, 2));
+
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        byte[] large = new byte[200_000];
+        for (int i = 0; i < large.length; i++) large[i] = (byte) i;
+        entries.put("big", new PasswordEntry("big", null, large));
+        for (int i = 0; i < 5_000; i++) {
+            entries.put("account-\u00e9-" + i, new PasswordEntry("account-\u00e9-" + i, "user" + i, new byte[]{(byte) i}));
+        }
+
+        persistenceService.save(header, entries);
+        IPersistenceService.LoadedData data = persistenceService.load();
+
+        assertNotNull(data);
+        assertNull(data.header.getEncryptedMasterPassword());
+        assertNull(data.header.getWrappedKey());
+        assertEquals(KdfParameters.scrypt(16384, 8, 2), data.header.getKdfParameters());
+        assertEquals(5_001, data.entries.size());
+        assertNull(data.entries.get("big").getUsername());
+        assertArrayEquals(large, data.entries.get("big").getEncryptedPassword());
+        assertEquals("user4999", data.entries.get("account-\u00e9-4999").getUsername());
+    }
+
+    @Test
+    public void testMigrateConvertsSerializedVault() throws Exception {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("gmail", new PasswordEntry("gmail", "user1", "enc-pass-1".getBytes()));
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+            oos.writeObject(new byte[]{1, 2, 3});
+            oos.writeObject("encrypted123");
+            oos.writeObject(entries);
+            oos.writeObject(new byte[]{4, 5, 6});
+            oos.writeObject(new byte[]{7, 8});
+            oos.writeObject(KdfParameters.pbkdf2(123000));
+        }
+
+        assertTrue(persistenceService.migrate());
+        assertFalse(persistenceService.migrate());
+
+        IPersistenceService.LoadedData data = persistenceService.load();
+        assertNotNull(data);
+        assertArrayEquals(new byte[]{1, 2, 3}, data.header.getSalt());
+        assertArrayEquals(new byte[]{4, 5, 6}, data.header.getWrappedKey());
+        assertEquals(KdfParameters.pbkdf2(123000), data.header.getKdfParameters());
+        assertArrayEquals("enc-pass-1".getBytes(), data.entries.get("gmail").getEncryptedPassword());
+        try (DataInputStream in = new DataInputStream(new FileInputStream(tempFile))) {
+            assertEquals(0x504D5631, in.readInt());
+        }
+    }
+
+    @Test
+    public void testFailedSaveKeepsPreviousVault() {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        entries.put("gmail", new PasswordEntry("gmail", "user1", "enc-pass-1".getBytes()));
+        persistenceService.save(new VaultHeader(), entries);
+
+        // an entry without an account name cannot be indexed, so the write fails half way
+        HashMap<String, PasswordEntry> broken = new HashMap<>(entries);
+        broken.put("other", new PasswordEntry("other", "user2", "enc-pass-2".getBytes()));
+        broken.put("gmail", null);
+        try {
+            persistenceService.save(new VaultHeader(), broken);
+            fail("save should have failed");
+        } catch (RuntimeException expected) {
+            // reported to the caller instead of being printed and ignored
+        }
+
+        IPersistenceService.LoadedData data = persistenceService.load();
+        assertEquals(1, data.entries.size());
+        assertTrue(data.entries.containsKey("gmail"));
+        assertFalse(new File(tempFile.getPath() + ".tmp").exists());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testSaveThrowsWhenDirectoryMissing() {
+        new PersistenceService(new File(tempFile.getParentFile(), "missing-dir/passwords.dat").getPath())
+                .save(new VaultHeader(), new HashMap<>());
+    }
+
     @Test
     public void testLoadReturnsNullWhenFileMissing() {
         // delete file manually
@@ -0,0 +1,149 @@
+import crypto.CryptoService;
+import crypto.EncryptionFormat;
+import interfaces.ICryptoService;
+import interfaces.IPersistenceService;
+import manager.ReEncryptionEngine;
+import model.PasswordEntry;
+import org.junit.Before;
+import org.junit.Test;
+import repository.PasswordRepository;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ReEncryptionEngineTest {
+
+    private ICryptoService crypto;
+    private PasswordRepository repository;
+    private SecretKey oldKey;
+    private SecretKey newKey;
+
+    @Before
+    public void setUp() {
+        IPersistenceService persistence = mock(IPersistenceService.class);
+        when(persistence.load()).thenReturn(null);
+        repository = new PasswordRepository(persistence);
+
+        crypto = new CryptoService();
+        oldKey = crypto.generateDataKey();
+        newKey = crypto.generateDataKey();
+    }
+
+    private void fill(ICryptoService writer, SecretKey key, int count) {
+        for (int i = 0; i < count; i++) {
+            repository.add(new PasswordEntry("account" + i, "user" + i, writer.encrypt(("pass" + i).getBytes(), key)));
+        }
+    }
+
+    private void assertAllReadableWith(SecretKey key, int count) {
+        for (int i = 0; i < count; i++) {
+            PasswordEntry entry = repository.getEntries().get("account" + i);
+            assertEquals("user" + i, entry.getUsername());
+            assertArrayEquals(("pass" + i).getBytes(), crypto.decrypt(entry.getEncryptedPassword(), key));
+        }
+    }
+
+    @Test
+    public void run_shouldReEncryptEveryEntryAndReportProgress() {
+        fill(crypto, oldKey, 100);
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, crypto, oldKey, crypto, newKey, 16, new ForkJoinPool(4));
+        AtomicInteger lastProgress = new AtomicInteger();
+
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+        boolean complete = engine.run(checkpoint, (done, total) -> {
+            assertEquals(100, total);
+            lastProgress.accumulateAndGet(done, Math::max);
+        });
+
+        assertTrue(complete);
+        assertEquals(100, lastProgress.get());
+        assertEquals(100, checkpoint.getCompletedEntries());
+        assertAllReadableWith(newKey, 100);
+    }
+
+    @Test
+    public void run_shouldReadTheEntriesOncePerRun() {
+        fill(crypto, oldKey, 100);
+        PasswordRepository spied = spy(repository);
+        ReEncryptionEngine engine = new ReEncryptionEngine(spied, crypto, oldKey, crypto, newKey, 4, new ForkJoinPool(4));
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+        clearInvocations(spied);
+
+        assertTrue(engine.run(checkpoint, null));
+
+        // 25 batches, but the vault is fetched once, not once per batch
+        verify(spied, times(1)).getEntries();
+        repository = spied;
+        assertAllReadableWith(newKey, 100);
+    }
+
+    @Test
+    public void run_shouldMigrateLegacyEcbEntriesToGcm() {
+        SecretKey key = crypto.generateDataKey();
+        fill(new CryptoService(EncryptionFormat.LEGACY_ECB), key, 40);
+
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, crypto.legacyEcb(), key, crypto, key, 8, new ForkJoinPool(2));
+
+        assertTrue(engine.run(engine.newCheckpoint(), null));
+        assertAllReadableWith(key, 40);
+        for (PasswordEntry entry : repository.getEntries().values()) {
+            assertEquals(1, entry.getEncryptedPassword()[0]);
+        }
+    }
+
+    @Test
+    public void run_afterInterruption_shouldResumeFromCheckpoint() {
+        fill(crypto, oldKey, 50);
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, crypto, oldKey, crypto, newKey, 10, new ForkJoinPool(1));
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+
+        try {
+            engine.run(checkpoint, (done, total) -> {
+                throw new IllegalStateException("interrupted");
+            });
+            fail("listener failure should abort the run");
+        } catch (IllegalStateException expected) {
+            // at least the batch that reported progress is recorded
+        }
+        assertTrue(checkpoint.getCompletedEntries() > 0);
+        assertFalse(checkpoint.isComplete());
+
+        assertTrue(engine.run(checkpoint, null));
+        assertEquals(50, checkpoint.getCompletedEntries());
+        assertAllReadableWith(newKey, 50);
+    }
+
+    @Test
+    public void run_withFreshCheckpointAfterPartialRun_shouldSkipAlreadyReEncryptedEntries() {
+        fill(crypto, oldKey, 20);
+        repository.update("account3", "user3", crypto.encrypt("pass3".getBytes(), newKey));
+
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, crypto, oldKey, crypto, newKey);
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+
+        assertTrue(engine.run(checkpoint, null));
+        assertTrue(checkpoint.getFailedAccounts().isEmpty());
+        assertAllReadableWith(newKey, 20);
+    }
+
+    @Test
+    public void run_withUndecryptableEntry_shouldReportItAndLeaveItUnchanged() {
+        fill(crypto, oldKey, 5);
+        byte[] garbage = crypto.encrypt("x".getBytes(), crypto.generateDataKey());
+        repository.add(new PasswordEntry("broken", "u", garbage));
+
+        ReEncryptionEngine engine = new ReEncryptionEngine(repository, crypto, oldKey, crypto, newKey);
+        ReEncryptionEngine.Checkpoint checkpoint = engine.newCheckpoint();
+
+        assertFalse(engine.run(checkpoint, null));
+        assertTrue(checkpoint.isComplete());
+        assertEquals(1, checkpoint.getFailedAccounts().size());
+        assertTrue(checkpoint.getFailedAccounts().containsKey("broken"));
+        assertSame(garbage, repository.getEntries().get("broken").getEncryptedPassword());
+        assertAllReadableWith(newKey, 5);
+    }
+}
@@ -0,0 +1,196 @@
+import model.KdfParameters;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import persistence.PersistenceService;
+import persistence.ShardedPersistenceService;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class ShardedPersistenceServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String fileName;
+
+    @Before
+    public void setUp() {
+        fileName = new File(folder.getRoot(), "passwords.dat").getPath();
+    }
+
+    @Test
+    public void saveAndLoad_shouldRoundTripAcrossShards() {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        assertNull(service.load());
+        HashMap<String, PasswordEntry> entries = entries(50);
+        entries.put("nulls", new PasswordEntry("nulls", null, null));
+        entries.values().forEach(service::recordPut);
+
+        service.save(header(), entries);
+        PersistenceService.LoadedData data = new ShardedPersistenceService(fileName, 4).load();
+
+        assertEquals(51, data.entries.size());
+        assertEquals("user7", data.entries.get("account7").getUsername());
+        assertNull(data.entries.get("nulls").getEncryptedPassword());
+        assertArrayEquals(new byte[]{1, 2, 3}, data.header.getSalt());
+        assertEquals(KdfParameters.pbkdf2(54000), data.header.getKdfParameters());
+    }
+
+    @Test
+    public void save_shouldRewriteOnlyDirtyShards() {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        service.load();
+        HashMap<String, PasswordEntry> entries = entries(50);
+        entries.values().forEach(service::recordPut);
+        service.save(header(), entries);
+        Set<String> before = shardFiles();
+
+        PasswordEntry changed = new PasswordEntry("account3", "changed", new byte[]{9});
+        entries.put("account3", changed);
+        service.recordPut(changed);
+        service.save(header(), entries);
+        Set<String> after = shardFiles();
+
+        assertEquals(4, after.size());
+        after.removeAll(before);
+        assertEquals(1, after.size());
+        assertEquals("changed", new ShardedPersistenceService(fileName, 4).load().entries.get("account3").getUsername());
+    }
+
+    @Test
+    public void save_withoutChangesShouldNotWrite() throws Exception {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        service.load();
+        HashMap<String, PasswordEntry> entries = entries(10);
+        entries.values().forEach(service::recordPut);
+        service.save(header(), entries);
+        File manifest = new File(fileName + ".manifest");
+        long modified = Files.getLastModifiedTime(manifest.toPath()).toMillis();
+        assertTrue(manifest.setLastModified(modified - 10_000));
+
+        service.save(header(), entries);
+
+        assertEquals(modified - 10_000, manifest.lastModified());
+    }
+
+    @Test
+    public void remove_shouldBeVisibleAfterReload() {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        service.load();
+        HashMap<String, PasswordEntry> entries = entries(10);
+        entries.values().forEach(service::recordPut);
+        service.save(header(), entries);
+
+        entries.remove("account2");
+        service.recordRemove("account2");
+        service.save(header(), entries);
+
+        HashMap<String, PasswordEntry> loaded = new ShardedPersistenceService(fileName, 4).load().entries;
+        assertEquals(9, loaded.size());
+        assertFalse(loaded.containsKey("account2"));
+    }
+
+    @Test
+    public void load_shouldSplitUnshardedVault() {
+        new PersistenceService(fileName).save(header(), entries(20));
+
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        PersistenceService.LoadedData data = service.load();
+        assertFalse(ShardedPersistenceService.isSharded(fileName));
+        service.save(data.header, data.entries);
+
+        assertEquals(4, shardFiles().size());
+        assertTrue(ShardedPersistenceService.isSharded(fileName));
+        // the unsharded copy must not live on next to the shards
+        assertFalse(new File(fileName).exists());
+        assertEquals(20, new ShardedPersistenceService(fileName, 4).load().entries.size());
+    }
+
+    @Test
+    public void load_shouldKeepShardCountOfExistingVault() {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        service.load();
+        HashMap<String, PasswordEntry> entries = entries(20);
+        entries.values().forEach(service::recordPut);
+        service.save(header(), entries);
+
+        ShardedPersistenceService reopened = new ShardedPersistenceService(fileName, 8);
+        assertEquals(20, reopened.load().entries.size());
+        PasswordEntry added = new PasswordEntry("new", "user", new byte[]{1});
+        entries.put("new", added);
+        reopened.recordPut(added);
+        reopened.save(header(), entries);
+
+        assertEquals(4, shardFiles().size());
+        assertEquals(21, new ShardedPersistenceService(fileName, 8).load().entries.size());
+    }
+
+    @Test
+    public void load_shouldDeleteShardsOfUnfinishedSave() throws Exception {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        service.load();
+        HashMap<String, PasswordEntry> entries = entries(10);
+        entries.values().forEach(service::recordPut);
+        service.save(header(), entries);
+        File stray = new File(folder.getRoot(), "passwords.dat.shard-0.99");
+        Files.write(stray.toPath(), new byte[]{1, 2, 3});
+
+        assertEquals(10, new ShardedPersistenceService(fileName, 4).load().entries.size());
+        assertFalse(stray.exists());
+    }
+
+    @Test
+    public void load_shouldRejectCorruptShard() throws Exception {
+        ShardedPersistenceService service = new ShardedPersistenceService(fileName, 4);
+        service.load();
+        HashMap<String, PasswordEntry> entries = entries(10);
+        entries.values().forEach(service::recordPut);
+        service.save(header(), entries);
+
+        File shard = new File(folder.getRoot(), shardFiles().iterator().next());
+        byte[] bytes = Files.readAllBytes(shard.toPath());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(shard.toPath(), bytes);
+
+        try {
+            new ShardedPersistenceService(fileName, 4).load();
+            fail("a corrupt shard should not load");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("Checksum mismatch"));
+        }
+    }
+
+    private Set<String> shardFiles() {
+        Set<String> names = new TreeSet<>();
+        Arrays.stream(folder.getRoot().list())
+                .filter(name -> name.startsWith("passwords.dat.shard-"))
+                .forEach(names::add);
+        return names;
+    }
+
+    private static HashMap<String, PasswordEntry> entries(int count) {
+        HashMap<String, PasswordEntry> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("account" + i, new PasswordEntry("account" + i, "user" + i, new byte[]{(byte) i}));
+        }
+        return entries;
+    }
+
+    private static VaultHeader header() {
+        VaultHeader header = new VaultHeader();
+        header.setSalt(new byte[]{1, 2, 3});
+        header.setKdfParameters(KdfParameters.pbkdf2(54000));
+        return header;
+    }
+}
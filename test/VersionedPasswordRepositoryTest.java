@@ -0,0 +1,172 @@
+import interfaces.IPersistenceService;
+import model.EntryCursor;
+import model.EntryQuery;
+import model.PasswordEntry;
+import model.VaultHeader;
+import org.junit.Before;
+import org.junit.Test;
+import persistence.PersistenceService;
+import repository.VaultSnapshot;
+import repository.VersionedPasswordRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class VersionedPasswordRepositoryTest {
+
+    private IPersistenceService persistence;
+
+    @Before
+    public void setUp() {
+        persistence = mock(IPersistenceService.class);
+    }
+
+    @Test
+    public void snapshot_shouldKeepItsStateWhileNewerVersionsArePublished() {
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+        repository.setSalt(new byte[]{1});
+        VaultSnapshot before = repository.snapshot();
+
+        repository.update("gmail", "changed", new byte[]{2});
+        repository.add(new PasswordEntry("github", "user", new byte[]{3}));
+        repository.dump();
+
+        assertEquals(1, before.size());
+        assertEquals("user", before.get("gmail").getUsername());
+        assertArrayEquals(new byte[]{1}, before.getHeader().getSalt());
+        assertTrue(repository.getEntries().isEmpty());
+        assertNull(repository.getSalt());
+        assertEquals("", repository.getEncryptedMasterPassword());
+        assertEquals(before.getVersion() + 3, repository.snapshot().getVersion());
+    }
+
+    @Test
+    public void edit_shouldStayInvisibleUntilPublished() {
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{1}));
+
+        VersionedPasswordRepository.Edit edit = repository.edit();
+        edit.update("gmail", "rotated", new byte[]{9});
+        edit.add(new PasswordEntry("imported", "user", new byte[]{8}));
+        edit.header().setWrappedKey(new byte[]{7});
+
+        assertEquals("user", repository.getEntries().get("gmail").getUsername());
+        assertNull(repository.getWrappedKey());
+
+        assertTrue(repository.publish(edit));
+        assertEquals("rotated", repository.getEntries().get("gmail").getUsername());
+        assertEquals(2, repository.getEntries().size());
+        assertArrayEquals(new byte[]{7}, repository.getWrappedKey());
+        verify(persistence, times(3)).recordPut(any(PasswordEntry.class));
+    }
+
+    @Test
+    public void publish_shouldFailWhenAnotherVersionCameFirst() {
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        VersionedPasswordRepository.Edit edit = repository.edit();
+        edit.add(new PasswordEntry("imported", "user", new byte[]{1}));
+
+        repository.add(new PasswordEntry("gmail", "user", new byte[]{2}));
+
+        assertFalse(repository.publish(edit));
+        assertNull(repository.getEntries().get("imported"));
+    }
+
+    @Test
+    public void save_shouldPassLatestVersionToPersistence() {
+        HashMap<String, PasswordEntry> loaded = new HashMap<>();
+        loaded.put("gmail", new PasswordEntry("gmail", "user", new byte[]{1}));
+        when(persistence.load()).thenReturn(new PersistenceService.LoadedData(new VaultHeader(), loaded));
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        repository.remove("gmail");
+        repository.add(new PasswordEntry("github", "user", new byte[]{2}));
+        repository.setSalt(new byte[]{5});
+
+        repository.save();
+
+        verify(persistence).recordRemove("gmail");
+        verify(persistence).save(argThat(header -> header.getSalt()[0] == 5),
+                argThat(entries -> entries.size() == 1 && entries.containsKey("github")));
+    }
+
+    @Test
+    public void batch_shouldPublishOneVersionAndSaveOnce() {
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        repository.add(new PasswordEntry("old", "user", new byte[]{1}));
+        VaultSnapshot before = repository.snapshot();
+
+        int applied = repository.batch(batch -> batch
+                .add(new PasswordEntry("gmail", "user", new byte[]{2}))
+                .add(new PasswordEntry("github", "user", new byte[]{3}))
+                .remove("old"));
+
+        assertEquals(3, applied);
+        assertEquals(before.getVersion() + 1, repository.snapshot().getVersion());
+        assertEquals(2, repository.snapshot().size());
+        assertEquals(1, before.size());
+        verify(persistence, times(1)).save(any(), any());
+
+        assertEquals(0, repository.removeAll(Arrays.asList("missing", "old")));
+        assertEquals(before.getVersion() + 1, repository.snapshot().getVersion());
+    }
+
+    @Test
+    public void cursor_shouldReadTheVersionItStartedOn() {
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        for (int i = 0; i < 10; i++) {
+            repository.add(new PasswordEntry("account" + i, "user", new byte[]{1}));
+        }
+
+        EntryCursor cursor = repository.cursor(EntryQuery.all().after("account3").pageSize(3));
+        assertEquals("account4", cursor.next().getAccountName());
+        repository.remove("account5");
+        repository.add(new PasswordEntry("account45", "user", new byte[]{2}));
+
+        assertEquals(2, cursor.nextPage().size());
+        assertEquals("account6", cursor.position());
+        assertEquals(3, cursor.nextPage().size());
+        assertTrue(cursor.nextPage().isEmpty());
+    }
+
+
+    @Test
+    public void randomChanges_shouldMatchSortedMap() {
+        VersionedPasswordRepository repository = new VersionedPasswordRepository(persistence);
+        TreeMap<String, PasswordEntry> expected = new TreeMap<>();
+        Random random = new Random(11);
+
+        for (int i = 0; i < 5000; i++) {
+            String account = "account" + random.nextInt(700);
+            switch (random.nextInt(3)) {
+                case 0:
+                    PasswordEntry entry = new PasswordEntry(account, "user" + i, new byte[0]);
+                    assertEquals(expected.putIfAbsent(account, entry) == null, repository.add(entry));
+                    break;
+                case 1:
+                    boolean present = expected.containsKey(account);
+                    if (present) {
+                        expected.put(account, new PasswordEntry(account, "user" + i, new byte[0]));
+                    }
+                    assertEquals(present, repository.update(account, "user" + i, new byte[0]));
+                    break;
+                default:
+                    assertEquals(expected.remove(account) != null, repository.remove(account));
+            }
+        }
+
+        Map<String, PasswordEntry> entries = repository.getEntries();
+        assertEquals(expected.size(), entries.size());
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(entries.keySet()));
+        for (Map.Entry<String, PasswordEntry> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().getUsername(), entries.get(entry.getKey()).getUsername());
+        }
+    }
+}